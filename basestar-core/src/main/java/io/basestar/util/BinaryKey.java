@@ -1,14 +1,12 @@
 package io.basestar.util;
 
-import com.google.common.base.Charsets;
+import com.google.common.primitives.UnsignedBytes;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 public class BinaryKey extends Bytes {
@@ -29,124 +27,263 @@ public class BinaryKey extends Bytes {
     // Reserve bytes underneath escape for new control codes
     public static final int T_ESCAPE = 16;
 
+    // Compares 8 bytes at a time where the platform allows it
+
+    private static final Comparator<byte[]> UNSIGNED = UnsignedBytes.lexicographicalComparator();
+
+    private static final ThreadLocal<Writer> WRITER = ThreadLocal.withInitial(Writer::new);
+
     public BinaryKey(final byte[] bytes) {
 
         super(bytes);
     }
 
+    // Takes ownership of the array
+
+    private BinaryKey(final byte[] bytes, final boolean copy) {
+
+        super(bytes, copy);
+    }
+
     public BinaryKey lo() {
 
-        return new BinaryKey(concat(getBytes(), LO_PREFIX));
+        return new BinaryKey(append(getBytes(), LO_PREFIX[0]), false);
     }
 
     public BinaryKey hi() {
 
-        return new BinaryKey(concat(getBytes(), HI_PREFIX));
+        return new BinaryKey(append(getBytes(), HI_PREFIX[0]), false);
     }
 
     public BinaryKey concat(final BinaryKey other) {
 
-        return new BinaryKey(concat(getBytes(), other.getBytes()));
+        return new BinaryKey(concat(getBytes(), other.getBytes()), false);
     }
 
     public static BinaryKey from(final List<?> keys) {
 
-        return new BinaryKey(bytes(keys));
+        final Writer writer = WRITER.get();
+        try {
+            return new BinaryKey(writer.writeAll(keys).toByteArray(), false);
+        } finally {
+            writer.release();
+        }
     }
 
-    private static byte[] bytes(final List<?> keys) {
+    public static byte[] concat(final byte[]... arrays) {
 
-        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+        int length = 0;
+        for (final byte[] array : arrays) {
+            length += array.length;
+        }
+        final byte[] result = new byte[length];
+        int offset = 0;
+        for (final byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
 
-            for (final Object v : keys) {
-                if (v == null) {
-                    baos.write(T_NULL);
-                } else if (v instanceof Boolean) {
-                    baos.write(((Boolean) v) ? T_TRUE : T_FALSE);
-                } else if (v instanceof Byte || v instanceof Short || v instanceof Integer || v instanceof Long) {
-                    final byte[] bytes = longBytes((Number) v);
-                    baos.write(T_INT);
-                    baos.write(bytes);
-                } else if (v instanceof Character) {
-                    baos.write(T_STRING);
-                    baos.write(stringBytes(String.valueOf(v)));
-                } else if (v instanceof String) {
-                    baos.write(T_STRING);
-                    baos.write(stringBytes((String) v));
-                } else if (v instanceof LocalDate) {
-                    final byte[] bytes = dateBytes((LocalDate) v);
-                    baos.write(T_DATE);
-                    baos.write(bytes);
-                } else if (v instanceof Instant) {
-                    final byte[] bytes = datetimeBytes((Instant) v);
-                    baos.write(T_DATETIME);
-                    baos.write(bytes);
-                } else if (v instanceof Bytes) {
-                    baos.write(T_BYTES);
-                    baos.write(genericBytes(((Bytes) v).getBytes()));
-                } else if (v instanceof byte[]) {
-                    baos.write(T_BYTES);
-                    baos.write(genericBytes((byte[]) v));
-                } else {
-                    throw new IllegalStateException("Cannot convert " + v.getClass() + " to binary");
-                }
-            }
+    /**
+     * Unsigned lexicographic order (a prefix sorts first), the order used by backends that sort binary keys.
+     */
+
+    public static int compareUnsigned(final byte[] a, final byte[] b) {
+
+        return UNSIGNED.compare(a, b);
+    }
 
-            return baos.toByteArray();
+    public static Comparator<byte[]> unsignedComparator() {
 
-        } catch (final IOException e) {
-            throw new UncheckedIOException(e);
+        return UNSIGNED;
+    }
+
+    public static boolean startsWith(final byte[] key, final byte[] prefix) {
+
+        if (key.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i != prefix.length; ++i) {
+            if (key[i] != prefix[i]) {
+                return false;
+            }
         }
+        return true;
     }
 
-    public static byte[] concat(final byte[]... arrays) {
+    private static byte[] append(final byte[] bytes, final byte b) {
+
+        final byte[] result = Arrays.copyOf(bytes, bytes.length + 1);
+        result[bytes.length] = b;
+        return result;
+    }
+
+    /**
+     * Growable buffer that encodes key components in place, a writer can be reset and reused for any number of keys.
+     */
+
+    public static class Writer {
+
+        private static final int DEFAULT_CAPACITY = 64;
+
+        // Buffers that grew larger than this are not kept between uses
+
+        private static final int MAX_RETAINED_CAPACITY = 4096;
+
+        private byte[] buffer;
+
+        private int length;
+
+        public Writer() {
+
+            this(DEFAULT_CAPACITY);
+        }
 
-        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+        public Writer(final int capacity) {
 
-            for (final byte[] array : arrays) {
-                baos.write(array);
+            this.buffer = new byte[Math.max(capacity, 1)];
+        }
+
+        public int length() {
+
+            return length;
+        }
+
+        public Writer reset() {
+
+            length = 0;
+            return this;
+        }
+
+        public byte[] toByteArray() {
+
+            return Arrays.copyOf(buffer, length);
+        }
+
+        public BinaryKey toKey() {
+
+            return new BinaryKey(toByteArray(), false);
+        }
+
+        public Writer writeAll(final List<?> keys) {
+
+            for (final Object v : keys) {
+                write(v);
             }
+            return this;
+        }
 
-            return baos.toByteArray();
+        public Writer write(final Object v) {
+
+            if (v == null) {
+                putByte(T_NULL);
+            } else if (v instanceof Boolean) {
+                putByte(((Boolean) v) ? T_TRUE : T_FALSE);
+            } else if (v instanceof Byte || v instanceof Short || v instanceof Integer || v instanceof Long) {
+                putByte(T_INT);
+                putLong(((Number) v).longValue());
+            } else if (v instanceof Character) {
+                putByte(T_STRING);
+                putString(String.valueOf(v));
+            } else if (v instanceof String) {
+                putByte(T_STRING);
+                putString((String) v);
+            } else if (v instanceof LocalDate) {
+                putByte(T_DATE);
+                putLong(((LocalDate) v).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli());
+            } else if (v instanceof Instant) {
+                putByte(T_DATETIME);
+                putLong(((Instant) v).toEpochMilli());
+            } else if (v instanceof Bytes) {
+                putByte(T_BYTES);
+                putEscaped(((Bytes) v).getBytes());
+            } else if (v instanceof byte[]) {
+                putByte(T_BYTES);
+                putEscaped((byte[]) v);
+            } else {
+                throw new IllegalStateException("Cannot convert " + v.getClass() + " to binary");
+            }
+            return this;
+        }
 
-        } catch (final IOException e) {
-            throw new UncheckedIOException(e);
+        private void release() {
+
+            if (buffer.length > MAX_RETAINED_CAPACITY) {
+                buffer = new byte[DEFAULT_CAPACITY];
+            }
+            length = 0;
         }
-    }
 
-    private static byte[] dateBytes(final LocalDate v) {
+        private void ensure(final int additional) {
 
-        return datetimeBytes(v.atStartOfDay().toInstant(ZoneOffset.UTC));
-    }
+            final int required = length + additional;
+            if (required > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+            }
+        }
 
-    private static byte[] datetimeBytes(final Instant v) {
+        private void putByte(final int b) {
 
-        return longBytes(v.toEpochMilli());
-    }
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
 
-    private static byte[] longBytes(final Number v) {
+        private void putLong(final long v) {
 
-        final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-        buffer.putLong(v.longValue());
-        return buffer.array();
-    }
+            ensure(Long.BYTES);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (v >>> shift);
+            }
+        }
 
-    private static byte[] stringBytes(final String str) throws IOException {
+        // Byte values at or below the escape code (signed, so including every byte >= 0x80) are escaped
 
-        return genericBytes(str.getBytes(Charsets.UTF_8));
-    }
+        private void putEscapedByte(final byte b) {
 
-    private static byte[] genericBytes(final byte[] bytes) throws IOException {
+            if (b <= T_ESCAPE) {
+                buffer[length++] = T_ESCAPE;
+            }
+            buffer[length++] = b;
+        }
 
-        try(final ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+        private void putEscaped(final byte[] bytes) {
 
-            for(final byte b : bytes) {
-                if(b <= T_ESCAPE) {
-                    baos.write(T_ESCAPE);
+            ensure(bytes.length * 2);
+            for (final byte b : bytes) {
+                putEscapedByte(b);
+            }
+        }
+
+        // Equivalent to escaping String.getBytes(UTF_8), including '?' for unpaired surrogates
+
+        private void putString(final String str) {
+
+            final int count = str.length();
+            ensure(count * 6);
+            for (int i = 0; i < count; ++i) {
+                final char c = str.charAt(i);
+                if (c < 0x80) {
+                    putEscapedByte((byte) c);
+                } else if (c < 0x800) {
+                    putEscapedByte((byte) (0xC0 | (c >> 6)));
+                    putEscapedByte((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(str.charAt(i + 1))) {
+                        final int cp = Character.toCodePoint(c, str.charAt(++i));
+                        putEscapedByte((byte) (0xF0 | (cp >> 18)));
+                        putEscapedByte((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                        putEscapedByte((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                        putEscapedByte((byte) (0x80 | (cp & 0x3F)));
+                    } else {
+                        putEscapedByte((byte) '?');
+                    }
+                } else {
+                    putEscapedByte((byte) (0xE0 | (c >> 12)));
+                    putEscapedByte((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    putEscapedByte((byte) (0x80 | (c & 0x3F)));
                 }
-                baos.write(b);
             }
-            return baos.toByteArray();
         }
     }
-}
\ No newline at end of file
+}
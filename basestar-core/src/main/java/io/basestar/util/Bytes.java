@@ -22,6 +22,11 @@ public class Bytes implements Serializable, Comparable<Bytes> {
         this.bytes = Arrays.copyOf(bytes, bytes.length);
     }
 
+    Bytes(final byte[] bytes, final boolean copy) {
+
+        this.bytes = copy ? Arrays.copyOf(bytes, bytes.length) : bytes;
+    }
+
     public static Bytes empty() {
 
         return EMPTY;
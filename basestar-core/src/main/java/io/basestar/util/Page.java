@@ -42,7 +42,9 @@ public class Page<T> extends AbstractList<T> implements Serializable {
 
     public enum Stat {
         TOTAL("total"),
-        APPROX_TOTAL("approxTotal", "approx-total");
+        APPROX_TOTAL("approxTotal", "approx-total"),
+        // Rows read from storage vs rows returned after residual filtering
+        SCANNED("scanned");
 
         public static final char MULTIPLE_DELIMITER = ',';
 
@@ -71,6 +73,7 @@ public class Page<T> extends AbstractList<T> implements Serializable {
 
     @Data
     @With
+    @AllArgsConstructor
     public static class Stats implements Serializable {
 
         public static final Stats ZERO = new Stats(0L, 0L);
@@ -81,9 +84,21 @@ public class Page<T> extends AbstractList<T> implements Serializable {
 
         private final Long total;
 
+        // True if approxTotal is an estimate rather than an exact count
+        private final Boolean estimated;
+
+        private final Long scanned;
+
+        private final Long returned;
+
+        public Stats(final Long approxTotal, final Long total) {
+
+            this(approxTotal, total, null, null, null);
+        }
+
         public static Stats fromApproxTotal(final long approxTotal) {
 
-            return new Stats(approxTotal, null);
+            return new Stats(approxTotal, null, true, null, null);
         }
 
         public static Stats fromTotal(final long total) {
@@ -97,11 +112,17 @@ public class Page<T> extends AbstractList<T> implements Serializable {
             if (a == null || b == null) {
                 return NULL;
             } else {
-                final Long total = (a.total == null || b.total == null) ? null : a.total + b.total;
-                final Long approxTotal = total != null ? total : ((a.approxTotal == null || b.approxTotal == null) ? null : a.approxTotal + b.approxTotal);
-                return new Stats(approxTotal, total);
+                final Long total = sum(a.total, b.total);
+                final Long approxTotal = total != null ? total : sum(a.approxTotal, b.approxTotal);
+                final Boolean estimated = total == null && (Boolean.TRUE.equals(a.estimated) || Boolean.TRUE.equals(b.estimated)) ? true : null;
+                return new Stats(approxTotal, total, estimated, sum(a.scanned, b.scanned), sum(a.returned, b.returned));
             }
         }
+
+        private static Long sum(final Long a, final Long b) {
+
+            return (a == null || b == null) ? null : a + b;
+        }
     }
 
     private final List<T> items;
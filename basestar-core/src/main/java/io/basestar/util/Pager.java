@@ -23,8 +23,6 @@ package io.basestar.util;
 import com.google.common.collect.ImmutableList;
 import lombok.Data;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
-import lombok.With;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
@@ -33,7 +31,6 @@ import java.util.concurrent.CompletableFuture;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * Assumes inputs are already sorted.
@@ -99,134 +96,242 @@ public interface Pager<T> {
         return (stats, token, count) -> page(stats, token, count).thenApply(page -> page.map(fn));
     }
 
+    /**
+     * Read ahead up to depth pages, the returned pager should be closed (cancelling outstanding reads) when done.
+     */
+
+    default Prefetching<T> prefetching(final int depth) {
+
+        return new Prefetching<>(this, depth);
+    }
+
     static <T> Pager<T> merge(final Comparator<? super T> comparator, final Map<String, Pager<T>> pagers) {
 
         return (stats, token, count) -> new Merge<>(comparator, pagers, stats, token).page(count);
     }
 
-    class Merge<T> {
+    /**
+     * Read-ahead pager, when a page is returned the following pages (up to depth) are already being read.
+     *
+     * At most depth pages are held (or in flight) at once, a request for a page that was not prefetched means the
+     * caller has moved elsewhere so any outstanding reads are dropped.
+     */
 
-        // Never read less than this count per source, prevents lots of tiny reads that may otherwise result in trims
-        private static final int DEFAULT_BUFFER = 10;
+    class Prefetching<T> implements Pager<T>, AutoCloseable {
 
-        // Aggressive trimming
-        private static final int TRIM_BUFFER = DEFAULT_BUFFER;
+        private final Pager<T> delegate;
 
-        private final Comparator<? super T> comparator;
+        private final int depth;
 
-        private List<State<T>> states;
+        private final Map<PrefetchKey, CompletableFuture<Page<T>>> pending = new HashMap<>();
 
-        private Page.Stats stats;
+        private boolean closed;
 
-        public Merge(final Comparator<? super T> comparator, final Map<String, Pager<T>> sources, final Page.Token paging) {
+        public Prefetching(final Pager<T> delegate, final int depth) {
 
-            this(comparator, sources, EnumSet.noneOf(Page.Stat.class), paging);
+            if (depth < 1) {
+                throw new IllegalArgumentException("Prefetch depth must be at least 1");
+            }
+            this.delegate = Nullsafe.require(delegate);
+            this.depth = depth;
         }
 
-        public Merge(final Comparator<? super T> comparator, final Map<String, Pager<T>> sources, final Set<Page.Stat> stats, final Page.Token paging) {
+        @Override
+        public CompletableFuture<Page<T>> page(final Set<Page.Stat> stats, final Page.Token token, final int count) {
 
-            this.comparator = Nullsafe.require(comparator);
-            this.states = decodeStates(sources, stats.isEmpty() ? EnumSet.noneOf(Page.Stat.class) : EnumSet.copyOf(stats), paging);
+            CompletableFuture<Page<T>> future;
+            synchronized (this) {
+                future = pending.remove(new PrefetchKey(stats, token, count));
+                if (future == null) {
+                    cancelPending();
+                }
+            }
+            if (future == null || future.isCompletedExceptionally()) {
+                future = delegate.page(stats, token, count);
+            }
+            return future.thenApply(page -> {
+                prefetch(stats, page.getPaging(), count, depth);
+                return page;
+            });
         }
 
-        public CompletableFuture<Page<T>> page(final int count) {
+        private void prefetch(final Set<Page.Stat> stats, final Page.Token token, final int count, final int remaining) {
 
-            return pageInternal(count)
-                    .thenApply(page -> new Page<>(page, encodeStates(states), stats));
+            if (token == null || remaining == 0) {
+                return;
+            }
+            final PrefetchKey key = new PrefetchKey(stats, token, count);
+            CompletableFuture<Page<T>> future;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                future = pending.get(key);
+                if (future == null) {
+                    if (pending.size() >= depth) {
+                        return;
+                    }
+                    future = delegate.page(stats, token, count);
+                    pending.put(key, future);
+                }
+            }
+            future.thenAccept(page -> prefetch(stats, page.getPaging(), count, remaining - 1));
         }
 
-        private CompletableFuture<List<T>> pageInternal(final int count) {
+        private void cancelPending() {
 
-            final int buffer = Math.max(count, DEFAULT_BUFFER);
-            if (count == 0) {
-                return CompletableFuture.completedFuture(Collections.emptyList());
-            } else if (count == 1) {
-                return next(buffer).thenApply(head -> {
-                    if (head == null) {
-                        return Collections.emptyList();
-                    } else {
-                        return Collections.singletonList(head);
-                    }
-                });
-            } else {
-                return next(buffer).thenCompose(head -> {
-                    if (head == null) {
-                        return CompletableFuture.completedFuture(Collections.emptyList());
-                    } else {
-                        return pageInternal(count - 1)
-                                .thenApply(rest -> ImmutableList.<T>builder()
-                                        .add(head)
-                                        .addAll(rest)
-                                        .build());
-                    }
-                });
-            }
+            pending.values().forEach(future -> future.cancel(false));
+            pending.clear();
         }
 
-        private CompletableFuture<T> next(final int buffer) {
+        @Override
+        public synchronized void close() {
 
-            final List<CompletableFuture<State<T>>> futures = states.stream()
-                    .map(state -> state.next(buffer))
-                    .collect(Collectors.toList());
+            closed = true;
+            cancelPending();
+        }
 
-            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
-                    .thenCompose(ignored -> {
+        @Data
+        private static class PrefetchKey {
 
-                        final List<State<T>> states = futures.stream()
-                                .map(v -> v.getNow(null))
-                                .collect(Collectors.toList());
+            private final Set<Page.Stat> stats;
 
-                        if (stats == null) {
-                            stats = states.stream().map(State::getPage).filter(Objects::nonNull)
-                                    .map(Page::getStats).map(v -> v != null ? v : Page.Stats.NULL)
-                                    .reduce(Page.Stats::sum).orElse(Page.Stats.NULL);
-                        }
+            private final Page.Token token;
 
-                        final Stream<State<T>> next = states.stream().filter(State::hasNext);
+            private final int count;
+        }
+    }
 
-                        // FIXME: reimplement to be guaranteed stable min
-                        final Optional<State<T>> first = comparator == null ? next.findFirst()
-                                : next.min((a, b) -> comparator.compare(a.peek(), b.peek()));
+    /**
+     * K-way merge of sorted pagers.
+     *
+     * Source cursors are kept in a priority queue ordered by their head value (ties are broken by source order, so
+     * output is stable), a page is produced in a single pass and a source is only re-read when its buffer drains.
+     *
+     * The page token is the concatenation of each source's own token plus the offset into the page read from it.
+     */
 
-                        if (first.isPresent()) {
+    class Merge<T> {
 
-                            final T result = first.get().peek();
+        // Never read less than this count per source, prevents lots of tiny reads
+        private static final int DEFAULT_BUFFER = 10;
 
-                            final List<CompletableFuture<State<T>>> trimFutures = states.stream()
-                                    .map(v -> v.trim(comparator, result))
-                                    .collect(Collectors.toList());
+        private final Comparator<? super T> comparator;
 
-                            return CompletableFuture.allOf(trimFutures.toArray(new CompletableFuture<?>[0]))
-                                    .thenApply(ignored2 -> {
+        private final Page.Token paging;
 
-                                        this.states = trimFutures.stream()
-                                                .map(v -> v.getNow(null))
-                                                .collect(Collectors.toList());
+        private final List<Cursor<T>> cursors;
 
-                                        return result;
-                                    });
+        private Page.Stats stats;
 
-                        } else {
+        public Merge(final Comparator<? super T> comparator, final Map<String, Pager<T>> sources, final Page.Token paging) {
 
-                            this.states = Collections.emptyList();
-                            return CompletableFuture.completedFuture(null);
-                        }
-                    });
+            this(comparator, sources, EnumSet.noneOf(Page.Stat.class), paging);
         }
 
+        public Merge(final Comparator<? super T> comparator, final Map<String, Pager<T>> sources, final Set<Page.Stat> stats, final Page.Token paging) {
 
-        @Data
-        @With
-        private static class OffsetToken {
+            this.comparator = Nullsafe.require(comparator);
+            this.paging = paging;
+            this.cursors = decodeCursors(sources, stats.isEmpty() ? EnumSet.noneOf(Page.Stat.class) : EnumSet.copyOf(stats), paging);
+        }
 
-            private final Page.Token paging;
+        public CompletableFuture<Page<T>> page(final int count) {
 
-            private final int offset;
+            if (count <= 0) {
+                return CompletableFuture.completedFuture(new Page<>(Collections.emptyList(), paging));
+            }
+            final int buffer = Math.max(count, DEFAULT_BUFFER);
+            final List<CompletableFuture<Void>> futures = cursors.stream()
+                    .map(cursor -> cursor.init(buffer))
+                    .collect(Collectors.toList());
+            return CompletableFutures.allOf(futures).thenCompose(ignored -> {
+                stats = cursors.stream().map(Cursor::getPage)
+                        .map(Page::getStats).map(v -> v != null ? v : Page.Stats.NULL)
+                        .reduce(Page.Stats::sum).orElse(Page.Stats.NULL);
+                final Run run = new Run(count, buffer);
+                return run.next().thenApply(items -> new Page<>(items, encodeCursors(cursors), stats));
+            });
+        }
+
+        private class Run {
+
+            private final int count;
+
+            private final int buffer;
+
+            private final List<T> items;
+
+            private final PriorityQueue<Cursor<T>> heap;
+
+            private final List<Cursor<T>> drained = new ArrayList<>();
+
+            private Run(final int count, final int buffer) {
+
+                this.count = count;
+                this.buffer = buffer;
+                this.items = new ArrayList<>(count);
+                this.heap = new PriorityQueue<>(Math.max(1, cursors.size()), (a, b) -> {
+                    final int cmp = comparator.compare(a.peek(), b.peek());
+                    return cmp == 0 ? Integer.compare(a.getIndex(), b.getIndex()) : cmp;
+                });
+                cursors.forEach(this::offer);
+            }
+
+            private void offer(final Cursor<T> cursor) {
+
+                if (cursor.hasBuffered()) {
+                    heap.add(cursor);
+                } else if (cursor.hasMore()) {
+                    drained.add(cursor);
+                }
+            }
+
+            private CompletableFuture<List<T>> next() {
+
+                while (true) {
+                    if (!drained.isEmpty()) {
+                        // Every source must have a buffered head (or be exhausted) before the min can be taken
+                        final T last = items.isEmpty() ? null : items.get(items.size() - 1);
+                        final List<Cursor<T>> refill = new ArrayList<>(drained);
+                        drained.clear();
+                        final CompletableFuture<?> future = CompletableFutures.allOf(refill.stream()
+                                .map(cursor -> cursor.refill(comparator, last, buffer))
+                                .collect(Collectors.toList()));
+                        if (future.isDone() && !future.isCompletedExceptionally()) {
+                            refill.forEach(this::offer);
+                        } else {
+                            return future.thenCompose(ignored -> {
+                                refill.forEach(this::offer);
+                                return next();
+                            });
+                        }
+                    } else if (items.size() >= count) {
+                        return CompletableFuture.completedFuture(Immutable.list(items));
+                    } else {
+                        final Cursor<T> head = heap.poll();
+                        if (head == null) {
+                            return CompletableFuture.completedFuture(Immutable.list(items));
+                        }
+                        final T value = head.peek();
+                        items.add(value);
+                        // De-duplicate, equal values are at the top of the heap
+                        head.skip(comparator, value);
+                        offer(head);
+                        while (!heap.isEmpty() && comparator.compare(heap.peek().peek(), value) == 0) {
+                            final Cursor<T> equal = heap.poll();
+                            equal.skip(comparator, value);
+                            offer(equal);
+                        }
+                    }
+                }
+            }
         }
 
         @Getter
-        @RequiredArgsConstructor
-        public static class State<T> {
+        private static class Cursor<T> {
+
+            private final int index;
 
             private final String id;
 
@@ -234,83 +339,93 @@ public interface Pager<T> {
 
             private final Set<Page.Stat> stats;
 
-            @With
-            private final OffsetToken paging;
+            // Token used to read the current page
+            private Page.Token paging;
 
-            @With
-            private final Page<T> page;
+            private int offset;
 
-            public CompletableFuture<State<T>> next(final int buffer) {
+            private Page<T> page;
 
-                if (this.page == null) {
-                    return source.page(stats, paging.getPaging(), buffer)
-                            .thenCompose(page -> next(buffer, page));
-                } else {
-                    return next(buffer, page);
-                }
+            private Cursor(final int index, final String id, final Pager<T> source, final Set<Page.Stat> stats,
+                           final Page.Token paging, final int offset, final Page<T> page) {
+
+                this.index = index;
+                this.id = id;
+                this.source = source;
+                this.stats = stats;
+                this.paging = paging;
+                this.offset = offset;
+                this.page = page;
             }
 
-            private CompletableFuture<State<T>> next(final int buffer, final Page<T> page) {
+            public CompletableFuture<Void> init(final int buffer) {
 
-                if (paging.getOffset() >= page.size() && page.hasMore()) {
-                    final Page.Token paging = page.getPaging();
-                    final State<T> paged = withPaging(new OffsetToken(paging, 0));
-                    return source.page(stats, paging, buffer)
-                            .thenCompose(next -> paged.next(buffer, next));
-                } else {
-                    return CompletableFuture.completedFuture(this.withPage(page));
+                if (page != null) {
+                    return CompletableFuture.completedFuture(null);
                 }
+                // Read past the offset so that a resumed page isn't cut short by a smaller count
+                return source.page(stats, paging, offset + buffer).thenAccept(page -> this.page = page);
             }
 
-            public boolean hasNext() {
+            public boolean hasBuffered() {
 
-                return !(page == null || (paging.getOffset() >= page.size() && !page.hasMore()));
+                return offset < page.size();
+            }
+
+            public boolean hasMore() {
+
+                return hasBuffered() || page.hasMore();
             }
 
             public T peek() {
 
-                return page == null || paging.getOffset() >= page.size() ? null : page.get(paging.getOffset());
+                return page.get(offset);
             }
 
-            public CompletableFuture<State<T>> trim(final Comparator<? super T> comparator, final T value) {
+            public void skip(final Comparator<? super T> comparator, final T value) {
 
-                if (page != null && comparator != null) {
-                    int offset = paging.getOffset();
-                    while (offset < page.size() && comparator.compare(page.get(offset), value) == 0) {
-                        ++offset;
-                    }
-                    if (offset != paging.getOffset()) {
-                        final State<T> offsetState = this.withPaging(paging.withOffset(offset));
-                        if (offset >= page.size() && page.hasMore()) {
-                            return offsetState.next(TRIM_BUFFER).thenCompose(next -> next.trim(comparator, value));
-                        } else {
-                            return CompletableFuture.completedFuture(offsetState);
+                while (offset < page.size() && comparator.compare(page.get(offset), value) == 0) {
+                    ++offset;
+                }
+            }
+
+            // Read the next page, skipping any values equal to the last output value
+
+            public CompletableFuture<Void> refill(final Comparator<? super T> comparator, final T last, final int buffer) {
+
+                final Page.Token next = page.getPaging();
+                return source.page(stats, next, buffer).thenCompose(page -> {
+                    this.paging = next;
+                    this.offset = 0;
+                    this.page = page;
+                    if (last != null) {
+                        skip(comparator, last);
+                        if (!hasBuffered() && page.hasMore()) {
+                            return refill(comparator, last, buffer);
                         }
                     }
-                }
-                return CompletableFuture.completedFuture(this);
+                    return CompletableFuture.completedFuture(null);
+                });
             }
 
             public void encode(final DataOutputStream dos) throws IOException {
 
-                if (hasNext()) {
+                if (page == null || hasMore()) {
                     dos.writeByte(0);
-                    final OffsetToken offset = getPaging();
-                    final Page.Token token = offset.getPaging();
-                    if (token == null) {
+                    if (paging == null) {
                         dos.writeShort(0);
                     } else {
-                        final byte[] bytes = token.getValue();
+                        final byte[] bytes = paging.getValue();
                         dos.writeShort(bytes.length);
                         dos.write(bytes);
                     }
-                    dos.writeShort(offset.getOffset());
+                    dos.writeShort(offset);
                 } else {
                     dos.writeByte(1);
                 }
             }
 
-            public static <T> State<T> decode(final String id, final Pager<T> source, final Set<Page.Stat> stats, final DataInputStream dis) throws IOException {
+            public static <T> Cursor<T> decode(final int index, final String id, final Pager<T> source, final Set<Page.Stat> stats, final DataInputStream dis) throws IOException {
 
                 final byte flag = dis.readByte();
                 if (flag == 0) {
@@ -318,32 +433,31 @@ public interface Pager<T> {
                     final int len = dis.readShort();
                     if (len > 0) {
                         final byte[] bytes = new byte[len];
-                        final int read = dis.read(bytes);
-                        assert (read == len);
+                        dis.readFully(bytes);
                         token = new Page.Token(bytes);
                     } else {
                         token = null;
                     }
                     final int offset = dis.readUnsignedShort();
-                    return new State<>(id, source, stats, new OffsetToken(token, offset), null);
+                    return new Cursor<>(index, id, source, stats, token, offset, null);
                 } else {
-                    return new State<>(id, source, stats, new OffsetToken(null, 0), Page.empty());
+                    return new Cursor<>(index, id, source, stats, null, 0, Page.empty());
                 }
             }
 
-            public static <T> State<T> create(final String id, final Pager<T> source, final Set<Page.Stat> stats) {
+            public static <T> Cursor<T> create(final int index, final String id, final Pager<T> source, final Set<Page.Stat> stats) {
 
-                return new State<>(id, source, stats, new OffsetToken(null, 0), null);
+                return new Cursor<>(index, id, source, stats, null, 0, null);
             }
         }
 
-        private static <T> List<State<T>> decodeStates(final Map<String, Pager<T>> sources, final Set<Page.Stat> stats, final Page.Token paging) {
+        private static <T> List<Cursor<T>> decodeCursors(final Map<String, Pager<T>> sources, final Set<Page.Stat> stats, final Page.Token paging) {
 
-            final List<State<T>> result = new ArrayList<>();
+            final List<Cursor<T>> result = new ArrayList<>();
 
             if (paging == null) {
 
-                sources.forEach((id, source) -> result.add(State.create(id, source, stats)));
+                sources.forEach((id, source) -> result.add(Cursor.create(result.size(), id, source, stats)));
 
             } else {
 
@@ -364,7 +478,7 @@ public interface Pager<T> {
                                 throw new IllegalStateException("Page token not recognised: " + key);
                             } else {
                                 seenKeys.add(key);
-                                result.add(State.decode(key, source, stats, dis));
+                                result.add(Cursor.decode(result.size(), key, source, stats, dis));
                             }
                         }
                     }
@@ -380,23 +494,23 @@ public interface Pager<T> {
             return result;
         }
 
-        private static <T> Page.Token encodeStates(final List<State<T>> states) {
+        private static <T> Page.Token encodeCursors(final List<Cursor<T>> cursors) {
 
-            if(states.isEmpty()) {
+            if(cursors.stream().noneMatch(cursor -> cursor.getPage() == null || cursor.hasMore())) {
                 return null;
             }
             try (final ByteArrayOutputStream baos = new ByteArrayOutputStream();
                  final DataOutputStream dos = new DataOutputStream(baos)) {
 
-                for (final State<T> state : states) {
-                    final byte[] keyBytes = state.getId().getBytes(StandardCharsets.UTF_8);
+                for (final Cursor<T> cursor : cursors) {
+                    final byte[] keyBytes = cursor.getId().getBytes(StandardCharsets.UTF_8);
                     final int keyLength = keyBytes.length;
                     if (keyLength > Character.MAX_VALUE) {
                         throw new IllegalStateException("Page token key too long");
                     }
                     dos.writeChar(keyLength);
                     dos.write(keyBytes);
-                    state.encode(dos);
+                    cursor.encode(dos);
                 }
                 dos.writeChar(0);
 
@@ -2,10 +2,19 @@ package io.basestar.util;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
 import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -65,4 +74,217 @@ class TestBinaryKey {
         ));
         assertTrue(a.compareTo(b) < 0);
     }
+
+    @Test
+    void testWriterMatchesLegacyEncoding() {
+
+        final Random random = new Random(0);
+        for(int i = 0; i != 10000; ++i) {
+            final List<Object> keys = randomKeys(random);
+            assertArrayEquals(legacyBytes(keys), BinaryKey.from(keys).getBytes(), keys.toString());
+        }
+
+        // Reused writer
+        final BinaryKey.Writer writer = new BinaryKey.Writer(1);
+        for(int i = 0; i != 100; ++i) {
+            final List<Object> keys = randomKeys(random);
+            assertArrayEquals(legacyBytes(keys), writer.reset().writeAll(keys).toByteArray());
+        }
+
+        final BinaryKey key = BinaryKey.from(ImmutableList.of("a"));
+        assertArrayEquals(new byte[]{BinaryKey.T_STRING, 'a', 0}, key.lo().getBytes());
+        assertArrayEquals(new byte[]{BinaryKey.T_STRING, 'a', 127}, key.hi().getBytes());
+        assertArrayEquals(new byte[]{BinaryKey.T_STRING, 'a', BinaryKey.T_STRING, 'a'}, key.concat(key).getBytes());
+    }
+
+    @Test
+    void testCompareUnsigned() {
+
+        final Random random = new Random(0);
+        for(int i = 0; i != 10000; ++i) {
+            final byte[] a = randomBytes(random, 12);
+            final byte[] b = random.nextBoolean() ? randomBytes(random, 12) : Arrays.copyOf(a, random.nextInt(13));
+            assertEquals(Integer.signum(legacyCompareUnsigned(a, b)), Integer.signum(BinaryKey.compareUnsigned(a, b)));
+            assertEquals(legacyStartsWith(a, b), BinaryKey.startsWith(a, b));
+        }
+        // Bytes above 0x7F sort after ASCII
+        assertTrue(BinaryKey.compareUnsigned(new byte[]{(byte)0x80}, new byte[]{0x7F}) > 0);
+        assertTrue(BinaryKey.compareUnsigned(new byte[]{1}, new byte[]{1, 0}) < 0);
+    }
+
+    // Rough benchmark against the legacy encoding and comparison, excluded from the default test run
+
+    @Test
+    @Tag("benchmark")
+    void testBenchmark() {
+
+        final Random random = new Random(0);
+        final List<List<Object>> keys = new ArrayList<>();
+        for(int i = 0; i != 20000; ++i) {
+            keys.add(ImmutableList.of("partition-" + random.nextInt(100), random.nextLong(), "sort value " + random.nextInt()));
+        }
+        final List<byte[]> encoded = new ArrayList<>();
+        keys.forEach(k -> encoded.add(BinaryKey.from(k).getBytes()));
+        for(int run = 0; run != 5; ++run) {
+            long sink = 0;
+            long start = System.nanoTime();
+            for(final List<Object> k : keys) {
+                sink += legacyBytes(k).length;
+            }
+            final long legacyEncode = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(final List<Object> k : keys) {
+                sink += BinaryKey.from(k).length();
+            }
+            final long encode = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(int i = 1; i != encoded.size(); ++i) {
+                sink += legacyCompareUnsigned(encoded.get(i - 1), encoded.get(i));
+            }
+            final long legacyCompare = System.nanoTime() - start;
+            start = System.nanoTime();
+            for(int i = 1; i != encoded.size(); ++i) {
+                sink += BinaryKey.compareUnsigned(encoded.get(i - 1), encoded.get(i));
+            }
+            final long compare = System.nanoTime() - start;
+            System.out.println("Encode " + keys.size() + " keys: legacy " + (legacyEncode / 1000) + "us, writer " + (encode / 1000)
+                    + "us; compare: loop " + (legacyCompare / 1000) + "us, unsigned " + (compare / 1000) + "us (" + sink + ")");
+        }
+    }
+
+    private static List<Object> randomKeys(final Random random) {
+
+        final List<Object> keys = new ArrayList<>();
+        final int count = random.nextInt(5);
+        for(int i = 0; i != count; ++i) {
+            switch (random.nextInt(9)) {
+                case 0:
+                    keys.add(null);
+                    break;
+                case 1:
+                    keys.add(random.nextBoolean());
+                    break;
+                case 2:
+                    keys.add(random.nextLong());
+                    break;
+                case 3:
+                    keys.add(random.nextInt());
+                    break;
+                case 4:
+                    keys.add(randomString(random));
+                    break;
+                case 5:
+                    keys.add((char)random.nextInt(Character.MAX_VALUE + 1));
+                    break;
+                case 6:
+                    keys.add(LocalDate.ofEpochDay(random.nextInt(100000) - 50000));
+                    break;
+                case 7:
+                    keys.add(Instant.ofEpochMilli(random.nextLong() / 1000));
+                    break;
+                default:
+                    keys.add(random.nextBoolean() ? randomBytes(random, 20) : new Bytes(randomBytes(random, 20)));
+                    break;
+            }
+        }
+        return keys;
+    }
+
+    private static String randomString(final Random random) {
+
+        final StringBuilder str = new StringBuilder();
+        final int length = random.nextInt(20);
+        for(int i = 0; i != length; ++i) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    str.append((char)random.nextInt(0x80));
+                    break;
+                case 1:
+                    str.append((char)random.nextInt(0x800));
+                    break;
+                case 2:
+                    str.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+                default:
+                    // Includes unpaired surrogates
+                    str.append((char)random.nextInt(Character.MAX_VALUE + 1));
+                    break;
+            }
+        }
+        return str.toString();
+    }
+
+    private static byte[] randomBytes(final Random random, final int maxLength) {
+
+        final byte[] bytes = new byte[random.nextInt(maxLength + 1)];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Previous implementation, kept as a reference for the encoding format and for benchmarking
+
+    private static byte[] legacyBytes(final List<?> keys) {
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (final Object v : keys) {
+            if (v == null) {
+                baos.write(BinaryKey.T_NULL);
+            } else if (v instanceof Boolean) {
+                baos.write(((Boolean) v) ? BinaryKey.T_TRUE : BinaryKey.T_FALSE);
+            } else if (v instanceof Integer || v instanceof Long) {
+                baos.write(BinaryKey.T_INT);
+                baos.write(legacyLong(((Number) v).longValue()), 0, Long.BYTES);
+            } else if (v instanceof Character || v instanceof String) {
+                baos.write(BinaryKey.T_STRING);
+                final byte[] bytes = legacyGeneric(v.toString().getBytes(StandardCharsets.UTF_8));
+                baos.write(bytes, 0, bytes.length);
+            } else if (v instanceof LocalDate) {
+                baos.write(BinaryKey.T_DATE);
+                baos.write(legacyLong(((LocalDate) v).atStartOfDay().toInstant(ZoneOffset.UTC).toEpochMilli()), 0, Long.BYTES);
+            } else if (v instanceof Instant) {
+                baos.write(BinaryKey.T_DATETIME);
+                baos.write(legacyLong(((Instant) v).toEpochMilli()), 0, Long.BYTES);
+            } else {
+                baos.write(BinaryKey.T_BYTES);
+                final byte[] bytes = legacyGeneric(v instanceof Bytes ? ((Bytes) v).getBytes() : (byte[]) v);
+                baos.write(bytes, 0, bytes.length);
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] legacyLong(final long v) {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+        buffer.putLong(v);
+        return buffer.array();
+    }
+
+    private static byte[] legacyGeneric(final byte[] bytes) {
+
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for(final byte b : bytes) {
+            if(b <= BinaryKey.T_ESCAPE) {
+                baos.write(BinaryKey.T_ESCAPE);
+            }
+            baos.write(b);
+        }
+        return baos.toByteArray();
+    }
+
+    private static int legacyCompareUnsigned(final byte[] a, final byte[] b) {
+
+        for(int i = 0; i != Math.min(a.length, b.length); ++i) {
+            final int compare = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if(compare != 0) {
+                return compare;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    private static boolean legacyStartsWith(final byte[] key, final byte[] prefix) {
+
+        return key.length >= prefix.length && Arrays.equals(Arrays.copyOf(key, prefix.length), prefix);
+    }
 }
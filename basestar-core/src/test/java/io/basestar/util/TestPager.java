@@ -4,10 +4,10 @@ import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
-import java.util.Comparator;
-import java.util.EnumSet;
+import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
@@ -91,4 +91,123 @@ class TestPager {
         assertEquals(Lists.newArrayList(13, 14, 15), page5.getItems());
         assertNull(page5.getPaging());
     }
+
+    private static Pager<Integer> source(final List<Integer> data) {
+
+        return (stats, token, count) -> {
+            final int offset = token == null ? 0 : token.getLongValue().intValue();
+            final int end = Math.min(offset + count, data.size());
+            final Page.Token next = end < data.size() ? Page.Token.fromLongValue((long) end) : null;
+            return CompletableFuture.completedFuture(new Page<>(data.subList(offset, end), next));
+        };
+    }
+
+    // Random overlapping sources, paged through with random counts, must produce the sorted distinct union
+
+    @Test
+    void testMergeManySources() {
+
+        final Random random = new Random(0);
+        for(int iter = 0; iter != 100; ++iter) {
+            final Map<String, Pager<Integer>> sources = new HashMap<>();
+            final SortedSet<Integer> expected = new TreeSet<>();
+            final int sourceCount = 1 + random.nextInt(20);
+            for(int i = 0; i != sourceCount; ++i) {
+                final List<Integer> data = new ArrayList<>();
+                final int size = random.nextInt(50);
+                for(int j = 0; j != size; ++j) {
+                    data.add(random.nextInt(100));
+                }
+                Collections.sort(data);
+                expected.addAll(data);
+                sources.put("s" + i, source(data));
+            }
+            final Pager<Integer> pager = Pager.merge(Comparator.naturalOrder(), sources);
+            final List<Integer> actual = new ArrayList<>();
+            Page.Token token = null;
+            do {
+                final Page<Integer> page = pager.page(token, 1 + random.nextInt(20)).join();
+                actual.addAll(page.getItems());
+                token = page.getPaging();
+            } while(token != null);
+            assertEquals(new ArrayList<>(expected), actual);
+        }
+    }
+
+    // Rough benchmark, 500 row pages over 20 sources (e.g. a wide disjunction), excluded from the default test run
+
+    @Test
+    @Tag("benchmark")
+    void testMergeBenchmark() {
+
+        final int sourceCount = 20;
+        final int rows = 20000;
+        final Map<String, Pager<Integer>> sources = new HashMap<>();
+        for(int i = 0; i != sourceCount; ++i) {
+            final List<Integer> data = new ArrayList<>();
+            for(int j = i; j < rows; j += sourceCount) {
+                data.add(j);
+            }
+            sources.put("s" + i, source(data));
+        }
+        final Pager<Integer> pager = Pager.merge(Comparator.naturalOrder(), sources);
+        for(int run = 0; run != 5; ++run) {
+            final long start = System.nanoTime();
+            int total = 0;
+            int pages = 0;
+            Page.Token token = null;
+            do {
+                final Page<Integer> page = pager.page(token, 500).join();
+                total += page.size();
+                ++pages;
+                token = page.getPaging();
+            } while(token != null);
+            final long elapsed = System.nanoTime() - start;
+            assertEquals(rows, total);
+            System.out.println("Merged " + total + " rows in " + pages + " pages from " + sourceCount
+                    + " sources in " + (elapsed / 1000000) + "ms");
+        }
+    }
+
+    @Test
+    void testPrefetching() {
+
+        final List<Integer> data = new ArrayList<>();
+        for(int i = 0; i != 100; ++i) {
+            data.add(i);
+        }
+        final List<Page.Token> requested = Collections.synchronizedList(new ArrayList<>());
+        final Pager<Integer> source = source(data);
+        final Pager<Integer> counting = (stats, token, count) -> {
+            requested.add(token);
+            return source.page(stats, token, count);
+        };
+
+        assertThrows(IllegalArgumentException.class, () -> counting.prefetching(0));
+
+        try(final Pager.Prefetching<Integer> pager = counting.prefetching(2)) {
+            final Page<Integer> page1 = pager.page(null, 10).join();
+            assertEquals(data.subList(0, 10), page1.getItems());
+            // Pages 2 and 3 already requested
+            assertEquals(3, requested.size());
+            final Page<Integer> page2 = pager.page(page1.getPaging(), 10).join();
+            assertEquals(data.subList(10, 20), page2.getItems());
+            assertEquals(4, requested.size());
+
+            // Jumping elsewhere drops the read-ahead and reads directly
+            final Page<Integer> other = pager.page(Page.Token.fromLongValue(50L), 10).join();
+            assertEquals(data.subList(50, 60), other.getItems());
+
+            final List<Integer> rest = new ArrayList<>(other.getItems());
+            Page.Token token = other.getPaging();
+            while(token != null) {
+                final Page<Integer> page = pager.page(token, 10).join();
+                rest.addAll(page.getItems());
+                token = page.getPaging();
+            }
+            assertEquals(data.subList(50, 100), rest);
+            // Every page read exactly once after the jump
+            assertEquals(4 + 5, requested.size());
+        }
+    }
 }
@@ -34,7 +34,10 @@ import io.basestar.database.event.*;
 import io.basestar.database.exception.BatchKeyRepeatedException;
 import io.basestar.database.exception.DatabaseReadonlyException;
 import io.basestar.database.options.*;
+import io.basestar.database.util.CallerCache;
+import io.basestar.database.util.CountCache;
 import io.basestar.database.util.ExpandKey;
+import io.basestar.database.util.PermissionEvaluator;
 import io.basestar.database.util.RefKey;
 import io.basestar.event.Emitter;
 import io.basestar.event.Event;
@@ -45,7 +48,6 @@ import io.basestar.expression.Expression;
 import io.basestar.expression.Renaming;
 import io.basestar.expression.constant.Constant;
 import io.basestar.expression.logical.And;
-import io.basestar.expression.logical.Or;
 import io.basestar.schema.*;
 import io.basestar.schema.util.Expander;
 import io.basestar.schema.util.Ref;
@@ -58,6 +60,7 @@ import io.basestar.storage.overlay.OverlayStorage;
 import io.basestar.util.*;
 import lombok.extern.slf4j.Slf4j;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
@@ -73,6 +76,9 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
 
     private final DatabaseMode mode;
 
+    // Permissions compiled from the namespace
+    private final PermissionEvaluator permissions;
+
     private static final Handlers<DatabaseServer> HANDLERS = Handlers.<DatabaseServer>builder()
             .on(ObjectCreatedEvent.class, DatabaseServer::onObjectCreated)
             .on(ObjectUpdatedEvent.class, DatabaseServer::onObjectUpdated)
@@ -84,11 +90,15 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
 
     @lombok.Builder(builderClassName = "Builder")
     protected DatabaseServer(final Namespace namespace, final Storage storage,
-                             final Emitter emitter, final DatabaseMode mode) {
+                             final Emitter emitter, final DatabaseMode mode, final Integer queryScanBudget,
+                             final Duration countCacheTtl, final Duration callerCacheTtl) {
 
-        super(namespace, storage);
+        super(namespace, storage, Nullsafe.orDefault(queryScanBudget, DEFAULT_QUERY_SCAN_BUDGET),
+                Nullsafe.orDefault(countCacheTtl, CountCache.DEFAULT_TTL),
+                Nullsafe.orDefault(callerCacheTtl, CallerCache.DEFAULT_TTL));
         this.emitter = Nullsafe.orDefault(emitter, Emitter::skip);
         this.mode = Nullsafe.orDefault(mode, DatabaseMode.DEFAULT);
+        this.permissions = new PermissionEvaluator(namespace);
     }
 
     @Override
@@ -295,6 +305,7 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
 
                         final Map<String, Instance> results = new HashMap<>();
                         final Set<Event> events = new HashSet<>();
+                        final Set<RefKey> changed = new HashSet<>();
 
                         // Perform writes
                         actions.forEach((name, action) -> {
@@ -308,8 +319,10 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
                                 writeCreate(write, schema, key.getId(), after);
                             } else if (after != null) {
                                 writeUpdate(write, schema, key.getId(), before, after);
+                                changed.add(key);
                             } else {
                                 writeDelete(write, schema, key.getId(), before);
+                                changed.add(key);
                             }
                             if (storage.eventStrategy(schema) == Storage.EventStrategy.EMIT) {
                                 events.add(action.event(before, after));
@@ -326,7 +339,10 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
                         });
 
                         return write.write()
-                                .thenCompose(ignored -> emitter.emit(events))
+                                .thenCompose(ignored -> {
+                                    changed.forEach(key -> callerCache.invalidate(key.getSchema(), key.getId()));
+                                    return emitter.emit(events);
+                                })
                                 .thenApply(ignored -> results);
                     });
 
@@ -519,15 +535,13 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
             rooted = new Constant(true);
         }
 
-        final Expression merged;
+        final Expression bound;
         if (permission != null && !caller.isSuper()) {
-            merged = new And(permission.getExpression(), rooted);
+            bound = new And(permissions.bind(permission, callerKey(caller), () -> ExpandedCaller.getObject(caller)), rooted.bind(context));
         } else {
-            merged = rooted;
+            bound = rooted.bind(context);
         }
 
-        final Expression bound = merged.bind(context);
-
         final List<Sort> sort = Nullsafe.orDefault(options.getSort(), Collections.emptyList());
         final Expression unrooted = bound.bind(Context.init(), Renaming.removeExpectedPrefix(Name.of(Reserved.THIS)));
 
@@ -545,10 +559,9 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
             }
         }
         if (!caller.isSuper() && permission != null) {
-            final Context context = context(caller, scope);
             try {
                 log.debug("Checking permission {}", permission.getExpression());
-                if (permission.getExpression().evaluatePredicate(context)) {
+                if (permissions.evaluate(permission, callerKey(caller), () -> ExpandedCaller.getObject(caller), scope)) {
                     return;
                 }
             } catch (final Exception e) {
@@ -558,6 +571,13 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
         }
     }
 
+    // Permissions bound to an expanded caller are reused while its object is live (shared through the caller cache)
+
+    private static Object callerKey(final Caller caller) {
+
+        return caller instanceof ExpandedCaller ? ((ExpandedCaller)caller).getObject() : caller;
+    }
+
     private Context context(final Caller caller) {
 
         return context(caller, ImmutableMap.of());
@@ -586,6 +606,7 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
         final long version = event.getVersion();
         final Map<String, Object> before = event.getBefore();
         final Map<String, Object> after = event.getAfter();
+        callerCache.invalidate(schema.getQualifiedName(), id);
         return storage.afterUpdate(schema, id, version, before, after)
                 .thenCompose(events -> emitter.emit(Immutable.addAll(events, refQueryEvents(schema, id))));
     }
@@ -596,6 +617,7 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
         final String id = event.getId();
         final long version = event.getVersion();
         final Map<String, Object> before = event.getBefore();
+        callerCache.invalidate(schema.getQualifiedName(), id);
         return storage.afterDelete(schema, id, version, before)
                 .thenCompose(events -> emitter.emit(Immutable.addAll(events, refQueryEvents(schema, id))));
     }
@@ -607,6 +629,7 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
         final Map<String, Object> before = event.getBefore();
         final Map<String, Object> after = event.getAfter();
         final long version = event.getVersion();
+        callerCache.invalidate(schema.getQualifiedName(), id);
         return storage.afterUpdate(schema, id, version, before, after)
                 .thenCompose(emitter::emit);
     }
@@ -682,7 +705,10 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
                     final Storage.WriteTransaction write = storage.write(Consistency.ATOMIC, Versioning.CHECKED);
                     writeUpdate(write, schema, id, before, after);
                     return write.write()
-                            .thenCompose(ignored -> emitter.emit(ObjectRefreshedEvent.of(schema.getQualifiedName(), id, version, before, after)));
+                            .thenCompose(ignored -> {
+                                callerCache.invalidate(schema.getQualifiedName(), id);
+                                return emitter.emit(ObjectRefreshedEvent.of(schema.getQualifiedName(), id, version, before, after));
+                            });
 
                 });
             } else {
@@ -693,15 +719,13 @@ public class DatabaseServer extends ReadProcessor implements Database, Handler<E
 
     protected Set<Event> refQueryEvents(final ObjectSchema schema, final String id) {
 
+        final Map<Name, Expression> queries = namespace.getRefQueries(schema.getQualifiedName());
+        if(queries.isEmpty()) {
+            return Collections.emptySet();
+        }
         final Set<Event> events = new HashSet<>();
-        namespace.forEachObjectSchema((k, v) -> {
-            final Set<Expression> queries = v.refQueries(schema.getQualifiedName(), v.getExpand());
-            if(!queries.isEmpty()) {
-                final Or merged = new Or(queries.toArray(new Expression[0]));
-                final Expression bound = merged.bind(context(Caller.ANON, ImmutableMap.of(Reserved.THIS, ReferableSchema.ref(id))));
-                events.add(RefQueryEvent.of(Ref.of(schema.getQualifiedName(), id), k, bound));
-            }
-        });
+        final Context context = context(Caller.ANON, ImmutableMap.of(Reserved.THIS, ReferableSchema.ref(id)));
+        queries.forEach((k, query) -> events.add(RefQueryEvent.of(Ref.of(schema.getQualifiedName(), id), k, query.bind(context))));
         return events;
     }
 }
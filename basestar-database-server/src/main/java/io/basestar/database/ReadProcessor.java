@@ -24,17 +24,23 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import io.basestar.auth.Caller;
+import io.basestar.database.util.CallerCache;
+import io.basestar.database.util.CountCache;
 import io.basestar.database.util.ExpandKey;
+import io.basestar.database.util.LinkJoin;
 import io.basestar.database.util.LinkKey;
+import io.basestar.database.util.RefCache;
 import io.basestar.database.util.RefKey;
 import io.basestar.expression.Context;
 import io.basestar.expression.Expression;
+import io.basestar.expression.logical.And;
 import io.basestar.schema.*;
 import io.basestar.schema.util.Expander;
 import io.basestar.storage.Storage;
 import io.basestar.util.*;
 import lombok.extern.slf4j.Slf4j;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
@@ -49,14 +55,38 @@ public class ReadProcessor {
 
     private static final int EXPAND_LINK_SIZE = 100;
 
+    public static final int DEFAULT_QUERY_SCAN_BUDGET = 1000;
+
     protected final Namespace namespace;
 
     protected final Storage storage;
 
+    // Maximum rows read from storage (per page) while filling a page with rows that match the residual predicate
+    protected final int queryScanBudget;
+
+    // Totals served for approximate total requests
+    protected final CountCache countCache;
+
+    // Expanded caller objects, shared by requests from the same caller
+    protected final CallerCache callerCache;
+
+    /**
+     * Read processor without a caller cache, for use where callers may be read through storage that differs between
+     * requests (e.g. batch overlays).
+     */
+
     public ReadProcessor(final Namespace namespace, final Storage storage) {
 
+        this(namespace, storage, DEFAULT_QUERY_SCAN_BUDGET, CountCache.DEFAULT_TTL, Duration.ZERO);
+    }
+
+    public ReadProcessor(final Namespace namespace, final Storage storage, final int queryScanBudget, final Duration countCacheTtl, final Duration callerCacheTtl) {
+
         this.namespace = namespace;
         this.storage = storage;
+        this.queryScanBudget = queryScanBudget;
+        this.countCache = new CountCache(countCacheTtl);
+        this.callerCache = new CallerCache(callerCacheTtl);
     }
 
     protected ReferableSchema referableSchema(final Name schema) {
@@ -128,21 +158,126 @@ public class ReadProcessor {
         final Pager<Instance> pager = storage.query(consistency, schema, expression, pageSort, queryExpand)
                 .map(v -> create(v, expand));
 
-        return pager.page(stats, paging, count)
-                .thenApply(results -> {
-                    // Expressions that could not be pushed down are applied after auto-paging.
-                    return results.filter(instance -> {
-                        try {
-                            return expression.evaluatePredicate(context.with(instance));
-                        } catch (final Exception e) {
-                            // FIXME:
-                            log.warn("Failed to evaluate predicate", e);
-                            return false;
-                        }
-                    });
+        // Expressions that could not be pushed down are applied here, storage pages are read until the page is full
+        final Set<Page.Stat> requestStats = Nullsafe.orDefault(stats);
+        if(paging == null && requestStats.contains(Page.Stat.APPROX_TOTAL) && !requestStats.contains(Page.Stat.TOTAL)) {
+            // Approximate totals may come from a recent count of the same query
+            final Page.Stats cached = countCache.get(schema.getQualifiedName(), expression);
+            if(cached != null) {
+                final Set<Page.Stat> readStats = EnumSet.copyOf(requestStats);
+                readStats.remove(Page.Stat.APPROX_TOTAL);
+                return new QueryFill(pager, context, expression, readStats, paging, count).next()
+                        .thenApply(page -> {
+                            final Page.Stats pageStats = page.getStats();
+                            return page.withStats(pageStats == null ? cached
+                                    : cached.withScanned(pageStats.getScanned()).withReturned(pageStats.getReturned()));
+                        });
+            }
+        }
+        return new QueryFill(pager, context, expression, requestStats, paging, count).next()
+                .thenApply(page -> {
+                    if(paging == null && (requestStats.contains(Page.Stat.APPROX_TOTAL) || requestStats.contains(Page.Stat.TOTAL))) {
+                        countCache.put(schema.getQualifiedName(), expression, page.getStats());
+                    }
+                    return page;
                 });
     }
 
+    private static boolean evaluatePredicate(final Context context, final Expression expression, final Instance instance) {
+
+        try {
+            return expression.evaluatePredicate(context.with(instance));
+        } catch (final Exception e) {
+            // FIXME:
+            log.warn("Failed to evaluate predicate", e);
+            return false;
+        }
+    }
+
+    /**
+     * Fills a page with rows matching the residual predicate, stopping when the page is full, storage is exhausted
+     * or the scan budget is spent.
+     *
+     * Each storage read asks for no more than the rows still needed, so every matched row fits in the page and the
+     * storage token can be returned as-is.
+     */
+
+    private class QueryFill {
+
+        private final Pager<Instance> pager;
+
+        private final Context context;
+
+        private final Expression expression;
+
+        private final Set<Page.Stat> stats;
+
+        private final int count;
+
+        private final List<Instance> items = new ArrayList<>();
+
+        private Page.Token paging;
+
+        private Page.Stats pageStats;
+
+        private long scanned;
+
+        private boolean first = true;
+
+        public QueryFill(final Pager<Instance> pager, final Context context, final Expression expression,
+                         final Set<Page.Stat> stats, final Page.Token paging, final int count) {
+
+            this.pager = pager;
+            this.context = context;
+            this.expression = expression;
+            this.stats = Nullsafe.orDefault(stats);
+            this.paging = paging;
+            this.count = count;
+        }
+
+        public CompletableFuture<Page<Instance>> next() {
+
+            while (true) {
+                // Totals only need to be calculated on the first read
+                final Set<Page.Stat> readStats = first ? stats : Collections.emptySet();
+                final CompletableFuture<Page<Instance>> future = pager.page(readStats, paging, count - items.size());
+                if (!future.isDone() || future.isCompletedExceptionally()) {
+                    return future.thenCompose(page -> accept(page) ? next() : CompletableFuture.completedFuture(result()));
+                } else if (!accept(future.join())) {
+                    return CompletableFuture.completedFuture(result());
+                }
+            }
+        }
+
+        // Returns true if another read is needed
+
+        private boolean accept(final Page<Instance> page) {
+
+            if (first) {
+                pageStats = page.getStats();
+                first = false;
+            }
+            scanned += page.size();
+            page.forEach(instance -> {
+                if (evaluatePredicate(context, expression, instance)) {
+                    items.add(instance);
+                }
+            });
+            paging = page.getPaging();
+            return paging != null && items.size() < count && scanned < queryScanBudget;
+        }
+
+        private Page<Instance> result() {
+
+            Page.Stats resultStats = pageStats;
+            if (stats.contains(Page.Stat.SCANNED)) {
+                resultStats = Nullsafe.orDefault(resultStats, Page.Stats.NULL)
+                        .withScanned(scanned).withReturned((long) items.size());
+            }
+            return new Page<>(items, paging, resultStats);
+        }
+    }
+
     protected CompletableFuture<Instance> expand(final Consistency consistency, final Consistency linkConsistency, final Context context, final Instance item, final Set<Name> expand) {
 
         if(item == null) {
@@ -158,6 +293,11 @@ public class ReadProcessor {
 
     protected CompletableFuture<Page<Instance>> expand(final Consistency consistency, final Consistency linkConsistency, final Context context, final Page<Instance> items, final Set<Name> expand) {
 
+        return expand(consistency, linkConsistency, context, items, expand, new RefCache());
+    }
+
+    private CompletableFuture<Page<Instance>> expand(final Consistency consistency, final Consistency linkConsistency, final Context context, final Page<Instance> items, final Set<Name> expand, final RefCache cache) {
+
         if(items == null) {
             return CompletableFuture.completedFuture(null);
         } else if(expand == null || expand.isEmpty() || items.isEmpty()) {
@@ -168,7 +308,7 @@ public class ReadProcessor {
                             item -> ExpandKey.from(RefKey.latest(item), expand),
                             item -> item
                     ));
-            return expand(consistency, linkConsistency, context, expandKeys)
+            return expand(consistency, linkConsistency, context, expandKeys, cache)
                     .thenApply(expanded -> items.withItems(
                             items.stream()
                                     .map(v -> expanded.get(ExpandKey.from(RefKey.latest(v), expand)))
@@ -179,7 +319,12 @@ public class ReadProcessor {
 
     protected CompletableFuture<Map<ExpandKey<RefKey>, Instance>> expand(final Consistency consistency, final Consistency linkConsistency, final Context context, final Map<ExpandKey<RefKey>, Instance> items) {
 
-        return expandImpl(consistency, linkConsistency, context, items)
+        return expand(consistency, linkConsistency, context, items, new RefCache());
+    }
+
+    protected CompletableFuture<Map<ExpandKey<RefKey>, Instance>> expand(final Consistency consistency, final Consistency linkConsistency, final Context context, final Map<ExpandKey<RefKey>, Instance> items, final RefCache cache) {
+
+        return expandImpl(consistency, linkConsistency, context, items, cache)
                 .thenApply(results -> {
                     final Map<ExpandKey<RefKey>, Instance> evaluated = new HashMap<>();
                     results.forEach((k, v) -> {
@@ -190,11 +335,17 @@ public class ReadProcessor {
                 });
     }
 
-    // FIXME: poor performance, need to batch more
-    protected CompletableFuture<Map<ExpandKey<RefKey>, Instance>> expandImpl(final Consistency consistency, final Consistency linkConsistency, final Context context, final Map<ExpandKey<RefKey>, Instance> items) {
+    /**
+     * Expand one level of the expand tree for all items, then recurse into the next level.
+     *
+     * Refs needed at this level are read in one transaction across all items, refs already read (or being read) for
+     * this request are taken from the cache, links are queried concurrently with the ref read.
+     */
+
+    protected CompletableFuture<Map<ExpandKey<RefKey>, Instance>> expandImpl(final Consistency consistency, final Consistency linkConsistency, final Context context, final Map<ExpandKey<RefKey>, Instance> items, final RefCache cache) {
 
         final Set<ExpandKey<RefKey>> refs = new HashSet<>();
-        final Map<ExpandKey<LinkKey>, CompletableFuture<Page<Instance>>> links = new HashMap<>();
+        final Map<Link, Map<Set<Name>, Map<ExpandKey<LinkKey>, Instance>>> linkOwners = new IdentityHashMap<>();
 
         items.forEach((ref, object) -> {
             if(!ref.getExpand().isEmpty()) {
@@ -230,67 +381,30 @@ public class ReadProcessor {
                         final RefKey refKey = ref.getKey();
                         final ExpandKey<LinkKey> linkKey = ExpandKey.from(LinkKey.from(refKey, link.getName()), expand);
                         log.debug("Expanding link: {}", linkKey);
-                        // FIXME: do we need to pre-expand here? original implementation did
-                        links.put(linkKey, queryLinkImpl(context, linkConsistency, link, object, linkKey.getExpand(), EXPAND_LINK_SIZE, null, Collections.emptySet())
-                                .thenCompose(results -> expand(consistency, linkConsistency, context, results, expand)));
+                        linkOwners.computeIfAbsent(link, ignored -> new HashMap<>())
+                                .computeIfAbsent(expand, ignored -> new HashMap<>())
+                                .put(linkKey, object);
                         return null;
                     }
                 }, ref.getExpand());
             }
         });
 
-        if(refs.isEmpty() && links.isEmpty()) {
+        if(refs.isEmpty() && linkOwners.isEmpty()) {
 
             return CompletableFuture.completedFuture(items);
 
         } else {
 
-            return CompletableFuture.allOf(links.values().toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+            final Map<ExpandKey<LinkKey>, CompletableFuture<Page<Instance>>> links = new HashMap<>();
+            linkOwners.forEach((link, byExpand) -> byExpand.forEach((expand, owners) ->
+                    links.putAll(queryLinksImpl(consistency, linkConsistency, context, link, expand, owners, cache))));
 
-                if(!refs.isEmpty()) {
-                    log.debug("Expanding refs: {}", refs);
-                }
+            final CompletableFuture<Map<ExpandKey<RefKey>, Instance>> refsFuture = readRefs(consistency, refs, cache)
+                    .thenCompose(resolved -> expand(consistency, linkConsistency, context, resolved, cache));
 
-                final Storage.ReadTransaction readTransaction = storage.read(consistency);
-                refs.forEach(ref -> {
-                    final RefKey refKey = ref.getKey();
-                    final ReferableSchema schema = referableSchema(refKey.getSchema());
-                    if (refKey.getVersion() != null) {
-                        readTransaction.getVersion(schema, refKey.getId(), refKey.getVersion(), ref.getExpand());
-                    } else {
-                        readTransaction.get(schema, refKey.getId(), ref.getExpand());
-                    }
-                });
-
-                return readTransaction.read().thenCompose(results -> {
-
-                    final Map<ExpandKey<RefKey>, Instance> resolved = new HashMap<>();
-                    for (final Map<String, Object> initial : results.getRefs().values()) {
-
-                        final String id = Instance.getId(initial);
-                        final Long version = Instance.getVersion(initial);
-                        final Instance object = create(initial);
-
-                        refs.forEach(ref -> {
-                            final RefKey refKey = ref.getKey();
-                            if (refKey.getId().equals(id)) {
-                                if(refKey.getVersion() != null) {
-                                    if (version.equals(refKey.getVersion())) {
-                                        resolved.put(ExpandKey.from(refKey, ref.getExpand()), object);
-                                    }
-                                } else {
-                                    // this is awkward, could rely on implicit ordering of BatchResult versions
-                                    final ExpandKey<RefKey> expandKey = ExpandKey.from(refKey, ref.getExpand());
-                                    final Instance prev = resolved.get(expandKey);
-                                    if(prev == null || version > Instance.getVersion(prev)) {
-                                        resolved.put(expandKey, object);
-                                    }
-                                }
-                            }
-                        });
-                    }
-
-                    return expand(consistency, linkConsistency, context, resolved).thenApply(expanded -> {
+            return CompletableFuture.allOf(links.values().toArray(new CompletableFuture<?>[0]))
+                    .thenCombine(refsFuture, (ignored, expanded) -> {
 
                         final Map<ExpandKey<RefKey>, Instance> result = new HashMap<>();
 
@@ -342,10 +456,181 @@ public class ReadProcessor {
 
                         return result;
                     });
+        }
+    }
+
+    /**
+     * Read the objects for the provided refs, refs sharing a key (with different expand sets) are read once, and keys
+     * already in the cache are not read again.
+     */
 
+    private CompletableFuture<Map<ExpandKey<RefKey>, Instance>> readRefs(final Consistency consistency, final Set<ExpandKey<RefKey>> refs, final RefCache cache) {
+
+        if(refs.isEmpty()) {
+            return CompletableFuture.completedFuture(Collections.emptyMap());
+        }
+
+        final Map<RefKey, Set<Name>> keys = new HashMap<>();
+        refs.forEach(ref -> keys.computeIfAbsent(ref.getKey(), ignored -> new HashSet<>()).addAll(ref.getExpand()));
+
+        final Map<RefKey, CompletableFuture<Instance>> claimed = cache.claim(keys.keySet());
+        if(!claimed.isEmpty()) {
+            log.debug("Expanding refs: {}", claimed.keySet());
+            // Claimed futures are shared through the cache, so every failure must complete them
+            try {
+                Storage.ReadTransaction readTransaction = storage.read(consistency);
+                for(final RefKey refKey : claimed.keySet()) {
+                    final ReferableSchema schema = referableSchema(refKey.getSchema());
+                    if (refKey.getVersion() != null) {
+                        readTransaction = readTransaction.getVersion(schema, refKey.getId(), refKey.getVersion(), keys.get(refKey));
+                    } else {
+                        readTransaction = readTransaction.get(schema, refKey.getId(), keys.get(refKey));
+                    }
+                }
+                readTransaction.read().whenComplete((results, error) -> {
+                    if(error != null) {
+                        claimed.values().forEach(future -> future.completeExceptionally(error));
+                        return;
+                    }
+                    try {
+                        // Results are matched on id (and version), storage may key polymorphic refs by either schema
+                        final Map<String, List<Map<String, Object>>> byId = new HashMap<>();
+                        results.getRefs().values().forEach(object -> byId.computeIfAbsent(Instance.getId(object), ignored -> new ArrayList<>()).add(object));
+                        claimed.forEach((refKey, future) -> {
+                            Map<String, Object> match = null;
+                            for(final Map<String, Object> object : byId.getOrDefault(refKey.getId(), Collections.emptyList())) {
+                                final Long version = Instance.getVersion(object);
+                                if(refKey.getVersion() != null) {
+                                    if(refKey.getVersion().equals(version)) {
+                                        match = object;
+                                    }
+                                } else if(match == null || version > Instance.getVersion(match)) {
+                                    match = object;
+                                }
+                            }
+                            future.complete(create(match));
+                        });
+                    } catch (final RuntimeException e) {
+                        claimed.values().forEach(future -> future.completeExceptionally(e));
+                    }
                 });
+            } catch (final RuntimeException e) {
+                claimed.values().forEach(future -> future.completeExceptionally(e));
+            }
+        }
+
+        final Map<ExpandKey<RefKey>, CompletableFuture<Instance>> futures = new HashMap<>();
+        refs.forEach(ref -> futures.put(ref, cache.get(ref.getKey())));
+        return CompletableFutures.allOf(futures).thenApply(results -> {
+            final Map<ExpandKey<RefKey>, Instance> resolved = new HashMap<>();
+            results.forEach((ref, object) -> {
+                if(object != null) {
+                    resolved.put(ref, object);
+                }
             });
+            return resolved;
+        });
+    }
+
+    /**
+     * Expand a link for many owners, where the link expression is an equality join on the owner (see LinkJoin) the
+     * targets for all owners are read together and split by owner.
+     *
+     * Joins on the target id are read with one batched get, which every storage serves. Other joins are read with one
+     * IN query, only where the storage serves IN with one index read, storage that splits IN into a read per value
+     * would read the same index ranges with a larger page size per range, so owners are queried separately instead.
+     *
+     * Owners fall back to their own query where the shared query could not be read to the end, or where an owner has
+     * more than a page of results (so that owner gets a paging token).
+     */
+
+    protected Map<ExpandKey<LinkKey>, CompletableFuture<Page<Instance>>> queryLinksImpl(final Consistency consistency, final Consistency linkConsistency, final Context context,
+                                                                                      final Link link, final Set<Name> expand, final Map<ExpandKey<LinkKey>, Instance> owners, final RefCache cache) {
+
+        final Map<ExpandKey<LinkKey>, CompletableFuture<Page<Instance>>> results = new HashMap<>();
+        final LinkJoin join = owners.size() > 1 ? LinkJoin.from(link.getExpression()) : null;
+        final boolean byId = join != null && joinsOnId(link.getSchema(), join);
+        final boolean batched = byId || (join != null && supportsInQuery(link.getSchema()));
+        final Map<Object, List<ExpandKey<LinkKey>>> byValue = new HashMap<>();
+        owners.forEach((key, owner) -> {
+            final Object value = batched ? LinkJoin.key(join.ownerValue(owner)) : null;
+            if(value == null || (byId && !(value instanceof String))) {
+                results.put(key, queryLinkExpanded(consistency, linkConsistency, context, link, owner, expand, cache));
+            } else {
+                byValue.computeIfAbsent(value, ignored -> new ArrayList<>()).add(key);
+            }
+        });
+        if(byValue.isEmpty()) {
+            return results;
+        }
+        assert join != null;
+        final CompletableFuture<Map<Object, List<Instance>>> batch;
+        if(byId) {
+            log.debug("Expanding link {} for {} owners with one read", link.getName(), byValue.size());
+            batch = readLinkTargets(consistency, linkConsistency, context, link, join, byValue.keySet(), expand, cache);
+        } else {
+            log.debug("Expanding link {} for {} owners with one query", link.getName(), byValue.size());
+            final Expression expression = join.expression(byValue.keySet()).bind(context);
+            batch = queryImpl(context, linkConsistency, link.getSchema(), expression,
+                    link.getSort(), expand, byValue.size() * EXPAND_LINK_SIZE, null, Collections.emptySet())
+                    .thenCompose(page -> {
+                        if(page.hasMore()) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        // Storage order is kept, so each owner's results are in link sort order
+                        return expand(consistency, linkConsistency, context, page, expand, cache)
+                                .thenApply(expanded -> join.split(byValue.keySet(), expanded));
+                    });
         }
+        byValue.forEach((value, keys) -> keys.forEach(key -> results.put(key, batch.thenCompose(split -> {
+            final List<Instance> matched = split == null ? null : split.get(value);
+            if(matched == null || matched.size() > EXPAND_LINK_SIZE) {
+                return queryLinkExpanded(consistency, linkConsistency, context, link, owners.get(key), expand, cache);
+            } else {
+                return CompletableFuture.completedFuture(new Page<>(matched, null));
+            }
+        }))));
+        return results;
+    }
+
+    // Each id matches at most one target, so the targets are refs and are read (through the ref cache) in one batch
+
+    private CompletableFuture<Map<Object, List<Instance>>> readLinkTargets(final Consistency consistency, final Consistency linkConsistency, final Context context,
+                                                                          final Link link, final LinkJoin join, final Set<Object> ids, final Set<Name> expand, final RefCache cache) {
+
+        final Name schemaName = link.getSchema().getQualifiedName();
+        final Map<Object, ExpandKey<RefKey>> refs = new HashMap<>();
+        ids.forEach(id -> refs.put(id, ExpandKey.from(new RefKey(schemaName, (String)id, null), Nullsafe.orDefault(expand))));
+        // Remaining terms of the link expression do not reference the owner, so apply to every target alike
+        final Expression filter = join.getTerms().isEmpty() ? null : new And(join.getTerms()).bind(context);
+        return readRefs(linkConsistency, new HashSet<>(refs.values()), cache)
+                .thenCompose(resolved -> expand(consistency, linkConsistency, context, resolved, cache))
+                .thenApply(expanded -> {
+                    final Map<Object, List<Instance>> split = new HashMap<>();
+                    refs.forEach((id, ref) -> {
+                        final Instance target = expanded.get(ref);
+                        final boolean matched = target != null && (filter == null || filter.evaluatePredicate(context.with(target)));
+                        split.put(id, matched ? Collections.singletonList(target) : Collections.emptyList());
+                    });
+                    return split;
+                });
+    }
+
+    private static boolean joinsOnId(final LinkableSchema schema, final LinkJoin join) {
+
+        return schema instanceof ReferableSchema && join.getTargetPath().equals(Name.of(schema.id()));
+    }
+
+    private boolean supportsInQuery(final LinkableSchema schema) {
+
+        return schema instanceof ReferableSchema && storage.storageTraits((ReferableSchema)schema).supportsInQuery();
+    }
+
+    private CompletableFuture<Page<Instance>> queryLinkExpanded(final Consistency consistency, final Consistency linkConsistency, final Context context,
+                                                                final Link link, final Instance owner, final Set<Name> expand, final RefCache cache) {
+
+        return queryLinkImpl(context, linkConsistency, link, owner, expand, EXPAND_LINK_SIZE, null, Collections.emptySet())
+                .thenCompose(results -> expand(consistency, linkConsistency, context, results, expand, cache));
     }
 
     protected Instance create(final Map<String, Object> data) {
@@ -385,8 +670,9 @@ public class ReadProcessor {
                 if(caller.getSchema() != null) {
                     final Schema<?> schema = namespace.getSchema(caller.getSchema());
                     if(schema instanceof ObjectSchema) {
-                        return readImpl((ObjectSchema)schema, caller.getId(), null, expand)
-                                .thenCompose(unexpanded -> expand(consistency, linkConsistency, context, unexpanded, expand))
+                        return callerCache.get(schema.getQualifiedName(), caller.getId(), consistency, linkConsistency, Nullsafe.orDefault(expand),
+                                () -> readImpl((ObjectSchema)schema, caller.getId(), null, expand)
+                                        .thenCompose(unexpanded -> expand(consistency, linkConsistency, context, unexpanded, expand)))
                                 .thenApply(result -> new ExpandedCaller(caller, result));
                     }
                 }
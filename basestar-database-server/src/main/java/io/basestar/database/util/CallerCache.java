@@ -0,0 +1,117 @@
+package io.basestar.database.util;
+
+/*-
+ * #%L
+ * basestar-database-server
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.util.CompletableFutures;
+import io.basestar.util.Name;
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Short-lived cache of expanded caller objects, so that a burst of requests from one caller reads the caller once.
+ *
+ * Entries are keyed by caller schema and id, then by read consistency and expand set, and are dropped when the caller
+ * object is updated or deleted. Objects referenced by the expand set are not tracked, changes to those are only seen after the ttl.
+ */
+
+public class CallerCache {
+
+    public static final Duration DEFAULT_TTL = Duration.ofSeconds(5);
+
+    private static final long MAXIMUM_SIZE = 10000;
+
+    // Null where caching is disabled
+
+    private final Cache<Key, ConcurrentMap<Entry, CompletableFuture<Instance>>> cache;
+
+    public CallerCache(final Duration ttl) {
+
+        if(ttl.isZero() || ttl.isNegative()) {
+            this.cache = null;
+        } else {
+            this.cache = CacheBuilder.newBuilder()
+                    .maximumSize(MAXIMUM_SIZE)
+                    .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                    .build();
+        }
+    }
+
+    public CompletableFuture<Instance> get(final Name schema, final String id, final Consistency consistency, final Consistency linkConsistency,
+                                           final Set<Name> expand, final Supplier<CompletableFuture<Instance>> read) {
+
+        if(cache == null) {
+            return read.get();
+        }
+        final ConcurrentMap<Entry, CompletableFuture<Instance>> entries;
+        try {
+            entries = cache.get(new Key(schema, id), ConcurrentHashMap::new);
+        } catch (final ExecutionException e) {
+            return CompletableFutures.completedExceptionally(e.getCause());
+        }
+        final Entry entry = new Entry(consistency, linkConsistency, expand);
+        final CompletableFuture<Instance> future = entries.computeIfAbsent(entry, ignored -> read.get());
+        // Failed reads are not cached
+        return future.whenComplete((result, error) -> {
+            if(error != null) {
+                entries.remove(entry, future);
+            }
+        });
+    }
+
+    public void invalidate(final Name schema, final String id) {
+
+        if(cache != null) {
+            cache.invalidate(new Key(schema, id));
+        }
+    }
+
+    @Data
+    private static class Key {
+
+        private final Name schema;
+
+        private final String id;
+    }
+
+    // A weaker read may have been served by a stale replica, so must not be returned for a stronger one
+
+    @Data
+    private static class Entry {
+
+        private final Consistency consistency;
+
+        private final Consistency linkConsistency;
+
+        private final Set<Name> expand;
+    }
+}
@@ -0,0 +1,79 @@
+package io.basestar.database.util;
+
+/*-
+ * #%L
+ * basestar-database-server
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.basestar.expression.Expression;
+import io.basestar.util.Name;
+import io.basestar.util.Page;
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of query totals, used to answer approximate total requests without counting again.
+ */
+
+public class CountCache {
+
+    public static final Duration DEFAULT_TTL = Duration.ofSeconds(60);
+
+    private static final long MAXIMUM_SIZE = 10000;
+
+    private final Cache<Key, Long> cache;
+
+    public CountCache(final Duration ttl) {
+
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_SIZE)
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    public Page.Stats get(final Name schema, final Expression expression) {
+
+        final Long total = cache.getIfPresent(Key.from(schema, expression));
+        return total == null ? null : Page.Stats.fromApproxTotal(total);
+    }
+
+    public void put(final Name schema, final Expression expression, final Page.Stats stats) {
+
+        if(stats != null && stats.getApproxTotal() != null) {
+            cache.put(Key.from(schema, expression), stats.getApproxTotal());
+        }
+    }
+
+    @Data
+    private static class Key {
+
+        private final Name schema;
+
+        // Full expression rather than digest, a collision would return the wrong count
+        private final String expression;
+
+        public static Key from(final Name schema, final Expression expression) {
+
+            return new Key(schema, expression.toString());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.basestar.database.util;
+
+/*-
+ * #%L
+ * basestar-database-server
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.expression.Expression;
+import io.basestar.expression.compare.Eq;
+import io.basestar.expression.constant.Constant;
+import io.basestar.expression.constant.NameConstant;
+import io.basestar.expression.function.In;
+import io.basestar.expression.logical.And;
+import io.basestar.expression.type.Values;
+import io.basestar.schema.Reserved;
+import io.basestar.util.Name;
+import lombok.Data;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Equality join between a link target and its owner, for link expressions of the form target.path == this.path
+ * (optionally and-ed with terms that do not reference this).
+ *
+ * Links of this form can be expanded for many owners with one query, target.path in [owner values], and the results
+ * assigned back to owners by their target path value.
+ *
+ * Values are compared as the query compares them (see Values.equals), so an owner value of 1 matches a target value
+ * of 1L or 1.0.
+ */
+
+@Data
+public class LinkJoin {
+
+    private final Name targetPath;
+
+    private final Name ownerPath;
+
+    private final List<Expression> terms;
+
+    @Nullable
+    public static LinkJoin from(final Expression expression) {
+
+        final List<Expression> terms = expression instanceof And ? ((And) expression).getTerms() : Collections.singletonList(expression);
+        LinkJoin join = null;
+        final List<Expression> rest = new ArrayList<>();
+        for(final Expression term : terms) {
+            final LinkJoin match = join == null ? match(term) : null;
+            if(match != null) {
+                join = match;
+            } else if(term.names().stream().anyMatch(LinkJoin::isOwner)) {
+                return null;
+            } else {
+                rest.add(term);
+            }
+        }
+        return join == null ? null : new LinkJoin(join.getTargetPath(), join.getOwnerPath(), rest);
+    }
+
+    private static LinkJoin match(final Expression term) {
+
+        if(term instanceof Eq) {
+            final Expression lhs = ((Eq) term).getLhs();
+            final Expression rhs = ((Eq) term).getRhs();
+            if(lhs instanceof NameConstant && rhs instanceof NameConstant) {
+                final Name lhsName = ((NameConstant) lhs).getName();
+                final Name rhsName = ((NameConstant) rhs).getName();
+                if(isOwner(rhsName) && !isOwner(lhsName) && rhsName.size() > 1) {
+                    return new LinkJoin(lhsName, rhsName.withoutFirst(), Collections.emptyList());
+                } else if(isOwner(lhsName) && !isOwner(rhsName) && lhsName.size() > 1) {
+                    return new LinkJoin(rhsName, lhsName.withoutFirst(), Collections.emptyList());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isOwner(final Name name) {
+
+        return Reserved.THIS.equals(name.first());
+    }
+
+    public Object ownerValue(final Map<String, Object> owner) {
+
+        return ownerPath.get(owner);
+    }
+
+    public Object targetValue(final Map<String, Object> target) {
+
+        return targetPath.get(target);
+    }
+
+    /**
+     * Hash key for a join value, numbers are widened so that values equal in an expression share a key.
+     */
+
+    public static Object key(final Object value) {
+
+        if(value instanceof Byte || value instanceof Short || value instanceof Integer) {
+            return ((Number) value).longValue();
+        } else if(value instanceof Float) {
+            return ((Number) value).doubleValue();
+        } else {
+            return value;
+        }
+    }
+
+    /**
+     * Assign targets to the provided owner keys (see key), a target is assigned to every owner key its target value
+     * equals, targets are kept in the provided order.
+     */
+
+    public <T extends Map<String, Object>> Map<Object, List<T>> split(final Collection<?> ownerKeys, final List<T> targets) {
+
+        final Map<Object, List<T>> split = new HashMap<>();
+        ownerKeys.forEach(ownerKey -> split.put(ownerKey, new ArrayList<>()));
+        for(final T target : targets) {
+            final Object value = targetValue(target);
+            if(value == null) {
+                continue;
+            }
+            final List<T> matched = split.get(key(value));
+            if(matched != null) {
+                matched.add(target);
+            } else {
+                // Values that are only equal after promotion (e.g. 1L and 1.0, or a date and its string form)
+                split.forEach((ownerKey, values) -> {
+                    if(Values.equals(ownerKey, value)) {
+                        values.add(target);
+                    }
+                });
+            }
+        }
+        return split;
+    }
+
+    /**
+     * Query matching the link targets of every owner having one of the provided values.
+     */
+
+    public Expression expression(final Collection<?> ownerValues) {
+
+        final Expression in = new In(new NameConstant(targetPath), new Constant(new ArrayList<>(ownerValues)));
+        if(terms.isEmpty()) {
+            return in;
+        } else {
+            final List<Expression> all = new ArrayList<>();
+            all.add(in);
+            all.addAll(terms);
+            return new And(all);
+        }
+    }
+}
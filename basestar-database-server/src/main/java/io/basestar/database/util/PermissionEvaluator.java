@@ -0,0 +1,194 @@
+package io.basestar.database.util;
+
+/*-
+ * #%L
+ * basestar-database-server
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.basestar.database.CommonVars;
+import io.basestar.expression.Context;
+import io.basestar.expression.Expression;
+import io.basestar.expression.call.Callable;
+import io.basestar.expression.methods.Methods;
+import io.basestar.schema.Instance;
+import io.basestar.schema.Namespace;
+import io.basestar.schema.Permission;
+import lombok.RequiredArgsConstructor;
+
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Permissions of a namespace, compiled when the namespace is loaded.
+ *
+ * Permission expressions are constant-folded once, then bound to each caller once, so that checks over a page of
+ * instances only evaluate the terms referencing this, before and after. Bound predicates are held weakly against the
+ * caller key (by identity, usually the expanded caller object), values only hold the bound expression so do not keep
+ * the key reachable, and are dropped once the key is collected.
+ */
+
+public class PermissionEvaluator implements CommonVars {
+
+    private static final Methods METHODS = Methods.builder().defaults().build();
+
+    private static final long MAXIMUM_CALLERS = 10000;
+
+    private final ConcurrentMap<Permission, Compiled> compiled = new ConcurrentHashMap<>();
+
+    public PermissionEvaluator(final Namespace namespace) {
+
+        namespace.forEachLinkableSchema((name, schema) -> schema.getPermissions().values()
+                .forEach(this::compiled));
+    }
+
+    // Permissions not declared on a namespace schema are compiled on first use
+
+    private Compiled compiled(final Permission permission) {
+
+        return compiled.computeIfAbsent(permission, Compiled::new);
+    }
+
+    /**
+     * Permission predicate with caller references resolved.
+     */
+
+    public Expression bind(final Permission permission, final Object callerKey, final Supplier<Instance> caller) {
+
+        return compiled(permission).bind(callerKey, caller);
+    }
+
+    public boolean evaluate(final Permission permission, final Object callerKey, final Supplier<Instance> caller, final Map<String, Object> scope) {
+
+        // The caller is passed again at evaluation for expressions that still reference it after binding (e.g. inside lambdas)
+        final Expression bound = compiled(permission).bind(callerKey, caller);
+        return bound.evaluatePredicate(context(caller.get(), scope));
+    }
+
+    private static Context context(final Instance caller, final Map<String, Object> scope) {
+
+        for(final String name : scope.keySet()) {
+            if(!VAR_THIS.equals(name) && !VAR_BEFORE.equals(name) && !VAR_AFTER.equals(name)) {
+                final Map<String, Object> fullScope = new HashMap<>(scope);
+                fullScope.put(VAR_CALLER, caller);
+                return Context.init(METHODS, fullScope);
+            }
+        }
+        return new Slots(caller, scope.get(VAR_THIS), scope.get(VAR_BEFORE), scope.get(VAR_AFTER));
+    }
+
+    private static class Compiled {
+
+        private final Expression expression;
+
+        private final Cache<Object, Expression> bound = CacheBuilder.newBuilder()
+                .weakKeys()
+                .maximumSize(MAXIMUM_CALLERS)
+                .build();
+
+        public Compiled(final Permission permission) {
+
+            this.expression = permission.getExpression().bind(Context.init(METHODS));
+        }
+
+        public Expression bind(final Object callerKey, final Supplier<Instance> caller) {
+
+            try {
+                return bound.get(callerKey, () -> {
+                    final Context context = Context.init(METHODS, Collections.singletonMap(VAR_CALLER, caller.get()));
+                    return expression.bind(context);
+                });
+            } catch (final ExecutionException | UncheckedExecutionException e) {
+                final Throwable cause = e.getCause();
+                if(cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fixed-slot context for permission checks, avoids copying the scope for every instance checked.
+     */
+
+    @RequiredArgsConstructor
+    private static class Slots implements Context {
+
+        private final Object caller;
+
+        private final Object current;
+
+        private final Object before;
+
+        private final Object after;
+
+        @Override
+        public Object get(final String name) {
+
+            if(VAR_CALLER.equals(name)) {
+                return caller;
+            } else if(VAR_THIS.equals(name) && current != null) {
+                return current;
+            } else if(VAR_BEFORE.equals(name) && before != null) {
+                return before;
+            } else if(VAR_AFTER.equals(name) && after != null) {
+                return after;
+            } else {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        @Override
+        public boolean has(final String name) {
+
+            if(VAR_CALLER.equals(name)) {
+                return true;
+            } else if(VAR_THIS.equals(name)) {
+                return current != null;
+            } else if(VAR_BEFORE.equals(name)) {
+                return before != null;
+            } else if(VAR_AFTER.equals(name)) {
+                return after != null;
+            } else {
+                return false;
+            }
+        }
+
+        @Override
+        public Callable callable(final Type target, final String method, final Type... args) {
+
+            return METHODS.callable(target, method, args);
+        }
+
+        @Override
+        public Object cast(final Object value, final String type) {
+
+            throw new UnsupportedOperationException();
+        }
+    }
+}
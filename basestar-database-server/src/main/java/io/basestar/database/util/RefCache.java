@@ -0,0 +1,65 @@
+package io.basestar.database.util;
+
+/*-
+ * #%L
+ * basestar-database-server
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Instance;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Request-scoped identity map of objects read while expanding, so that an object referenced at several depths or
+ * in several branches of an expand tree is only read once.
+ *
+ * Entries are futures, a ref that is already being read by another branch is joined rather than read again.
+ */
+
+public class RefCache {
+
+    private final ConcurrentMap<RefKey, CompletableFuture<Instance>> refs = new ConcurrentHashMap<>();
+
+    /**
+     * Register the provided keys, returning the keys that were not already read or being read, the caller must read
+     * these and complete the returned futures.
+     */
+
+    public Map<RefKey, CompletableFuture<Instance>> claim(final Collection<RefKey> keys) {
+
+        final Map<RefKey, CompletableFuture<Instance>> claimed = new HashMap<>();
+        keys.forEach(key -> refs.computeIfAbsent(key, k -> {
+            final CompletableFuture<Instance> future = new CompletableFuture<>();
+            claimed.put(k, future);
+            return future;
+        }));
+        return claimed;
+    }
+
+    public CompletableFuture<Instance> get(final RefKey key) {
+
+        final CompletableFuture<Instance> future = refs.get(key);
+        assert future != null;
+        return future;
+    }
+}
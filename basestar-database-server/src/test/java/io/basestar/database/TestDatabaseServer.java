@@ -36,19 +36,29 @@ import io.basestar.expression.compare.Eq;
 import io.basestar.expression.constant.Constant;
 import io.basestar.expression.constant.NameConstant;
 import io.basestar.expression.logical.Or;
+import io.basestar.expression.visitor.DisjunctionVisitor;
+import io.basestar.schema.Concurrency;
+import io.basestar.schema.Consistency;
 import io.basestar.schema.Instance;
+import io.basestar.schema.LinkableSchema;
 import io.basestar.schema.Namespace;
+import io.basestar.schema.ObjectSchema;
 import io.basestar.schema.ReferableSchema;
 import io.basestar.schema.Reserved;
 import io.basestar.schema.exception.ConstraintViolationException;
 import io.basestar.schema.util.Ref;
 import io.basestar.secret.Secret;
 import io.basestar.secret.SecretContext;
+import io.basestar.storage.BatchResponse;
+import io.basestar.storage.DelegatingStorage;
 import io.basestar.storage.MemoryStorage;
 import io.basestar.storage.Storage;
+import io.basestar.storage.StorageTraits;
 import io.basestar.storage.exception.UnsupportedWriteException;
 import io.basestar.util.Name;
 import io.basestar.util.Page;
+import io.basestar.util.Pager;
+import io.basestar.util.Sort;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -56,11 +66,18 @@ import org.junit.jupiter.api.function.Executable;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -591,6 +608,38 @@ class TestDatabaseServer {
                         .build()).get()));
     }
 
+    @Test
+    void permissionsBoundPerCaller() throws Exception {
+
+        when(caller.getSchema()).thenReturn(USER);
+        when(caller.getId()).thenReturn("test");
+
+        database.batch(caller, BatchOptions.builder()
+                .putAction("team", CreateOptions.builder()
+                        .setSchema(TEAM)
+                        .setId("t1")
+                        .build())
+                .putAction("member", CreateOptions.builder()
+                        .setSchema(TEAM_MEMBER)
+                        .setData(ImmutableMap.of(
+                                "user", ImmutableMap.of("id", "test"),
+                                "team", ImmutableMap.of("id", "t1"),
+                                "role", "owner",
+                                "accepted", true
+                        )).build())
+                .build()).get();
+
+        final Caller other = Mockito.mock(Caller.class);
+        when(other.getSchema()).thenReturn(USER);
+        when(other.getId()).thenReturn("other");
+
+        // Repeated to check that predicates bound for one caller are not reused for another
+        for(int i = 0; i != 2; ++i) {
+            assertNotNull(database.read(caller, TEAM, "t1").get());
+            assertThrows(PermissionDeniedException.class, cause(() -> database.read(other, TEAM, "t1").get()));
+        }
+    }
+
     @Test
     void visibility() throws Exception {
 
@@ -1002,6 +1051,25 @@ class TestDatabaseServer {
         };
     }
 
+    @Test
+    void testRefQueryEventsOnlyForDependents() {
+
+        final ObjectSchema target = namespace.requireObjectSchema("NestedRef3");
+        final Set<Name> expected = new HashSet<>();
+        namespace.forEachObjectSchema((k, v) -> {
+            if(!v.refQueries(target.getQualifiedName(), v.getExpand()).isEmpty()) {
+                expected.add(k);
+            }
+        });
+        assertFalse(expected.isEmpty());
+
+        final Set<Name> actual = new HashSet<>();
+        database.refQueryEvents(target, "x").forEach(event -> actual.add(((RefQueryEvent)event).getSchema()));
+        assertEquals(expected, actual);
+
+        assertTrue(database.refQueryEvents(namespace.requireObjectSchema(SIMPLE), "x").isEmpty());
+    }
+
     @Test
     void testPassStats() throws Exception {
 
@@ -1023,4 +1091,497 @@ class TestDatabaseServer {
                 .setStats(expected)
                 .build()).get();
     }
+
+    @Test
+    void testResidualFilterFillsPage() throws Exception {
+
+        final List<Map<String, Object>> rows = new ArrayList<>();
+        for(int i = 0; i != 100; ++i) {
+            final Map<String, Object> row = new HashMap<>();
+            Instance.setSchema(row, SIMPLE);
+            Instance.setId(row, String.format("%03d", i));
+            Instance.setVersion(row, 1L);
+            row.put("string", i % 10 == 0 ? "match" : "other");
+            rows.add(row);
+        }
+        final Storage storage = mock(Storage.class);
+        when(storage.query(any(), any(), any(), any(), any()))
+                .thenReturn(((stats, token, count) -> {
+                    final int offset = token == null ? 0 : token.getLongValue().intValue();
+                    final int end = Math.min(offset + count, rows.size());
+                    final Page.Token next = end < rows.size() ? Page.Token.fromLongValue((long) end) : null;
+                    return CompletableFuture.completedFuture(new Page<>(rows.subList(offset, end), next));
+                }));
+
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        final Page<Instance> page1 = database.query(Caller.SUPER, QueryOptions.builder()
+                .setSchema(SIMPLE)
+                .setExpression(Expression.parse("string == 'match'"))
+                .setCount(5)
+                .setStats(ImmutableSet.of(Page.Stat.SCANNED))
+                .build()).get();
+        assertEquals(ImmutableList.of("000", "010", "020", "030", "040"), ids(page1));
+        assertEquals(5, page1.getStats().getReturned());
+        assertTrue(page1.getStats().getScanned() >= 41);
+
+        final Page<Instance> page2 = database.query(Caller.SUPER, QueryOptions.builder()
+                .setSchema(SIMPLE)
+                .setExpression(Expression.parse("string == 'match'"))
+                .setCount(5)
+                .setPaging(page1.getPaging())
+                .build()).get();
+        assertEquals(ImmutableList.of("050", "060", "070", "080", "090"), ids(page2));
+
+        // Scan budget cuts the page short, the token continues from where the scan stopped
+
+        final Database budgeted = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).queryScanBudget(25).build();
+
+        final Page<Instance> short1 = budgeted.query(Caller.SUPER, QueryOptions.builder()
+                .setSchema(SIMPLE)
+                .setExpression(Expression.parse("string == 'match'"))
+                .setCount(5)
+                .build()).get();
+        assertTrue(short1.size() < 5);
+        assertNotNull(short1.getPaging());
+        final Page<Instance> short2 = budgeted.query(Caller.SUPER, QueryOptions.builder()
+                .setSchema(SIMPLE)
+                .setExpression(Expression.parse("string == 'match'"))
+                .setCount(5)
+                .setPaging(short1.getPaging())
+                .build()).get();
+        assertTrue(Instance.getId(short1.get(short1.size() - 1)).compareTo(Instance.getId(short2.get(0))) < 0);
+    }
+
+    @Test
+    void testApproxTotalCached() throws Exception {
+
+        final List<Set<Page.Stat>> requested = new ArrayList<>();
+        final Storage storage = mock(Storage.class);
+        when(storage.query(any(), any(), any(), any(), any()))
+                .thenReturn(((stats, token, count) -> {
+                    requested.add(stats);
+                    final Page.Stats result = stats.contains(Page.Stat.APPROX_TOTAL) ? Page.Stats.fromTotal(1234) : null;
+                    return CompletableFuture.completedFuture(new Page<>(ImmutableList.of(), null, result));
+                }));
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        final QueryOptions options = QueryOptions.builder()
+                .setSchema(SIMPLE)
+                .setStats(ImmutableSet.of(Page.Stat.APPROX_TOTAL))
+                .build();
+
+        final Page<Instance> first = database.query(Caller.SUPER, options).get();
+        assertEquals(1234L, first.getStats().getApproxTotal());
+        assertEquals(1234L, first.getStats().getTotal());
+        assertNull(first.getStats().getEstimated());
+
+        final Page<Instance> second = database.query(Caller.SUPER, options).get();
+        assertEquals(1234L, second.getStats().getApproxTotal());
+        assertNull(second.getStats().getTotal());
+        assertEquals(true, second.getStats().getEstimated());
+
+        assertEquals(2, requested.size());
+        assertEquals(ImmutableSet.of(Page.Stat.APPROX_TOTAL), requested.get(0));
+        assertFalse(requested.get(1).contains(Page.Stat.APPROX_TOTAL));
+    }
+
+    @Test
+    void testLinkExpansionPerOwner() throws Exception {
+
+        // Storage splits IN per value, so each owner is queried with its own page size
+        final LinkReads reads = expandSources(false);
+        assertEquals(3, reads.queries);
+        assertEquals(3, reads.indexQueries);
+        assertEquals(5, reads.rows);
+    }
+
+    @Test
+    void testBatchedLinkExpansion() throws Exception {
+
+        final LinkReads reads = expandSources(true);
+        assertEquals(1, reads.queries);
+        assertEquals(3, reads.indexQueries);
+        assertEquals(5, reads.rows);
+    }
+
+    private static class LinkReads {
+
+        private int queries;
+
+        private int indexQueries;
+
+        private int rows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkReads expandSources(final boolean supportsInQuery) throws Exception {
+
+        final LinkReads reads = new LinkReads();
+        final Storage memory = MemoryStorage.builder().build();
+        final Storage storage = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public StorageTraits storageTraits(final ReferableSchema schema) {
+
+                final StorageTraits traits = memory.storageTraits(schema);
+                return new StorageTraits() {
+
+                    @Override
+                    public Consistency getHistoryConsistency() {
+
+                        return traits.getHistoryConsistency();
+                    }
+
+                    @Override
+                    public Consistency getSingleValueIndexConsistency() {
+
+                        return traits.getSingleValueIndexConsistency();
+                    }
+
+                    @Override
+                    public Consistency getMultiValueIndexConsistency() {
+
+                        return traits.getMultiValueIndexConsistency();
+                    }
+
+                    @Override
+                    public boolean supportsPolymorphism() {
+
+                        return traits.supportsPolymorphism();
+                    }
+
+                    @Override
+                    public boolean supportsMultiObject() {
+
+                        return traits.supportsMultiObject();
+                    }
+
+                    @Override
+                    public boolean supportsInQuery() {
+
+                        return supportsInQuery;
+                    }
+
+                    @Override
+                    public Concurrency getObjectConcurrency() {
+
+                        return traits.getObjectConcurrency();
+                    }
+                };
+            }
+
+            @Override
+            public Pager<Map<String, Object>> query(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+                final Pager<Map<String, Object>> pager = memory.query(consistency, schema, query, sort, expand);
+                if(!REF_SOURCE.equals(schema.getQualifiedName())) {
+                    return pager;
+                }
+                // Memory storage reads each branch of the disjunction from the index separately
+                reads.queries += 1;
+                reads.indexQueries += query.bind(Context.init()).visit(new DisjunctionVisitor()).size();
+                return (stats, token, count) -> pager.page(stats, token, count).thenApply(page -> {
+                    reads.rows += page.size();
+                    return page;
+                });
+            }
+        };
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        final Map<String, Integer> counts = ImmutableMap.of("a", 2, "b", 3, "c", 0);
+        for(final Map.Entry<String, Integer> entry : counts.entrySet()) {
+            database.create(caller, REF_TARGET, entry.getKey(), ImmutableMap.of("value", "batch")).get();
+            for(int i = 0; i != entry.getValue(); ++i) {
+                database.create(caller, REF_SOURCE, entry.getKey() + i, ImmutableMap.of(
+                        "target", ImmutableMap.of("id", entry.getKey())
+                )).get();
+            }
+        }
+
+        final Page<Instance> targets = database.query(caller, QueryOptions.builder()
+                .setSchema(REF_TARGET)
+                .setExpression(Expression.parse("id in [\"a\", \"b\", \"c\"]"))
+                .setExpand(Name.parseSet("sources"))
+                .build()).get();
+        assertEquals(3, targets.size());
+        for(final Instance target : targets) {
+            final String id = Instance.getId(target);
+            final Page<?> sources = (Page<?>)target.get("sources");
+            assertEquals((int)counts.get(id), sources.size());
+            for(final Object source : sources) {
+                assertTrue(Instance.getId((Map<String, Object>)source).startsWith(id));
+            }
+        }
+        return reads;
+    }
+
+    @Test
+    void testIdLinkExpansion() throws Exception {
+
+        // Memory storage does not serve IN with one index read, links joined on id are read with one batched get
+        final List<String> read = new ArrayList<>();
+        final List<Expression> queried = new ArrayList<>();
+        final Storage memory = MemoryStorage.builder().build();
+        final Storage storage = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public Pager<Map<String, Object>> query(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+                if(REF_TARGET.equals(schema.getQualifiedName())) {
+                    queried.add(query);
+                }
+                return memory.query(consistency, schema, query, sort, expand);
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                return new ReadTransaction() {
+
+                    private ReadTransaction delegate = memory.read(consistency);
+
+                    @Override
+                    public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                        read.add(id);
+                        delegate = delegate.get(schema, id, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                        read.add(id);
+                        delegate = delegate.getVersion(schema, id, version, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> read() {
+
+                        return delegate.read();
+                    }
+                };
+            }
+        };
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        database.create(caller, REF_TARGET, "a", ImmutableMap.of("value", "a")).get();
+        database.create(caller, REF_TARGET, "b", ImmutableMap.of("value", "b")).get();
+        final Map<String, String> targets = ImmutableMap.of("s1", "a", "s2", "a", "s3", "b", "s4", "z");
+        for(final Map.Entry<String, String> entry : targets.entrySet()) {
+            database.create(caller, REF_SOURCE, entry.getKey(), ImmutableMap.of(
+                    "target", ImmutableMap.of("id", entry.getValue())
+            )).get();
+        }
+        read.clear();
+
+        final Page<Instance> sources = database.query(caller, QueryOptions.builder()
+                .setSchema(REF_SOURCE)
+                .setExpression(Expression.parse("target.id in [\"a\", \"b\", \"z\"]"))
+                .setExpand(Name.parseSet("targets"))
+                .build()).get();
+        assertEquals(4, sources.size());
+        for(final Instance source : sources) {
+            final String target = targets.get(Instance.getId(source));
+            final Page<?> linked = (Page<?>)source.get("targets");
+            if("z".equals(target)) {
+                assertEquals(0, linked.size());
+            } else {
+                assertEquals(1, linked.size());
+                assertEquals(target, ((Map<?, ?>)linked.get(0)).get("value"));
+            }
+        }
+        assertEquals(Collections.emptyList(), queried);
+        assertEquals(ImmutableSet.of("a", "b", "z"), ImmutableSet.copyOf(read));
+        assertEquals(3, read.size());
+    }
+
+    @Test
+    void testExpandReadsRefOnce() throws Exception {
+
+        final List<String> read = new ArrayList<>();
+        final Storage memory = MemoryStorage.builder().build();
+        final Storage storage = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                final ReadTransaction delegate = memory.read(consistency);
+                return new ReadTransaction() {
+
+                    @Override
+                    public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                        read.add(id);
+                        delegate.get(schema, id, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                        read.add(id);
+                        delegate.getVersion(schema, id, version, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> read() {
+
+                        return delegate.read();
+                    }
+                };
+            }
+        };
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        database.create(caller, REF_TARGET, "a", ImmutableMap.of("value", "root")).get();
+        database.create(caller, REF_TARGET, "b", ImmutableMap.of("value", "chain", "target", ImmutableMap.of("id", "a"))).get();
+        database.create(caller, REF_TARGET, "c", ImmutableMap.of("value", "chain", "target", ImmutableMap.of("id", "b"))).get();
+
+        read.clear();
+        final Page<Instance> page = database.query(caller, QueryOptions.builder()
+                .setSchema(REF_TARGET)
+                .setExpression(Expression.parse("id in [\"b\", \"c\"]"))
+                .setExpand(Name.parseSet("target.target"))
+                .build()).get();
+        assertEquals(2, page.size());
+        for(final Instance instance : page) {
+            if("c".equals(Instance.getId(instance))) {
+                final Instance b = instance.get("target", Instance.class);
+                assertEquals("chain", b.get("value"));
+                assertEquals("root", b.get("target", Instance.class).get("value"));
+            } else {
+                assertEquals("root", instance.get("target", Instance.class).get("value"));
+            }
+        }
+        // a is referenced at two depths but only read once
+        assertEquals(2, read.size());
+        assertEquals(ImmutableSet.of("a", "b"), ImmutableSet.copyOf(read));
+    }
+
+    @Test
+    void testExpandReadFailure() throws Exception {
+
+        final Storage memory = MemoryStorage.builder().build();
+        final Storage storage = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                throw new IllegalStateException("read failed");
+            }
+        };
+        final Database setup = DatabaseServer.builder()
+                .namespace(namespace).storage(memory)
+                .emitter(emitter).build();
+        setup.create(caller, REF_TARGET, "a", ImmutableMap.of("value", "root")).get();
+        setup.create(caller, REF_TARGET, "b", ImmutableMap.of("value", "chain", "target", ImmutableMap.of("id", "a"))).get();
+
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        // The failed read completes the request rather than leaving its refs pending
+        final CompletableFuture<Page<Instance>> page = database.query(caller, QueryOptions.builder()
+                .setSchema(REF_TARGET)
+                .setExpression(Expression.parse("id == \"b\""))
+                .setExpand(Name.parseSet("target"))
+                .build());
+        final ExecutionException e = assertThrows(ExecutionException.class, () -> page.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void testCallerCached() throws Exception {
+
+        final List<String> read = new ArrayList<>();
+        final Storage memory = MemoryStorage.builder().build();
+        final Storage storage = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public CompletableFuture<Map<String, Object>> get(final Consistency consistency, final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                read.add(id);
+                return memory.get(consistency, schema, id, expand);
+            }
+        };
+        final Database database = DatabaseServer.builder()
+                .namespace(namespace).storage(storage)
+                .emitter(emitter).build();
+
+        database.create(Caller.SUPER, SIMPLE, "caller", ImmutableMap.of("string", "a")).get();
+        database.create(Caller.SUPER, SIMPLE, "other", ImmutableMap.of()).get();
+
+        final Caller caller = Mockito.mock(Caller.class);
+        when(caller.getSchema()).thenReturn(SIMPLE);
+        when(caller.getId()).thenReturn("caller");
+
+        read.clear();
+        database.read(caller, SIMPLE, "other").get();
+        database.read(caller, SIMPLE, "other").get();
+        assertEquals(1, Collections.frequency(read, "caller"));
+
+        // A read at another consistency does not share the cached caller
+        database.read(caller, ReadOptions.builder().setSchema(SIMPLE).setId("other")
+                .setConsistency(Consistency.QUORUM).setLinkConsistency(Consistency.QUORUM).build()).get();
+        assertEquals(2, Collections.frequency(read, "caller"));
+
+        // Writes to the caller object drop it from the cache
+        database.update(Caller.SUPER, SIMPLE, "caller", ImmutableMap.of("string", "b")).get();
+        read.clear();
+        database.read(caller, SIMPLE, "other").get();
+        assertEquals(1, Collections.frequency(read, "caller"));
+    }
+
+    private static List<String> ids(final Page<Instance> page) {
+
+        final List<String> ids = new ArrayList<>();
+        page.forEach(instance -> ids.add(Instance.getId(instance)));
+        return ids;
+    }
 }
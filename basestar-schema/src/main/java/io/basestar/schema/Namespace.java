@@ -24,12 +24,15 @@ import com.fasterxml.jackson.annotation.JsonAnySetter;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonValue;
 import com.google.common.collect.ImmutableSortedMap;
+import io.basestar.expression.Expression;
 import io.basestar.expression.Renaming;
+import io.basestar.expression.logical.Or;
 import io.basestar.schema.exception.SchemaValidationException;
 import io.basestar.util.Immutable;
 import io.basestar.util.Name;
 import io.basestar.util.Nullsafe;
 import io.basestar.util.URLs;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -81,6 +84,13 @@ public class Namespace implements Loadable, Schema.Resolver {
 
     private final SortedMap<Name, Schema<?>> schemas;
 
+    // Queries for objects expanding a ref, by referenced schema then dependent schema (see getRefQueries), derived
+    // from schemas and rebuilt in each constructor
+
+    @Getter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    private final Map<Name, Map<Name, Expression>> refQueries;
+
     @Data
     @Accessors(chain = true)
     public static class Builder implements Descriptor {
@@ -177,12 +187,46 @@ public class Namespace implements Loadable, Schema.Resolver {
             resolveCyclic(resolver, version, entry.getKey(), entry.getValue(), descriptors, renaming, out);
         }
         this.schemas = ImmutableSortedMap.copyOf(out);
+        this.refQueries = refQueries(this.schemas);
     }
 
     private Namespace(final Map<Name, Schema<?>> schemas, final Version version) {
 
         this.schemas = ImmutableSortedMap.copyOf(schemas);
         this.version = version;
+        this.refQueries = refQueries(this.schemas);
+    }
+
+    private static Map<Name, Map<Name, Expression>> refQueries(final Map<Name, Schema<?>> schemas) {
+
+        final Map<Name, Map<Name, Expression>> result = new HashMap<>();
+        schemas.forEach((dependentName, dependent) -> {
+            // Only expanded refs produce queries
+            if(dependent instanceof ObjectSchema && !((ObjectSchema) dependent).getExpand().isEmpty()) {
+                final ObjectSchema objectSchema = (ObjectSchema) dependent;
+                schemas.values().forEach(referenced -> {
+                    if(referenced instanceof ObjectSchema) {
+                        final Name referencedName = referenced.getQualifiedName();
+                        final Set<Expression> queries = objectSchema.refQueries(referencedName, objectSchema.getExpand());
+                        if(!queries.isEmpty()) {
+                            result.computeIfAbsent(referencedName, ignored -> new HashMap<>())
+                                    .put(dependentName, new Or(queries.toArray(new Expression[0])));
+                        }
+                    }
+                });
+            }
+        });
+        return Immutable.transformValues(result, (k, v) -> Collections.unmodifiableMap(v));
+    }
+
+    /**
+     * Queries for each object schema that expands refs to the provided schema, matching objects that would need to be
+     * refreshed when the referenced object changes. Queries reference the changed object as this.
+     */
+
+    public Map<Name, Expression> getRefQueries(final Name referencedSchemaName) {
+
+        return refQueries.getOrDefault(referencedSchemaName, Collections.emptyMap());
     }
 
     private Schema<?> resolveCyclic(final Schema.Resolver resolver, final Version version, final Name inputName,
@@ -58,6 +58,12 @@ public class DynamoDBStorageTraits implements StorageTraits {
         return true;
     }
 
+    @Override
+    public int getMaxTransactionSize() {
+
+        return DynamoDBUtils.MAX_TRANSACTION_SIZE;
+    }
+
     @Override
     public Concurrency getObjectConcurrency() {
 
@@ -54,6 +54,8 @@ public class DynamoDBUtils {
 
     public static final int MAX_WRITE_BATCH_SIZE = 25;
 
+    public static final int MAX_TRANSACTION_SIZE = 100;
+
     public static final int MAX_ITEM_SIZE = 400_000;
 
     public static Map<String, AttributeValue> toItem(final Map<String, Object> values) {
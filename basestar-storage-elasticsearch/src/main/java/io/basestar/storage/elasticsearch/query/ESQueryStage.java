@@ -21,6 +21,7 @@ import io.basestar.util.Sort;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.lucene.search.TotalHits;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.IndicesOptions;
@@ -41,6 +42,9 @@ import java.util.*;
 
 public interface ESQueryStage {
 
+    // Total hits are only counted exactly up to this limit unless an exact total is requested
+    int APPROX_TOTAL_LIMIT = 10000;
+
     ESQueryStage filter(Expression filter);
 
     ESQueryStage sort(List<Sort> sort);
@@ -140,8 +144,12 @@ public interface ESQueryStage {
             }
             sourceBuilder.query(query);
             sourceBuilder.size(count);
-            // FIXME: do not track total hits when stats doesn't say we should
-            sourceBuilder.trackTotalHits(true);
+            if(stats != null && stats.contains(Page.Stat.TOTAL)) {
+                sourceBuilder.trackTotalHits(true);
+            } else {
+                // Count is exact up to the limit and a lower bound beyond it, must exceed count for paging to work
+                sourceBuilder.trackTotalHitsUpTo(Math.max(APPROX_TOTAL_LIMIT, count + 1));
+            }
             request.source(sourceBuilder);
             request.indicesOptions(IndicesOptions.lenientExpandOpen());
             return Optional.of(request);
@@ -165,14 +173,17 @@ public interface ESQueryStage {
                 last = mappings.fromSource(hit.getSourceAsMap());
                 results.add(last);
             }
-            final long total = hits.getTotalHits().value;
+            final TotalHits totalHits = hits.getTotalHits();
+            final long total = totalHits.value;
             final Page.Token newPaging;
             if (total > results.size() && last != null) {
                 newPaging = KeysetPagingUtils.keysetPagingToken(schema, normalizedSort, last);
             } else {
                 newPaging = null;
             }
-            return new Page<>(results, newPaging, Page.Stats.fromTotal(total));
+            final Page.Stats pageStats = totalHits.relation == TotalHits.Relation.EQUAL_TO
+                    ? Page.Stats.fromTotal(total) : Page.Stats.fromApproxTotal(total);
+            return new Page<>(results, newPaging, pageStats);
         }
     }
 
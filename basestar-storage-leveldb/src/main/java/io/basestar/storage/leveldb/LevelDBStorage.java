@@ -72,7 +72,7 @@ public class LevelDBStorage implements DefaultIndexStorage {
             final List<Map<String, Object>> page = new ArrayList<>();
             for (int i = 0; i != count && iter.hasNext(); ++i) {
                 final Map.Entry<byte[], byte[]> entry = iter.next();
-                if (matches(entry.getKey(), key)) {
+                if (BinaryKey.startsWith(entry.getKey(), key)) {
                     page.add(fromBytes(entry.getValue()));
                 } else {
                     break;
@@ -81,7 +81,7 @@ public class LevelDBStorage implements DefaultIndexStorage {
             Page.Token newPaging = null;
             if(iter.hasNext()) {
                 final Map.Entry<byte[], byte[]> entry = iter.next();
-                if(matches(entry.getKey(), key)) {
+                if(BinaryKey.startsWith(entry.getKey(), key)) {
                     newPaging = new Page.Token(entry.getKey());
                 }
             }
@@ -400,18 +400,4 @@ public class LevelDBStorage implements DefaultIndexStorage {
             }
         }
     }
-
-    private static boolean matches(final byte[] key, final byte[] match) {
-
-        if(key.length < match.length) {
-            return false;
-        } else {
-            for(int i = 0; i != match.length; ++i) {
-                if(key[i] != match[i]) {
-                    return false;
-                }
-            }
-            return true;
-        }
-    }
 }
@@ -0,0 +1,389 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.basestar.event.Event;
+import io.basestar.schema.*;
+import io.basestar.util.Bytes;
+import io.basestar.util.Name;
+import io.basestar.util.Nullsafe;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+import lombok.Data;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Object cache in front of any storage, bounded by the estimated encoded size of the cached objects.
+ *
+ * History (versioned) reads without expansion are immutable and are cached until evicted (expanded history is not
+ * cached, since the referenced objects may change), latest reads are served from cache only for eventual (or weaker)
+ * consistency and expire after a short TTL. Latest entries are invalidated by local writes and by the
+ * after-create/update/delete hooks, which the database calls when handling object events.
+ *
+ * Each invalidation bumps a generation counter for the key (striped, so unrelated keys may share a counter), a read
+ * only fills the cache if the generation is unchanged since the read was issued, so a read racing a write cannot
+ * cache the value from before the write.
+ */
+
+public class CachingStorage implements DelegatingStorage {
+
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 64L * 1024 * 1024;
+
+    public static final Duration DEFAULT_LATEST_TTL = Duration.ofSeconds(30);
+
+    public static final String DEFAULT_NAME = "storage";
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final Storage storage;
+
+    private final Cache<BatchResponse.RefKey, CacheEntry> versions;
+
+    private final Cache<BatchResponse.RefKey, CacheEntry> latest;
+
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    @lombok.Builder(builderClassName = "Builder", setterPrefix = "set")
+    CachingStorage(final Storage storage, final String name, final Long maximumWeight, final Duration latestTtl) {
+
+        this.storage = Nullsafe.require(storage);
+        final String cacheName = Nullsafe.orDefault(name, DEFAULT_NAME);
+        final long weight = Nullsafe.orDefault(maximumWeight, DEFAULT_MAXIMUM_WEIGHT);
+        final Duration ttl = Nullsafe.orDefault(latestTtl, DEFAULT_LATEST_TTL);
+        // Most of the capacity goes to history since those entries never go stale
+        this.versions = GuavaCacheMetrics.monitor(Metrics.globalRegistry, CacheBuilder.newBuilder()
+                .maximumWeight(weight - weight / 4)
+                .weigher((BatchResponse.RefKey k, CacheEntry v) -> v.getWeight())
+                .recordStats()
+                .build(), "storage.cache." + cacheName + ".versions");
+        this.latest = GuavaCacheMetrics.monitor(Metrics.globalRegistry, CacheBuilder.newBuilder()
+                .maximumWeight(weight / 4)
+                .weigher((BatchResponse.RefKey k, CacheEntry v) -> v.getWeight())
+                .expireAfterWrite(ttl.toNanos(), TimeUnit.NANOSECONDS)
+                .recordStats()
+                .build(), "storage.cache." + cacheName + ".latest");
+    }
+
+    @Override
+    public Storage storage(final LinkableSchema schema) {
+
+        return storage;
+    }
+
+    private static boolean cacheLatest(final Consistency consistency) {
+
+        return consistency.isWeakerOrEqual(Consistency.EVENTUAL);
+    }
+
+    private Map<String, Object> cached(final Consistency consistency, final BatchResponse.RefKey key, final Set<Name> expand) {
+
+        final CacheEntry entry;
+        if(key.hasVersion()) {
+            if(!cacheVersion(expand)) {
+                return null;
+            }
+            entry = versions.getIfPresent(key);
+        } else if(cacheLatest(consistency)) {
+            entry = latest.getIfPresent(key);
+        } else {
+            return null;
+        }
+        return entry == null ? null : entry.get(expand);
+    }
+
+    private static boolean cacheVersion(final Set<Name> expand) {
+
+        return expand == null || expand.isEmpty();
+    }
+
+    private long generation(final BatchResponse.RefKey key) {
+
+        return generations.get(stripe(key));
+    }
+
+    private static int stripe(final BatchResponse.RefKey key) {
+
+        return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private void put(final BatchResponse.RefKey key, final Set<Name> expand, final Map<String, Object> value, final long generation) {
+
+        if(key.hasVersion()) {
+            if(cacheVersion(expand)) {
+                versions.asMap().compute(key, (k, v) -> v == null ? CacheEntry.of(expand, value) : v.with(expand, value));
+            }
+        } else {
+            // Checked inside compute, an invalidation either bumps the generation first or removes this entry after
+            latest.asMap().compute(key, (k, v) -> {
+                if(generation(k) != generation) {
+                    return v;
+                }
+                return v == null ? CacheEntry.of(expand, value) : v.with(expand, value);
+            });
+        }
+    }
+
+    public void invalidate(final Name schema, final String id) {
+
+        final BatchResponse.RefKey key = BatchResponse.RefKey.latest(schema, id);
+        generations.incrementAndGet(stripe(key));
+        latest.invalidate(key);
+    }
+
+    private void invalidate(final ReferableSchema schema, final String id) {
+
+        invalidate(schema.getQualifiedName(), id);
+        if(schema instanceof ObjectSchema) {
+            // Polymorphic reads are cached under the interface names
+            ((ObjectSchema) schema).getIndirectExtend().forEach(layer -> invalidate(layer.getQualifiedName(), id));
+        }
+    }
+
+    @Override
+    public ReadTransaction read(final Consistency consistency) {
+
+        return new ReadTransaction() {
+
+            private final BatchCapture capture = new BatchCapture();
+
+            @Override
+            public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                capture.captureLatest(schema, id, expand);
+                return this;
+            }
+
+            @Override
+            public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                capture.captureVersion(schema, id, version, expand);
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> read() {
+
+                final Map<BatchResponse.RefKey, Map<String, Object>> hits = new HashMap<>();
+                final Map<BatchResponse.RefKey, Set<Name>> misses = new HashMap<>();
+                final Map<BatchResponse.RefKey, Long> issued = new HashMap<>();
+                ReadTransaction delegate = null;
+                for(final Map.Entry<ReferableSchema, Map<BatchResponse.RefKey, BatchCapture.RefArgs>> schemaEntry : capture.getRefs().entrySet()) {
+                    final ReferableSchema schema = schemaEntry.getKey();
+                    for(final Map.Entry<BatchResponse.RefKey, BatchCapture.RefArgs> entry : schemaEntry.getValue().entrySet()) {
+                        final BatchResponse.RefKey key = entry.getKey();
+                        final Set<Name> expand = entry.getValue().getExpand();
+                        final Map<String, Object> hit = cached(consistency, key, expand);
+                        if(hit != null) {
+                            hits.put(BatchResponse.RefKey.from(key.getSchema(), hit), hit);
+                        } else {
+                            if(delegate == null) {
+                                delegate = storage.read(consistency);
+                            }
+                            if(key.hasVersion()) {
+                                delegate = delegate.getVersion(schema, key.getId(), key.getVersion(), expand);
+                            } else {
+                                delegate = delegate.get(schema, key.getId(), expand);
+                            }
+                            misses.put(key, expand);
+                            issued.put(key, key.hasVersion() ? 0L : generation(key));
+                        }
+                    }
+                }
+                if(delegate == null) {
+                    return CompletableFuture.completedFuture(BatchResponse.fromRefs(hits));
+                }
+                return delegate.read().thenApply(response -> {
+                    misses.forEach((key, expand) -> {
+                        final Map<String, Object> result = key.hasVersion()
+                                ? response.getVersion(key.getSchema(), key.getId(), key.getVersion())
+                                : response.get(key.getSchema(), key.getId());
+                        if(result != null) {
+                            put(key, expand, result, issued.get(key));
+                        }
+                    });
+                    if(hits.isEmpty()) {
+                        return response;
+                    } else {
+                        final Map<BatchResponse.RefKey, Map<String, Object>> refs = new HashMap<>(response.getRefs());
+                        refs.putAll(hits);
+                        return BatchResponse.fromRefs(refs);
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+        final WriteTransaction delegate = storage.write(consistency, versioning);
+        final Map<BatchResponse.RefKey, ReferableSchema> written = new HashMap<>();
+        return new WriteTransaction() {
+
+            private void capture(final ReferableSchema schema, final String id) {
+
+                if(id != null) {
+                    written.put(BatchResponse.RefKey.latest(schema.getQualifiedName(), id), schema);
+                    invalidate(schema, id);
+                }
+            }
+
+            @Override
+            @Deprecated
+            public WriteTransaction write(final LinkableSchema schema, final Map<String, Object> after) {
+
+                if(schema instanceof ReferableSchema) {
+                    capture((ReferableSchema) schema, Instance.getId(after));
+                }
+                delegate.write(schema, after);
+                return this;
+            }
+
+            @Override
+            public WriteTransaction createObject(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                capture(schema, id);
+                delegate.createObject(schema, id, after);
+                return this;
+            }
+
+            @Override
+            public WriteTransaction updateObject(final ObjectSchema schema, final String id, final Map<String, Object> before, final Map<String, Object> after) {
+
+                capture(schema, id);
+                delegate.updateObject(schema, id, before, after);
+                return this;
+            }
+
+            @Override
+            public WriteTransaction deleteObject(final ObjectSchema schema, final String id, final Map<String, Object> before) {
+
+                capture(schema, id);
+                delegate.deleteObject(schema, id, before);
+                return this;
+            }
+
+            @Override
+            public WriteTransaction writeHistory(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                delegate.writeHistory(schema, id, after);
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> write() {
+
+                // Invalidate again on completion, in case a concurrent read repopulated while the write was in flight
+                return delegate.write().whenComplete((response, error) -> written.forEach((key, schema) -> invalidate(schema, key.getId())));
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterCreate(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+        invalidate(schema, id);
+        return storage.afterCreate(schema, id, after);
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterUpdate(final ObjectSchema schema, final String id, final long version, final Map<String, Object> before, final Map<String, Object> after) {
+
+        invalidate(schema, id);
+        return storage.afterUpdate(schema, id, version, before, after);
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterDelete(final ObjectSchema schema, final String id, final long version, final Map<String, Object> before) {
+
+        invalidate(schema, id);
+        return storage.afterDelete(schema, id, version, before);
+    }
+
+    // Approximate encoded size, used to weight cache entries
+
+    protected static int weigh(final Object value) {
+
+        if(value == null || value instanceof Boolean) {
+            return 1;
+        } else if(value instanceof Number || value instanceof Date || value instanceof java.time.temporal.Temporal) {
+            return 8;
+        } else if(value instanceof String) {
+            return ((String) value).length() + 2;
+        } else if(value instanceof byte[]) {
+            return ((byte[]) value).length + 2;
+        } else if(value instanceof Bytes) {
+            return ((Bytes) value).getBytes().length + 2;
+        } else if(value instanceof Map<?, ?>) {
+            int weight = 2;
+            for(final Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                weight += weigh(e.getKey()) + weigh(e.getValue());
+            }
+            return weight;
+        } else if(value instanceof Collection<?>) {
+            int weight = 2;
+            for(final Object v : (Collection<?>) value) {
+                weight += weigh(v);
+            }
+            return weight;
+        } else {
+            return 16;
+        }
+    }
+
+    @Data
+    private static class CacheEntry {
+
+        private final Map<Set<Name>, Map<String, Object>> values;
+
+        private final int weight;
+
+        public static CacheEntry of(final Set<Name> expand, final Map<String, Object> value) {
+
+            return new CacheEntry(Collections.singletonMap(normalize(expand), value), weigh(value));
+        }
+
+        public Map<String, Object> get(final Set<Name> expand) {
+
+            return values.get(normalize(expand));
+        }
+
+        public CacheEntry with(final Set<Name> expand, final Map<String, Object> value) {
+
+            final Map<Set<Name>, Map<String, Object>> values = new HashMap<>(this.values);
+            final Map<String, Object> existing = values.put(normalize(expand), value);
+            final int weight = this.weight + weigh(value) - (existing == null ? 0 : weigh(existing));
+            return new CacheEntry(values, weight);
+        }
+
+        private static Set<Name> normalize(final Set<Name> expand) {
+
+            return expand == null ? Collections.emptySet() : expand;
+        }
+    }
+}
@@ -21,14 +21,18 @@ package io.basestar.storage;
  */
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import io.basestar.storage.exception.LockTimeoutException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.stream.Collectors;
 
 public interface Coordinator {
 
@@ -48,17 +52,94 @@ public interface Coordinator {
         }
     }
 
+    /**
+     * In-process locks, names are hashed onto a fixed number of stripes so memory use does not grow with the number of
+     * distinct names locked (unrelated names may share a stripe).
+     *
+     * Stripes are always acquired in stripe order, so concurrent callers cannot deadlock. If a timeout is configured
+     * and all stripes cannot be acquired within it, any acquired stripes are released and LockTimeoutException is
+     * thrown.
+     */
+
+    @SuppressWarnings("UnstableApiUsage")
     class Local implements Coordinator {
 
-        private final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<>();
+        public static final int DEFAULT_STRIPES = 1024;
+
+        private static final String METRIC_PREFIX = "storage.coordinator";
+
+        private final Striped<Lock> stripes;
+
+        private final Duration timeout;
+
+        private final Timer waitTime = Metrics.timer(METRIC_PREFIX + ".lock.wait");
+
+        private final Counter contended = Metrics.counter(METRIC_PREFIX + ".lock.contended");
+
+        private final Counter timeouts = Metrics.counter(METRIC_PREFIX + ".lock.timeout");
+
+        public Local() {
+
+            this(DEFAULT_STRIPES, null);
+        }
+
+        public Local(final int stripes, final Duration timeout) {
+
+            this.stripes = Striped.lock(stripes);
+            this.timeout = timeout;
+        }
 
         @Override
         public CloseableLock lock(final Set<String> names) {
 
-            final List<Lock> locked = names.stream().sorted().map(name -> locks.computeIfAbsent(name, ignored -> new ReentrantLock()))
-                    .collect(Collectors.toList());
-            locked.forEach(Lock::lock);
-            return () -> locked.forEach(Lock::unlock);
+            // Ordered by stripe index, names sharing a stripe are adjacent
+            final List<Lock> required = new ArrayList<>();
+            for(final Lock lock : stripes.bulkGet(names)) {
+                if(required.isEmpty() || required.get(required.size() - 1) != lock) {
+                    required.add(lock);
+                }
+            }
+            final long start = System.nanoTime();
+            final List<Lock> locked = new ArrayList<>();
+            try {
+                for(final Lock lock : required) {
+                    if(!acquire(lock, start)) {
+                        timeouts.increment();
+                        throw new LockTimeoutException(names, timeout);
+                    }
+                    locked.add(lock);
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(locked);
+                throw new IllegalStateException("Interrupted while acquiring locks " + names, e);
+            } catch (final RuntimeException e) {
+                release(locked);
+                throw e;
+            }
+            waitTime.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return () -> release(locked);
+        }
+
+        private boolean acquire(final Lock lock, final long start) throws InterruptedException {
+
+            if(lock.tryLock()) {
+                return true;
+            }
+            contended.increment();
+            if(timeout == null) {
+                lock.lockInterruptibly();
+                return true;
+            }
+            final long remaining = timeout.toNanos() - (System.nanoTime() - start);
+            return remaining > 0 && lock.tryLock(remaining, TimeUnit.NANOSECONDS);
+        }
+
+        private static void release(final List<Lock> locked) {
+
+            for(int i = locked.size() - 1; i >= 0; --i) {
+                locked.get(i).unlock();
+            }
         }
     }
 }
@@ -20,6 +20,8 @@ import java.util.stream.Collectors;
 
 public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
 
+    String ID_BATCH_KEY = "ids";
+
     @Override
     ReadTransaction read(Consistency consistency);
 
@@ -74,6 +76,24 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
 
     Pager<Map<String, Object>> queryIndex(ObjectSchema schema, Index index, SatisfyResult satisfy, Map<Name, Range<Object>> query, List<Sort> sort, Set<Name> expand);
 
+    /**
+     * Index statistics used for cost-based index selection, null if this storage does not collect them.
+     */
+
+    default IndexStatistics indexStatistics() {
+
+        return null;
+    }
+
+    /**
+     * Indexes that are being backfilled and cannot yet be queried, null if this storage does not track them.
+     */
+
+    default IndexBuilds indexBuilds() {
+
+        return null;
+    }
+
     @Override
     default Pager<Map<String, Object>> queryIndex(final ObjectSchema schema, final Index index, final Expression query, final List<Sort> sort, final Set<Name> expand) {
 
@@ -94,11 +114,42 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
     @Override
     default Pager<Map<String, Object>> queryObject(final Consistency consistency, final ObjectSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
 
+        return queryObject(consistency, schema, query, sort, expand, null);
+    }
+
+    /**
+     * Query using the named index (for every branch of the query) instead of the one chosen by the planner.
+     */
+
+    default Pager<Map<String, Object>> queryObject(final Consistency consistency, final ObjectSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand, final String forceIndex) {
+
         final Expression bound = query.bind(Context.init());
         final Set<Expression> disjunction = bound.visit(new DisjunctionVisitor());
 
         final Map<String, Pager<Map<String, Object>>> pagers = new HashMap<>();
 
+        final IndexBuilds builds = indexBuilds();
+        final Collection<Index> indexes;
+        if(forceIndex != null) {
+            final Index index = schema.getIndexes().get(forceIndex);
+            if(index == null) {
+                throw new UnsupportedQueryException(schema.getQualifiedName(), query, "index " + forceIndex + " not found");
+            }
+            if(builds != null && builds.isBuilding(schema.getQualifiedName(), index)) {
+                throw new UnsupportedQueryException(schema.getQualifiedName(), query, "index " + forceIndex + " is being built");
+            }
+            indexes = Collections.singletonList(index);
+        } else if(builds != null) {
+            indexes = schema.getIndexes().values().stream()
+                    .filter(index -> !builds.isBuilding(schema.getQualifiedName(), index))
+                    .collect(Collectors.toList());
+        } else {
+            indexes = schema.getIndexes().values();
+        }
+
+        // Branches that select a single id (including id IN [...]) are read together in one batch
+        final Set<String> ids = new TreeSet<>();
+
         List<Sort> indexSort = null;
         for (final Expression conjunction : disjunction) {
             final Map<Name, Range<Object>> ranges = new HashMap<>();
@@ -107,14 +158,13 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
                 ranges.put(name, entry.getValue());
             }
 
-            final Optional<String> optId = constantId(ranges);
+            final Optional<String> optId = forceIndex == null ? constantId(ranges) : Optional.empty();
             if(optId.isPresent()) {
 
-                pagers.put(conjunction.digest(), Pager.simple(get(Consistency.ATOMIC, schema, optId.get(), expand)
-                        .thenApply(v -> v == null ? Collections.emptyList() : Collections.singletonList(v))));
+                ids.add(optId.get());
 
             } else {
-                final Optional<SatisfyResult> optSatisfy = satisfy(schema.getIndexes().values(), ranges, sort);
+                final Optional<SatisfyResult> optSatisfy = satisfy(schema.getQualifiedName(), indexes, ranges, sort, indexStatistics());
                 if (optSatisfy.isPresent()) {
 
                     final SatisfyResult satisfy = optSatisfy.get();
@@ -133,9 +183,30 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
             }
         }
 
+        if(!ids.isEmpty()) {
+            pagers.put(ID_BATCH_KEY, Pager.simple(getAll(schema, ids, expand)
+                    .thenApply(results -> {
+                        final List<Map<String, Object>> sorted = new ArrayList<>(results);
+                        sorted.sort(Instance.comparator(sort));
+                        return sorted;
+                    })));
+        }
+
         return Pager.merge(Instance.comparator(sort), pagers);
     }
 
+    default CompletableFuture<List<Map<String, Object>>> getAll(final ObjectSchema schema, final Collection<String> ids, final Set<Name> expand) {
+
+        Storage.ReadTransaction read = read(Consistency.ATOMIC);
+        for(final String id : ids) {
+            read = read.get(schema, id, expand);
+        }
+        return read.read().thenApply(response -> ids.stream()
+                .map(id -> response.get(schema, id))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList()));
+    }
+
     interface ReadTransaction extends IndexStorage.ReadTransaction, DefaultLayerStorage.ReadTransaction {
 
     }
@@ -148,6 +219,15 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
 
         void deleteIndex(ReferableSchema schema, Index index, String id, long version, Index.Key key);
 
+        /**
+         * Change in the number of records for an index partition, storage that collects statistics should apply these
+         * only once the transaction has been written.
+         */
+
+        default void recordIndex(final ReferableSchema schema, final Index index, final Index.Key key, final long delta) {
+
+        }
+
         @Override
         default Storage.WriteTransaction createObject(final ObjectSchema schema, final String id, final Map<String, Object> after) {
 
@@ -180,7 +260,10 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
 
             indexes.forEach(index -> {
                 final Map<Index.Key, Map<String, Object>> records = index.readValues(after);
-                records.forEach((key, projection) -> createIndex(schema, index, id, 0L, key, projection));
+                records.forEach((key, projection) -> {
+                    createIndex(schema, index, id, 0L, key, projection);
+                    recordIndex(schema, index, key, 1);
+                });
             });
             return this;
         }
@@ -192,14 +275,23 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
                 long version = Instance.getVersion(before);
                 indexes.forEach(index -> {
                     final Index.Diff diff = Index.Diff.from(index.readValues(before), index.readValues(after));
-                    diff.getCreate().forEach((key, projection) -> createIndex(schema, index, id, version, key, projection));
+                    diff.getCreate().forEach((key, projection) -> {
+                        createIndex(schema, index, id, version, key, projection);
+                        recordIndex(schema, index, key, 1);
+                    });
                     diff.getUpdate().forEach((key, projection) -> updateIndex(schema, index, id, version, key, projection));
-                    diff.getDelete().forEach((key) -> deleteIndex(schema, index, id, version, key));
+                    diff.getDelete().forEach((key) -> {
+                        deleteIndex(schema, index, id, version, key);
+                        recordIndex(schema, index, key, -1);
+                    });
                 });
             } else {
                 indexes.forEach(index -> {
                     final Map<Index.Key, Map<String, Object>> records = index.readValues(after);
-                    records.forEach((key, projection) -> createIndex(schema, index, id, 0L, key, projection));
+                    records.forEach((key, projection) -> {
+                        createIndex(schema, index, id, 0L, key, projection);
+                        recordIndex(schema, index, key, 1);
+                    });
                 });
             }
             return this;
@@ -212,7 +304,10 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
                 long version = Instance.getVersion(before);
                 indexes.forEach(index -> {
                     final Map<Index.Key, Map<String, Object>> records = index.readValues(before);
-                    records.keySet().forEach((key) -> deleteIndex(schema, index, id, version, key));
+                    records.keySet().forEach((key) -> {
+                        deleteIndex(schema, index, id, version, key);
+                        recordIndex(schema, index, key, -1);
+                    });
                 });
             }
             return this;
@@ -239,6 +334,36 @@ public interface DefaultIndexStorage extends IndexStorage, DefaultLayerStorage {
         return best;
     }
 
+    /**
+     * Choose the match with the lowest estimated rows scanned, using specificity (see SatisfyResult.compareTo) to break
+     * ties, or where any candidate has no estimate.
+     */
+
+    static Optional<SatisfyResult> satisfy(final Name schema, final Iterable<Index> indexes, final Map<Name, Range<Object>> query, final List<Sort> sort, final IndexStatistics statistics) {
+
+        if(statistics == null) {
+            return satisfy(indexes, query, sort);
+        }
+        SatisfyResult lowest = null;
+        long lowestEstimate = Long.MAX_VALUE;
+        for (final Index index : indexes) {
+            final Optional<SatisfyResult> next = satisfy(index, query, sort);
+            if(next.isPresent()) {
+                final SatisfyResult result = next.get();
+                final OptionalLong estimate = statistics.estimate(schema, index, result.getPartition());
+                if(!estimate.isPresent()) {
+                    return satisfy(indexes, query, sort);
+                }
+                final long value = estimate.getAsLong();
+                if(lowest == null || value < lowestEstimate || (value == lowestEstimate && result.compareTo(lowest) > 0)) {
+                    lowest = result;
+                    lowestEstimate = value;
+                }
+            }
+        }
+        return Optional.ofNullable(lowest);
+    }
+
     static Optional<String> constantId(final Map<Name, Range<Object>> query) {
 
         final Range<Object> range = query.get(Name.of(ObjectSchema.ID));
@@ -30,6 +30,7 @@ import io.basestar.util.CompletableFutures;
 import io.basestar.util.Name;
 import io.basestar.util.Pager;
 import io.basestar.util.Sort;
+import org.reactivestreams.Publisher;
 
 import java.util.IdentityHashMap;
 import java.util.List;
@@ -85,6 +86,13 @@ public interface DelegatingStorage extends Storage {
         return storage(schema).query(consistency, schema, query, sort, expand);
     }
 
+    @Override
+    default Publisher<Map<String, Object>> queryStream(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+        // Explicit non-delegation, default implementation must be called to reach query() override
+        return Storage.super.queryStream(consistency, schema, query, sort, expand);
+    }
+
     @Override
     default CompletableFuture<Set<Event>> afterCreate(final ObjectSchema schema, final String id, final Map<String, Object> after) {
 
@@ -109,22 +117,26 @@ public interface DelegatingStorage extends Storage {
         final IdentityHashMap<Storage, ReadTransaction> transactions = new IdentityHashMap<>();
         return new ReadTransaction() {
 
-            public ReadTransaction delegate(final ReferableSchema schema) {
+            // Gets may return a different transaction (e.g. for interface schemas), so the result replaces the delegate
+
+            public ReadTransaction delegate(final Storage storage) {
 
-                return transactions.computeIfAbsent(storage(schema), v -> v.read(consistency));
+                return transactions.computeIfAbsent(storage, v -> v.read(consistency));
             }
 
             @Override
             public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
 
-                delegate(schema).get(schema, id, expand);
+                final Storage storage = storage(schema);
+                transactions.put(storage, delegate(storage).get(schema, id, expand));
                 return this;
             }
 
             @Override
             public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
 
-                delegate(schema).getVersion(schema, id, version, expand);
+                final Storage storage = storage(schema);
+                transactions.put(storage, delegate(storage).getVersion(schema, id, version, expand));
                 return this;
             }
 
@@ -0,0 +1,407 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.schema.ReferableSchema;
+import io.basestar.util.Nullsafe;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import lombok.Builder;
+import lombok.Data;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Merges independent concurrent write transactions into a single backend write transaction.
+ *
+ * Transactions are collected for up to the configured window (or until the batch size is reached), transactions
+ * that touch the same object are never grouped together. If the merged write fails, each transaction is retried on
+ * its own so that errors (including version mismatches) are reported only to the transaction that caused them.
+ *
+ * Merged writes are only attempted where the backend applies the merged write as one transaction (atomic writes) or
+ * where replaying a partially applied write is harmless (unchecked versioning), otherwise transactions are passed
+ * straight through. Weaker consistencies may be written in independent chunks (e.g. DynamoDB BatchWriteItem), so a
+ * failed merge could leave some members applied.
+ *
+ * Groups are also capped at the backend's transaction size (see StorageTraits.getMaxTransactionSize), counting each
+ * object operation as the object plus one item per index (two for updates), multi-value indexes may write more.
+ */
+
+@Slf4j
+@Builder(builderClassName = "Builder", setterPrefix = "set")
+public class GroupCommitStorage implements DelegatingStorage {
+
+    public static final Duration DEFAULT_WINDOW = Duration.ofMillis(2);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 10;
+
+    private static final String METRIC_PREFIX = "storage.group-commit";
+
+    private final Storage storage;
+
+    private final Duration window;
+
+    private final int maxBatchSize;
+
+    private final ScheduledExecutorService executor;
+
+    private final Map<GroupKey, Group> groups = new HashMap<>();
+
+    private final Object lock = new Object();
+
+    private final DistributionSummary batchSize = Metrics.summary(METRIC_PREFIX + ".batch.size");
+
+    private final Timer waitTime = Metrics.timer(METRIC_PREFIX + ".wait");
+
+    private final Timer commitTime = Metrics.timer(METRIC_PREFIX + ".commit");
+
+    private final DistributionSummary fallbackSize = Metrics.summary(METRIC_PREFIX + ".fallback.size");
+
+    public static class Builder {
+
+        public GroupCommitStorage build() {
+
+            return new GroupCommitStorage(Nullsafe.require(storage),
+                    Nullsafe.orDefault(window, DEFAULT_WINDOW),
+                    maxBatchSize > 0 ? maxBatchSize : DEFAULT_MAX_BATCH_SIZE,
+                    Nullsafe.orDefault(executor, GroupCommitStorage::defaultExecutor));
+        }
+    }
+
+    private static ScheduledExecutorService defaultExecutor() {
+
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "group-commit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Storage storage(final LinkableSchema schema) {
+
+        return storage;
+    }
+
+    private static boolean groupable(final Consistency consistency, final Versioning versioning) {
+
+        return consistency == Consistency.ATOMIC || !versioning.isChecked();
+    }
+
+    @Override
+    public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+        if(!groupable(consistency, versioning)) {
+            return storage.write(consistency, versioning);
+        }
+        return new Pending(new GroupKey(consistency, versioning));
+    }
+
+    private void enqueue(final Pending pending) {
+
+        if(pending.getItems() > pending.getItemLimit()) {
+            // Would not fit in a transaction even on its own, so nothing can be merged with it
+            commitSingle(pending);
+            return;
+        }
+        final List<Group> flush = new ArrayList<>();
+        synchronized (lock) {
+            Group group = groups.get(pending.getGroupKey());
+            if(group != null && (group.overlaps(pending) || !group.fits(pending))) {
+                groups.remove(pending.getGroupKey());
+                flush.add(group);
+                group = null;
+            }
+            if(group == null) {
+                final Group created = new Group(pending.getGroupKey());
+                groups.put(pending.getGroupKey(), created);
+                executor.schedule(() -> flushIfPending(created), window.toNanos(), TimeUnit.NANOSECONDS);
+                group = created;
+            }
+            group.add(pending);
+            if(group.size() >= maxBatchSize) {
+                groups.remove(pending.getGroupKey());
+                flush.add(group);
+            }
+        }
+        flush.forEach(this::commit);
+    }
+
+    private void flushIfPending(final Group group) {
+
+        synchronized (lock) {
+            if(groups.get(group.getKey()) != group) {
+                // Already flushed by size or overlap
+                return;
+            }
+            groups.remove(group.getKey());
+        }
+        commit(group);
+    }
+
+    private void commit(final Group group) {
+
+        final List<Pending> members = group.getMembers();
+        final long now = System.nanoTime();
+        members.forEach(member -> waitTime.record(now - member.getEnqueued(), TimeUnit.NANOSECONDS));
+        batchSize.record(members.size());
+
+        if(members.size() == 1) {
+            commitSingle(members.get(0));
+            return;
+        }
+
+        final GroupKey key = group.getKey();
+        final CompletableFuture<BatchResponse> future;
+        try {
+            final WriteTransaction write = storage.write(key.getConsistency(), key.getVersioning());
+            members.forEach(member -> member.apply(write));
+            future = write.write();
+        } catch (final Exception e) {
+            fallback(members, e);
+            return;
+        }
+        future.whenComplete((response, error) -> {
+            commitTime.record(System.nanoTime() - now, TimeUnit.NANOSECONDS);
+            if(error != null) {
+                fallback(members, error);
+            } else {
+                members.forEach(member -> member.getFuture().complete(member.filter(response)));
+            }
+        });
+    }
+
+    private void fallback(final List<Pending> members, final Throwable cause) {
+
+        log.debug("Group commit of {} transactions failed, retrying individually", members.size(), cause);
+        fallbackSize.record(members.size());
+        members.forEach(this::commitSingle);
+    }
+
+    private void commitSingle(final Pending member) {
+
+        try {
+            final GroupKey key = member.getGroupKey();
+            final WriteTransaction write = storage.write(key.getConsistency(), key.getVersioning());
+            member.apply(write);
+            write.write().whenComplete((response, error) -> {
+                if(error != null) {
+                    member.getFuture().completeExceptionally(error);
+                } else {
+                    member.getFuture().complete(response);
+                }
+            });
+        } catch (final Exception e) {
+            member.getFuture().completeExceptionally(e);
+        }
+    }
+
+    @Data
+    private static class GroupKey {
+
+        private final Consistency consistency;
+
+        private final Versioning versioning;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class Group {
+
+        private final GroupKey key;
+
+        private final List<Pending> members = new ArrayList<>();
+
+        private final Set<BatchResponse.RefKey> refs = new HashSet<>();
+
+        private int items;
+
+        private int itemLimit = Integer.MAX_VALUE;
+
+        public boolean overlaps(final Pending pending) {
+
+            return pending.getRefs().stream().anyMatch(refs::contains);
+        }
+
+        public boolean fits(final Pending pending) {
+
+            return items + pending.getItems() <= Math.min(itemLimit, pending.getItemLimit());
+        }
+
+        public void add(final Pending pending) {
+
+            members.add(pending);
+            refs.addAll(pending.getRefs());
+            items += pending.getItems();
+            itemLimit = Math.min(itemLimit, pending.getItemLimit());
+        }
+
+        public int size() {
+
+            return members.size();
+        }
+    }
+
+    private class Pending implements WriteTransaction {
+
+        private final GroupKey groupKey;
+
+        private final List<Consumer<WriteTransaction>> operations = new ArrayList<>();
+
+        private final Set<BatchResponse.RefKey> refs = new HashSet<>();
+
+        private final CompletableFuture<BatchResponse> future = new CompletableFuture<>();
+
+        private long enqueued;
+
+        private int items;
+
+        private int itemLimit = Integer.MAX_VALUE;
+
+        public Pending(final GroupKey groupKey) {
+
+            this.groupKey = groupKey;
+        }
+
+        public GroupKey getGroupKey() {
+
+            return groupKey;
+        }
+
+        public Set<BatchResponse.RefKey> getRefs() {
+
+            return refs;
+        }
+
+        public CompletableFuture<BatchResponse> getFuture() {
+
+            return future;
+        }
+
+        public long getEnqueued() {
+
+            return enqueued;
+        }
+
+        public int getItems() {
+
+            return items;
+        }
+
+        public int getItemLimit() {
+
+            return itemLimit;
+        }
+
+        private void capture(final LinkableSchema schema, final String id, final int items, final Consumer<WriteTransaction> operation) {
+
+            if(id != null) {
+                refs.add(BatchResponse.RefKey.latest(schema.getQualifiedName(), id));
+            }
+            if(schema instanceof ReferableSchema) {
+                itemLimit = Math.min(itemLimit, storage.storageTraits((ReferableSchema) schema).getMaxTransactionSize());
+            }
+            this.items += items;
+            operations.add(operation);
+        }
+
+        private int items(final ObjectSchema schema, final int perIndex) {
+
+            return 1 + perIndex * schema.getIndexes().size();
+        }
+
+        public void apply(final WriteTransaction write) {
+
+            operations.forEach(operation -> operation.accept(write));
+        }
+
+        // Merged response contains every member's refs, only return those that this transaction wrote
+
+        public BatchResponse filter(final BatchResponse response) {
+
+            return new BatchResponse(response.getRefs().entrySet().stream()
+                    .filter(e -> refs.contains(e.getKey().withoutVersion()))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
+        }
+
+        @Override
+        @Deprecated
+        public WriteTransaction write(final LinkableSchema schema, final Map<String, Object> after) {
+
+            capture(schema, Instance.getId(after), 1, write -> write.write(schema, after));
+            return this;
+        }
+
+        @Override
+        public WriteTransaction createObject(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+            capture(schema, id, items(schema, 1), write -> write.createObject(schema, id, after));
+            return this;
+        }
+
+        @Override
+        public WriteTransaction updateObject(final ObjectSchema schema, final String id, final Map<String, Object> before, final Map<String, Object> after) {
+
+            capture(schema, id, items(schema, 2), write -> write.updateObject(schema, id, before, after));
+            return this;
+        }
+
+        @Override
+        public WriteTransaction deleteObject(final ObjectSchema schema, final String id, final Map<String, Object> before) {
+
+            capture(schema, id, items(schema, 1), write -> write.deleteObject(schema, id, before));
+            return this;
+        }
+
+        @Override
+        public WriteTransaction writeHistory(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+            capture(schema, id, 1, write -> write.writeHistory(schema, id, after));
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<BatchResponse> write() {
+
+            if(operations.isEmpty()) {
+                return CompletableFuture.completedFuture(BatchResponse.empty());
+            }
+            enqueued = System.nanoTime();
+            enqueue(this);
+            return future;
+        }
+    }
+}
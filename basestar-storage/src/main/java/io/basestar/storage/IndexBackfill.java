@@ -0,0 +1,379 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.util.concurrent.RateLimiter;
+import io.basestar.expression.constant.Constant;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Index;
+import io.basestar.schema.Instance;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.util.Name;
+import io.basestar.util.Nullsafe;
+import lombok.Builder;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Online (re)build of one or more indexes from a full scan of the schema.
+ *
+ * Scan segments are processed in parallel, index records are written in large unchecked batches (with eventual
+ * consistency, so the backend may split them into chunks of any size) and each segment is checkpointed after every
+ * batch so that a failed backfill can be resumed. Checkpoints record the number of rows
+ * processed, so resuming relies on the backend returning segment rows in a stable order.
+ *
+ * Writes made while the backfill is running maintain the indexes as usual, after each batch is written the rows are
+ * re-read and any that changed since they were scanned are repaired. While the backfill runs the indexes are marked
+ * as building (where the storage tracks builds) and are not used to answer queries.
+ *
+ * Index records are put (existing records are overwritten), so the backfill cannot tell new records from existing
+ * ones and does not update index statistics as it writes. Instead scanned rows are counted as they are written, and
+ * once every segment completes the statistics for the indexes are rebased onto these counts, keeping the changes
+ * that concurrent writes recorded while the backfill ran (so repairs, which follow those writes, are not counted
+ * again). Counts are not available for a resumed backfill, so statistics are left as they are in that case.
+ *
+ * The indexes are marked as building once the scan is open. A backfill that fails after that leaves them marked, so
+ * that a partly built index is not queried, until a resumed backfill completes.
+ */
+
+@Slf4j
+@SuppressWarnings("UnstableApiUsage")
+@Builder(builderClassName = "Builder", setterPrefix = "set")
+public class IndexBackfill {
+
+    public static final int DEFAULT_SEGMENTS = 8;
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final DefaultIndexStorage storage;
+
+    private final ObjectSchema schema;
+
+    private final List<Index> indexes;
+
+    private final int segments;
+
+    private final int batchSize;
+
+    // Rows per second across all segments, unlimited if not positive
+
+    private final double rate;
+
+    private final Executor executor;
+
+    private final Checkpoints checkpoints;
+
+    private final Consumer<Progress> listener;
+
+    public static class Builder {
+
+        public IndexBackfill build() {
+
+            final ObjectSchema schema = Nullsafe.require(this.schema);
+            return new IndexBackfill(Nullsafe.require(storage), schema,
+                    Nullsafe.orDefault(indexes, () -> new ArrayList<>(schema.getIndexes().values())),
+                    segments > 0 ? segments : DEFAULT_SEGMENTS,
+                    batchSize > 0 ? batchSize : DEFAULT_BATCH_SIZE,
+                    rate, executor,
+                    Nullsafe.orDefault(checkpoints, Checkpoints::memory),
+                    Nullsafe.orDefault(listener, () -> progress -> {}));
+        }
+    }
+
+    public CompletableFuture<Progress> run() {
+
+        final Name schemaName = schema.getQualifiedName();
+        final IndexStatistics statistics = storage.indexStatistics();
+        final Map<Index, IndexStatistics> baselines = new HashMap<>();
+        if(statistics != null) {
+            indexes.forEach(index -> baselines.put(index, statistics.snapshot(schemaName, index)));
+        }
+
+        // Opened before the indexes are marked, so that a failure here does not leave them marked
+
+        final Scan scan = storage.scan(schema, Constant.TRUE, segments);
+        final int count = scan.getSegments();
+        final IndexBuilds builds = storage.indexBuilds();
+        if(builds != null) {
+            indexes.forEach(index -> builds.begin(schemaName, index));
+        }
+
+        final Run run = new Run(count, rate > 0 ? RateLimiter.create(rate) : null,
+                statistics == null ? null : new IndexStatistics(statistics.getMaxPartitions()));
+
+        final ExecutorService owned = executor == null ? Executors.newFixedThreadPool(count, runnable -> {
+            final Thread thread = new Thread(runnable, "index-backfill");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        final Executor exec = owned != null ? owned : executor;
+
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for(int i = 0; i != count; ++i) {
+            final int segment = i;
+            futures.add(CompletableFuture.runAsync(() -> run.segment(scan, segment), exec));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> {
+                    if(statistics != null) {
+                        if(run.isResumed()) {
+                            log.warn("Backfill of indexes {} of {} was resumed, statistics not recomputed", indexes, schemaName);
+                        } else {
+                            indexes.forEach(index -> statistics.rebase(schemaName, index, baselines.get(index), run.getCounted()));
+                        }
+                    }
+                    if(builds != null) {
+                        indexes.forEach(index -> builds.complete(schemaName, index));
+                    }
+                    final Progress progress = run.progress();
+                    log.info("Backfilled indexes {} of {} ({} rows, {} records, {} repaired)", indexes, schemaName,
+                            progress.getScanned(), progress.getWritten(), progress.getRepaired());
+                    return progress;
+                })
+                .whenComplete((ignored, error) -> {
+                    if(error != null) {
+                        log.error("Backfill of indexes {} of {} failed (can be resumed from checkpoints)", indexes, schemaName, error);
+                    }
+                    if(owned != null) {
+                        owned.shutdown();
+                    }
+                });
+    }
+
+    private class Run {
+
+        private final int segments;
+
+        private final RateLimiter limiter;
+
+        private final AtomicInteger completed = new AtomicInteger();
+
+        private final AtomicLong scanned = new AtomicLong();
+
+        private final AtomicLong written = new AtomicLong();
+
+        private final AtomicLong repaired = new AtomicLong();
+
+        // Index records written by this run, null if the storage does not collect statistics
+
+        private final IndexStatistics counted;
+
+        private volatile boolean resumed;
+
+        public Run(final int segments, final RateLimiter limiter, final IndexStatistics counted) {
+
+            this.segments = segments;
+            this.limiter = limiter;
+            this.counted = counted;
+        }
+
+        public IndexStatistics getCounted() {
+
+            return counted;
+        }
+
+        public boolean isResumed() {
+
+            return resumed;
+        }
+
+        private void count(final Index index, final Index.Key key, final long delta) {
+
+            if(counted != null) {
+                counted.record(schema.getQualifiedName(), index, key, delta);
+            }
+        }
+
+        public Progress progress() {
+
+            return new Progress(segments, completed.get(), scanned.get(), written.get(), repaired.get());
+        }
+
+        private void segment(final Scan scan, final int segment) {
+
+            final Checkpoint checkpoint = checkpoints.load(segment);
+            if(checkpoint != null && checkpoint.isComplete()) {
+                resumed = true;
+                completed.incrementAndGet();
+                listener.accept(progress());
+                return;
+            }
+            if(checkpoint != null) {
+                resumed = true;
+            }
+            long position = checkpoint == null ? 0 : checkpoint.getPosition();
+            try(final Scan.Segment source = scan.segment(segment)) {
+                for(long i = 0; i != position && source.hasNext(); ++i) {
+                    source.next();
+                }
+                final List<Map<String, Object>> batch = new ArrayList<>(batchSize);
+                while(source.hasNext()) {
+                    batch.add(source.next());
+                    if(batch.size() == batchSize) {
+                        position = flush(segment, position, batch);
+                        batch.clear();
+                    }
+                }
+                if(!batch.isEmpty()) {
+                    position = flush(segment, position, batch);
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            checkpoints.save(segment, new Checkpoint(position, true));
+            completed.incrementAndGet();
+            listener.accept(progress());
+        }
+
+        private long flush(final int segment, final long position, final List<Map<String, Object>> batch) {
+
+            if(limiter != null) {
+                limiter.acquire(batch.size());
+            }
+
+            // Existing records (from concurrent writes or a previous attempt) are overwritten, so puts not creates
+
+            final DefaultIndexStorage.WriteTransaction write = storage.write(Consistency.EVENTUAL, Versioning.UNCHECKED);
+            final Map<Index, List<Index.Key>> keys = new HashMap<>();
+            long records = 0;
+            final Map<String, Map<String, Object>> scannedById = new HashMap<>();
+            for(final Map<String, Object> row : batch) {
+                final String id = Instance.getId(row);
+                final long version = Nullsafe.orDefault(Instance.getVersion(row), 0L);
+                scannedById.put(id, row);
+                for(final Index index : indexes) {
+                    for(final Map.Entry<Index.Key, Map<String, Object>> entry : index.readValues(row).entrySet()) {
+                        write.updateIndex(schema, index, id, version, entry.getKey(), entry.getValue());
+                        keys.computeIfAbsent(index, ignored -> new ArrayList<>()).add(entry.getKey());
+                        ++records;
+                    }
+                }
+            }
+            write.write().join();
+            keys.forEach((index, written) -> written.forEach(key -> count(index, key, 1)));
+
+            repair(scannedById);
+
+            final long next = position + batch.size();
+            checkpoints.save(segment, new Checkpoint(next, false));
+            scanned.addAndGet(batch.size());
+            written.addAndGet(records);
+            listener.accept(progress());
+            return next;
+        }
+
+        // Rows updated or deleted between the scan and the index write may have had stale records written
+
+        private void repair(final Map<String, Map<String, Object>> scannedById) {
+
+            final Map<String, Map<String, Object>> current = new HashMap<>();
+            storage.getAll(schema, scannedById.keySet(), Collections.emptySet()).join()
+                    .forEach(row -> current.put(Instance.getId(row), row));
+
+            final DefaultIndexStorage.WriteTransaction write = storage.write(Consistency.EVENTUAL, Versioning.UNCHECKED);
+            int count = 0;
+            for(final Map.Entry<String, Map<String, Object>> entry : scannedById.entrySet()) {
+                final String id = entry.getKey();
+                final Map<String, Object> before = entry.getValue();
+                final Map<String, Object> after = current.get(id);
+                if(after != null && Objects.equals(Instance.getVersion(before), Instance.getVersion(after))) {
+                    continue;
+                }
+                final long version = Nullsafe.orDefault(Instance.getVersion(after != null ? after : before), 0L);
+                for(final Index index : indexes) {
+                    final Map<Index.Key, Map<String, Object>> beforeValues = index.readValues(before);
+                    final Map<Index.Key, Map<String, Object>> afterValues = after == null ? Collections.emptyMap() : index.readValues(after);
+                    // Not counted, the write that changed the row recorded the change
+                    beforeValues.keySet().stream().filter(key -> !afterValues.containsKey(key))
+                            .forEach(key -> write.deleteIndex(schema, index, id, version, key));
+                    afterValues.forEach((key, projection) -> write.updateIndex(schema, index, id, version, key, projection));
+                }
+                ++count;
+            }
+            if(count > 0) {
+                write.write().join();
+                repaired.addAndGet(count);
+            }
+        }
+    }
+
+    @Data
+    public static class Progress {
+
+        private final int segments;
+
+        private final int completedSegments;
+
+        private final long scanned;
+
+        private final long written;
+
+        private final long repaired;
+
+        public boolean isComplete() {
+
+            return completedSegments == segments;
+        }
+    }
+
+    @Data
+    public static class Checkpoint {
+
+        private final long position;
+
+        private final boolean complete;
+    }
+
+    public interface Checkpoints {
+
+        Checkpoint load(int segment);
+
+        void save(int segment, Checkpoint checkpoint);
+
+        static Checkpoints memory() {
+
+            final Map<Integer, Checkpoint> checkpoints = new ConcurrentHashMap<>();
+            return new Checkpoints() {
+
+                @Override
+                public Checkpoint load(final int segment) {
+
+                    return checkpoints.get(segment);
+                }
+
+                @Override
+                public void save(final int segment, final Checkpoint checkpoint) {
+
+                    checkpoints.put(segment, checkpoint);
+                }
+            };
+        }
+    }
+}
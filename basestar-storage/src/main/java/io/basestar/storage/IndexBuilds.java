@@ -0,0 +1,61 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Index;
+import io.basestar.util.Name;
+import lombok.Data;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexes that are currently being backfilled, these are maintained by writes but must not be used to answer queries
+ * until the backfill has completed.
+ */
+
+public class IndexBuilds {
+
+    private final Set<IndexKey> building = ConcurrentHashMap.newKeySet();
+
+    public void begin(final Name schema, final Index index) {
+
+        building.add(new IndexKey(schema, index.getName()));
+    }
+
+    public void complete(final Name schema, final Index index) {
+
+        building.remove(new IndexKey(schema, index.getName()));
+    }
+
+    public boolean isBuilding(final Name schema, final Index index) {
+
+        return building.contains(new IndexKey(schema, index.getName()));
+    }
+
+    @Data
+    private static class IndexKey {
+
+        private final Name schema;
+
+        private final String index;
+    }
+}
@@ -0,0 +1,204 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Index;
+import io.basestar.util.BinaryKey;
+import io.basestar.util.Name;
+import io.basestar.util.Nullsafe;
+import lombok.Data;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-index row and partition counts, maintained incrementally as index records are written, used to estimate the
+ * number of rows an index scan will read.
+ *
+ * Counts are recorded once the transaction writing the index records succeeds. They cover whole partitions, not
+ * range bounds within a partition. Only a bounded number of partitions are tracked per index, beyond that partition
+ * sizes are estimated from the average size of the tracked partitions.
+ */
+
+public class IndexStatistics {
+
+    public static final int DEFAULT_MAX_PARTITIONS = 10000;
+
+    private final int maxPartitions;
+
+    private final Map<IndexKey, Stats> stats = new ConcurrentHashMap<>();
+
+    public IndexStatistics() {
+
+        this(DEFAULT_MAX_PARTITIONS);
+    }
+
+    public IndexStatistics(final int maxPartitions) {
+
+        this.maxPartitions = maxPartitions;
+    }
+
+    public void record(final Name schema, final Index index, final Index.Key key, final long delta) {
+
+        stats.computeIfAbsent(new IndexKey(schema, index.getName()), ignored -> new Stats())
+                .record(BinaryKey.from(key.getPartition()), delta, maxPartitions);
+    }
+
+    /**
+     * Estimated row count for the partition, or empty if nothing has been recorded for the index.
+     */
+
+    public OptionalLong estimate(final Name schema, final Index index, final List<Object> partition) {
+
+        final Stats stats = this.stats.get(new IndexKey(schema, index.getName()));
+        if(stats == null) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(stats.estimate(BinaryKey.from(partition)));
+    }
+
+    public int getMaxPartitions() {
+
+        return maxPartitions;
+    }
+
+    /**
+     * Copy of the current counts for the index, see rebase.
+     */
+
+    public IndexStatistics snapshot(final Name schema, final Index index) {
+
+        final IndexKey key = new IndexKey(schema, index.getName());
+        final IndexStatistics snapshot = new IndexStatistics(maxPartitions);
+        final Stats stats = this.stats.get(key);
+        if(stats != null) {
+            snapshot.stats.put(key, stats.copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Replace the counts for the index as of the baseline (see snapshot) with those collected in the provided
+     * statistics (e.g. by a backfill), keeping any changes recorded since the baseline was taken.
+     */
+
+    public void rebase(final Name schema, final Index index, final IndexStatistics baseline, final IndexStatistics source) {
+
+        final IndexKey key = new IndexKey(schema, index.getName());
+        final Stats from = Nullsafe.orDefault(baseline.stats.get(key), Stats::new);
+        final Stats to = Nullsafe.orDefault(source.stats.get(key), Stats::new);
+        // Applied as deltas rather than replaced, so that concurrent records are not lost
+        final Stats stats = this.stats.computeIfAbsent(key, ignored -> new Stats());
+        final Set<BinaryKey> partitions = new HashSet<>(from.partitions.keySet());
+        partitions.addAll(to.partitions.keySet());
+        long applied = 0;
+        for(final BinaryKey partition : partitions) {
+            final long delta = to.count(partition) - from.count(partition);
+            if(delta != 0) {
+                stats.record(partition, delta, maxPartitions);
+                applied += delta;
+            }
+        }
+        // Rows in partitions that neither side tracked
+        stats.total.addAndGet((to.total.get() - from.total.get()) - applied);
+        if(to.saturated) {
+            stats.saturated = true;
+        }
+    }
+
+    public long getTotal(final Name schema, final Index index) {
+
+        final Stats stats = this.stats.get(new IndexKey(schema, index.getName()));
+        return stats == null ? 0 : stats.total.get();
+    }
+
+    public long getPartitions(final Name schema, final Index index) {
+
+        final Stats stats = this.stats.get(new IndexKey(schema, index.getName()));
+        return stats == null ? 0 : stats.partitions.size();
+    }
+
+    @Data
+    private static class IndexKey {
+
+        private final Name schema;
+
+        private final String index;
+    }
+
+    private static class Stats {
+
+        private final AtomicLong total = new AtomicLong();
+
+        // Rows in tracked partitions only
+
+        private final AtomicLong tracked = new AtomicLong();
+
+        private final Map<BinaryKey, AtomicLong> partitions = new ConcurrentHashMap<>();
+
+        private volatile boolean saturated;
+
+        public Stats copy() {
+
+            final Stats copy = new Stats();
+            copy.total.set(total.get());
+            copy.tracked.set(tracked.get());
+            partitions.forEach((partition, count) -> copy.partitions.put(partition, new AtomicLong(count.get())));
+            copy.saturated = saturated;
+            return copy;
+        }
+
+        public long count(final BinaryKey partition) {
+
+            final AtomicLong count = partitions.get(partition);
+            return count == null ? 0 : count.get();
+        }
+
+        public void record(final BinaryKey partition, final long delta, final int maxPartitions) {
+
+            total.addAndGet(delta);
+            final AtomicLong count = partitions.get(partition);
+            if(count != null) {
+                count.addAndGet(delta);
+                tracked.addAndGet(delta);
+            } else if(partitions.size() < maxPartitions) {
+                partitions.computeIfAbsent(partition, ignored -> new AtomicLong()).addAndGet(delta);
+                tracked.addAndGet(delta);
+            } else {
+                saturated = true;
+            }
+        }
+
+        public long estimate(final BinaryKey partition) {
+
+            final AtomicLong count = partitions.get(partition);
+            if(count != null) {
+                return Math.max(0, count.get());
+            } else if(saturated) {
+                // Untracked partition, assume the average size of the tracked partitions
+                return Math.max(0, tracked.get() / Math.max(1, partitions.size()));
+            } else {
+                return 0;
+            }
+        }
+    }
+}
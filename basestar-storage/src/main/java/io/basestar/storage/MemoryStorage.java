@@ -20,33 +20,38 @@ package io.basestar.storage;
  * #L%
  */
 
-import com.google.common.collect.Lists;
 import io.basestar.expression.Expression;
 import io.basestar.schema.*;
 import io.basestar.storage.annotation.ConfigurableStorage;
 import io.basestar.storage.exception.ObjectExistsException;
 import io.basestar.storage.exception.VersionMismatchException;
 import io.basestar.storage.query.Range;
+import io.basestar.storage.util.PersistentSortedMap;
 import io.basestar.util.*;
 import lombok.Data;
 import lombok.Setter;
 import lombok.experimental.Accessors;
 
 import javax.annotation.Nonnull;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
-// TODO optimize, this is currently used only as a mock so not important but should be a viable implementation
+// State is held in persistent maps, writes are serialized and cost O(changed keys), reads use a lock-free snapshot
 
 @ConfigurableStorage(builderClass = MemoryStorage.Builder.class)
 public class MemoryStorage implements DefaultIndexStorage {
 
-    private State state = new State();
+    private volatile State state = new State();
 
     private final Object lock = new Object();
 
+    private final IndexStatistics statistics = new IndexStatistics();
+
+    private final IndexBuilds builds = new IndexBuilds();
+
     private MemoryStorage(final Builder builder) {
 
     }
@@ -66,32 +71,75 @@ public class MemoryStorage implements DefaultIndexStorage {
         }
     }
 
+    @Override
+    public IndexStatistics indexStatistics() {
+
+        return statistics;
+    }
+
+    @Override
+    public IndexBuilds indexBuilds() {
+
+        return builds;
+    }
+
     @Override
     public Pager<Map<String, Object>> queryIndex(final ObjectSchema schema, final Index index, final SatisfyResult satisfy, final Map<Name, Range<Object>> query, final List<Sort> sort, final Set<Name> expand) {
 
-        synchronized (lock) {
+        final byte[] partBinary = BinaryKey.from(satisfy.getPartition()).getBytes();
+        final IndexPartition partKey = new IndexPartition(schema.getQualifiedName(), index.getName(), partBinary);
+
+        final IndexSort lo;
+        final IndexSort hi;
+        if(!satisfy.getSort().isEmpty()) {
+            final BinaryKey sortKey = BinaryKey.from(satisfy.getSort());
+            lo = new IndexSort(sortKey.lo().getBytes(), null);
+            hi = new IndexSort(sortKey.hi().getBytes(), null);
+        } else {
+            lo = null;
+            hi = null;
+        }
+        final boolean reversed = satisfy.isReversed();
 
-            final byte[] partBinary = BinaryKey.from(satisfy.getPartition()).getBytes();
-            final IndexPartition partKey = new IndexPartition(schema.getQualifiedName(), index.getName(), partBinary);
+        return (stats, token, count) -> CompletableFuture.completedFuture(
+                pageIndex(state.index.get(partKey), lo, hi, reversed, stats, token, count));
+    }
 
-            final NavigableMap<IndexSort, Map<String, Object>> partition = state.index.get(partKey);
+    // Keyset paging over the partition, token is the last returned sort key so each page costs O(log n + count)
 
-            final List<Map<String, Object>> results;
-            if(partition == null) {
-                results = Collections.emptyList();
+    private static Page<Map<String, Object>> pageIndex(final PersistentSortedMap<IndexSort, Map<String, Object>> partition,
+                                                       final IndexSort lo, final IndexSort hi, final boolean reversed,
+                                                       final Set<Page.Stat> stats, final Page.Token token, final int count) {
+
+        if(partition == null) {
+            return Page.empty();
+        }
+        final Page.Stats pageStats;
+        if(token == null && stats != null && (stats.contains(Page.Stat.TOTAL) || stats.contains(Page.Stat.APPROX_TOTAL))) {
+            pageStats = Page.Stats.fromTotal(partition.count(lo, true, hi, false));
+        } else {
+            pageStats = null;
+        }
+        final Iterator<Map.Entry<IndexSort, Map<String, Object>>> iter;
+        if(token == null) {
+            iter = partition.iterator(lo, true, hi, false, reversed);
+        } else {
+            final IndexSort after = IndexSort.decode(token);
+            if(reversed) {
+                iter = partition.iterator(lo, true, after, false, true);
             } else {
-                if(!satisfy.getSort().isEmpty()) {
-                    final byte[] sortLo = BinaryKey.from(satisfy.getSort()).lo().getBytes();
-                    final byte[] sortHi = BinaryKey.from(satisfy.getSort()).hi().getBytes();
-                    results = Lists.newArrayList(partition.tailMap(new IndexSort(sortLo, null), true)
-                            .headMap(new IndexSort(sortHi, null)).values());
-                } else {
-                    results = Lists.newArrayList(partition.values());
-                }
+                iter = partition.iterator(after, false, hi, false, false);
             }
-
-            return Pager.simple(results);
         }
+        final List<Map<String, Object>> items = new ArrayList<>();
+        IndexSort last = null;
+        while(items.size() < count && iter.hasNext()) {
+            final Map.Entry<IndexSort, Map<String, Object>> entry = iter.next();
+            items.add(entry.getValue());
+            last = entry.getKey();
+        }
+        final Page.Token next = (last != null && iter.hasNext()) ? last.encode() : null;
+        return new Page<>(items, next, pageStats);
     }
 
     @Override
@@ -108,15 +156,40 @@ public class MemoryStorage implements DefaultIndexStorage {
             public Segment segment(final int segment) {
 
                 assert segment == 0;
-                final List<Map<String, Object>> objects = new ArrayList<>();
-                synchronized (lock) {
-                    state.objects.forEach((k, v) -> {
-                        if(k.getSchema().equals(schema.getQualifiedName())) {
-                            objects.add(v);
+                final Name schemaName = schema.getQualifiedName();
+                final Iterator<Map.Entry<SchemaId, Map<String, Object>>> iter = state.objects
+                        .iterator(new SchemaId(schemaName, ""), true, null, false, false);
+                return Segment.fromIterator(new Iterator<Map<String, Object>>() {
+
+                    private Map.Entry<SchemaId, Map<String, Object>> next = advance();
+
+                    private Map.Entry<SchemaId, Map<String, Object>> advance() {
+
+                        if(iter.hasNext()) {
+                            final Map.Entry<SchemaId, Map<String, Object>> entry = iter.next();
+                            return entry.getKey().getSchema().equals(schemaName) ? entry : null;
+                        } else {
+                            return null;
                         }
-                    });
-                }
-                return Segment.fromIterator(objects.iterator());
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map<String, Object> next() {
+
+                        if(next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        final Map<String, Object> result = next.getValue();
+                        next = advance();
+                        return result;
+                    }
+                });
             }
         };
     }
@@ -146,16 +219,15 @@ public class MemoryStorage implements DefaultIndexStorage {
             public CompletableFuture<BatchResponse> read() {
 
                 return CompletableFuture.supplyAsync(() -> {
+                    final State state = MemoryStorage.this.state;
                     final Map<BatchResponse.RefKey, Map<String, Object>> results = new HashMap<>();
 
                     capture.getRefs().forEach((schema, refs) -> {
                         refs.forEach((key, args) -> {
-                            synchronized (lock) {
-                                if (key.hasVersion()) {
-                                    results.put(key, state.history.get(new SchemaIdVersion(schema.getQualifiedName(), key.getId(), key.getVersion())));
-                                } else {
-                                    results.put(key, state.objects.get(new SchemaId(schema.getQualifiedName(), key.getId())));
-                                }
+                            if (key.hasVersion()) {
+                                results.put(key, state.history.get(new SchemaIdVersion(schema.getQualifiedName(), key.getId(), key.getVersion())));
+                            } else {
+                                results.put(key, state.objects.get(new SchemaId(schema.getQualifiedName(), key.getId())));
                             }
                         });
                     });
@@ -173,12 +245,22 @@ public class MemoryStorage implements DefaultIndexStorage {
 
             private final List<Function<State, BatchResponse>> items = new ArrayList<>();
 
+            // Applied to statistics once the write succeeds
+
+            private final List<Runnable> recorded = new ArrayList<>();
+
             @Override
             public StorageTraits storageTraits(final ReferableSchema schema) {
 
                 return MemoryStorage.this.storageTraits(schema);
             }
 
+            @Override
+            public void recordIndex(final ReferableSchema schema, final Index index, final Index.Key key, final long delta) {
+
+                recorded.add(() -> statistics.record(schema.getQualifiedName(), index, key, delta));
+            }
+
             @Override
             public Storage.WriteTransaction write(final LinkableSchema schema, final Map<String, Object> after) {
 
@@ -194,7 +276,7 @@ public class MemoryStorage implements DefaultIndexStorage {
                     if(state.objects.containsKey(typeId)) {
                         throw new ObjectExistsException(schema.getQualifiedName(), id);
                     } else {
-                        state.objects.put(typeId, after);
+                        state.objects = state.objects.put(typeId, after);
                     }
 //                    final History history = schema.getHistory();
 //                    if(history.isEnabled() && history.getConsistency(Consistency.ATOMIC).isStronger(Consistency.ASYNC)) {
@@ -224,7 +306,7 @@ public class MemoryStorage implements DefaultIndexStorage {
                     final SchemaId typeId = new SchemaId(schema.getQualifiedName(), id);
                     final Map<String, Object> current = state.objects.get(typeId);
                     if(checkExists(current, version)) {
-                        state.objects.put(typeId, after);
+                        state.objects = state.objects.put(typeId, after);
                     } else {
                         throw new VersionMismatchException(schema.getQualifiedName(), id, version);
                     }
@@ -247,7 +329,7 @@ public class MemoryStorage implements DefaultIndexStorage {
                     final SchemaId typeId = new SchemaId(schema.getQualifiedName(), id);
                     final Map<String, Object> current = state.objects.get(typeId);
                     if(checkExists(current, version)) {
-                        state.objects.remove(typeId);
+                        state.objects = state.objects.remove(typeId);
                     } else {
                         throw new VersionMismatchException(schema.getQualifiedName(), id, version);
                     }
@@ -260,7 +342,7 @@ public class MemoryStorage implements DefaultIndexStorage {
 
                 items.add(state -> {
 
-                    state.history.put(new SchemaIdVersion(schema.getQualifiedName(), id, Instance.getVersion(after)), after);
+                    state.history = state.history.put(new SchemaIdVersion(schema.getQualifiedName(), id, Instance.getVersion(after)), after);
 
                     return BatchResponse.empty();
                 });
@@ -274,7 +356,7 @@ public class MemoryStorage implements DefaultIndexStorage {
                     if (partition.containsKey(sortKey)) {
                         throw new IllegalStateException();
                     } else {
-                        partition.put(sortKey, projection);
+                        return partition.put(sortKey, projection);
                     }
                 });
             }
@@ -288,10 +370,10 @@ public class MemoryStorage implements DefaultIndexStorage {
             @Override
             public void deleteIndex(final ReferableSchema schema, final Index index, final String id, final long version, final Index.Key key) {
 
-                withPartitionSort(schema, index, id, key, Map::remove);
+                withPartitionSort(schema, index, id, key, PersistentSortedMap::remove);
             }
 
-            private void withPartitionSort(final ReferableSchema schema, final Index index, final String id, final Index.Key key, final BiConsumer<Map<IndexSort, Map<String, Object>>, IndexSort> consumer) {
+            private void withPartitionSort(final ReferableSchema schema, final Index index, final String id, final Index.Key key, final BiFunction<PersistentSortedMap<IndexSort, Map<String, Object>>, IndexSort, PersistentSortedMap<IndexSort, Map<String, Object>>> fn) {
 
                 items.add(state -> {
 
@@ -299,10 +381,10 @@ public class MemoryStorage implements DefaultIndexStorage {
                     final IndexPartition partKey = new IndexPartition(schema.getQualifiedName(), index.getName(), binaryKey.getPartition().getBytes());
                     final IndexSort sortKey = new IndexSort(binaryKey.getSort().getBytes(), index.isUnique() ? null : id);
 
-                    final Map<IndexSort, Map<String, Object>> partition = state.index
-                            .computeIfAbsent(partKey, k -> new TreeMap<>());
+                    final PersistentSortedMap<IndexSort, Map<String, Object>> partition = Nullsafe.orDefault(state.index.get(partKey), PersistentSortedMap.empty());
 
-                    consumer.accept(partition, sortKey);
+                    final PersistentSortedMap<IndexSort, Map<String, Object>> updated = fn.apply(partition, sortKey);
+                    state.index = updated.isEmpty() ? state.index.remove(partKey) : state.index.put(partKey, updated);
 
                     return BatchResponse.empty();
                 });
@@ -318,6 +400,7 @@ public class MemoryStorage implements DefaultIndexStorage {
                         items.forEach(item -> changes.putAll(item.apply(copy).getRefs()));
                         state = copy;
                     }
+                    recorded.forEach(Runnable::run);
                     return BatchResponse.fromRefs(changes);
                 });
             }
@@ -337,31 +420,64 @@ public class MemoryStorage implements DefaultIndexStorage {
     }
 
     @Data
-    private static class SchemaId {
+    private static class SchemaId implements Comparable<SchemaId> {
+
+        private static final Comparator<SchemaId> COMPARATOR = Comparator.comparing(SchemaId::getSchema)
+                .thenComparing(SchemaId::getId);
 
         private final Name schema;
 
         private final String id;
+
+        @Override
+        public int compareTo(@Nonnull final SchemaId other) {
+
+            return COMPARATOR.compare(this, other);
+        }
     }
 
     @Data
-    private static class SchemaIdVersion {
+    private static class SchemaIdVersion implements Comparable<SchemaIdVersion> {
+
+        private static final Comparator<SchemaIdVersion> COMPARATOR = Comparator.comparing(SchemaIdVersion::getSchema)
+                .thenComparing(SchemaIdVersion::getId)
+                .thenComparingLong(SchemaIdVersion::getVersion);
 
         private final Name schema;
 
         private final String id;
 
         private final long version;
+
+        @Override
+        public int compareTo(@Nonnull final SchemaIdVersion other) {
+
+            return COMPARATOR.compare(this, other);
+        }
     }
 
     @Data
-    private static class IndexPartition {
+    private static class IndexPartition implements Comparable<IndexPartition> {
 
         private final Name schema;
 
         private final String index;
 
         private final byte[] partition;
+
+        @Override
+        public int compareTo(@Nonnull final IndexPartition other) {
+
+            final int schemaCompare = schema.compareTo(other.schema);
+            if(schemaCompare != 0) {
+                return schemaCompare;
+            }
+            final int indexCompare = index.compareTo(other.index);
+            if(indexCompare != 0) {
+                return indexCompare;
+            }
+            return BinaryKey.compareUnsigned(partition, other.partition);
+        }
     }
 
     @Data
@@ -376,37 +492,64 @@ public class MemoryStorage implements DefaultIndexStorage {
 
             // Sort must be compatible
             //assert(range.length == other.range.length);
-            for(int i = 0; i != Math.max(range.length, other.range.length); ++i) {
-                if(i >= range.length) {
-                    return -1;
-                } else if(i >= other.range.length) {
-                    return 1;
-                }
-                final byte a = range[i];
-                final byte b = other.range[i];
-                final int compare = Byte.compare(a, b);
-                if(compare != 0) {
-                    return compare;
-                }
+            final int compare = BinaryKey.compareUnsigned(range, other.range);
+            if(compare != 0) {
+                return compare;
             }
             return Comparator.<String>nullsFirst(Comparator.naturalOrder()).compare(id, other.id);
         }
+
+        public Page.Token encode() {
+
+            try(final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                final DataOutputStream dos = new DataOutputStream(baos)) {
+
+                dos.writeInt(range.length);
+                dos.write(range);
+                dos.writeBoolean(id != null);
+                if(id != null) {
+                    dos.writeUTF(id);
+                }
+                dos.flush();
+                return new Page.Token(baos.toByteArray());
+
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public static IndexSort decode(final Page.Token token) {
+
+            try(final ByteArrayInputStream bais = new ByteArrayInputStream(token.getValue());
+                final DataInputStream dis = new DataInputStream(bais)) {
+
+                final byte[] range = new byte[dis.readInt()];
+                dis.readFully(range);
+                final String id = dis.readBoolean() ? dis.readUTF() : null;
+                return new IndexSort(range, id);
+
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
+    // Persistent maps, so copy() is O(1) and a published state is never modified
+
     private static class State {
 
-        private final Map<SchemaId, Map<String, Object>> objects = new HashMap<>();
+        private PersistentSortedMap<SchemaId, Map<String, Object>> objects = PersistentSortedMap.empty();
 
-        private final Map<SchemaIdVersion, Map<String, Object>> history = new HashMap<>();
+        private PersistentSortedMap<SchemaIdVersion, Map<String, Object>> history = PersistentSortedMap.empty();
 
-        private final Map<IndexPartition, NavigableMap<IndexSort, Map<String, Object>>> index = new HashMap<>();
+        private PersistentSortedMap<IndexPartition, PersistentSortedMap<IndexSort, Map<String, Object>>> index = PersistentSortedMap.empty();
 
         public State copy() {
 
             final State result = new State();
-            result.objects.putAll(objects);
-            result.history.putAll(history);
-            result.index.putAll(index);
+            result.objects = objects;
+            result.history = history;
+            result.index = index;
             return result;
         }
     }
@@ -0,0 +1,338 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.event.Event;
+import io.basestar.expression.Expression;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.schema.ReferableSchema;
+import io.basestar.storage.exception.ObjectExistsException;
+import io.basestar.storage.exception.VersionMismatchException;
+import io.basestar.util.Name;
+import io.basestar.util.Nullsafe;
+import io.basestar.util.Pager;
+import io.basestar.util.Sort;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.Builder;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records latency, batch sizes and errors for every operation of the wrapped storage.
+ *
+ * Meters are tagged with the storage name, schema (or "multiple" for transactions spanning schemas), consistency and
+ * operation. Version mismatches and existing objects are counted as conflicts rather than errors. Query streams page
+ * through query(), so are metered as queries.
+ */
+
+@Builder(builderClassName = "Builder", setterPrefix = "set")
+public class MeteredStorage implements DelegatingStorage {
+
+    private static final String METRIC_PREFIX = "storage";
+
+    private static final String MULTIPLE = "multiple";
+
+    private final Storage storage;
+
+    private final String name;
+
+    private final MeterRegistry registry;
+
+    // Publish percentile histograms for timers and summaries
+
+    private final boolean histograms;
+
+    public static class Builder {
+
+        public MeteredStorage build() {
+
+            final Storage storage = Nullsafe.require(this.storage);
+            return new MeteredStorage(storage, Nullsafe.orDefault(name, storage::name),
+                    Nullsafe.orDefault(registry, Metrics.globalRegistry), histograms);
+        }
+    }
+
+    @Override
+    public Storage storage(final LinkableSchema schema) {
+
+        return storage;
+    }
+
+    @Override
+    public String name() {
+
+        return name;
+    }
+
+    private Tags tags(final String operation, final String schema, final Consistency consistency) {
+
+        return Tags.of("storage", name, "operation", operation, "schema", schema,
+                "consistency", consistency == null ? "none" : consistency.name());
+    }
+
+    private Timer timer(final String metric, final Tags tags) {
+
+        return Timer.builder(METRIC_PREFIX + "." + metric).tags(tags)
+                .publishPercentileHistogram(histograms).register(registry);
+    }
+
+    private DistributionSummary summary(final String metric, final Tags tags) {
+
+        return DistributionSummary.builder(METRIC_PREFIX + "." + metric).tags(tags)
+                .publishPercentileHistogram(histograms).register(registry);
+    }
+
+    private <T> CompletableFuture<T> timed(final String metric, final Tags tags, final CompletableFuture<T> future, final long start) {
+
+        return future.whenComplete((result, error) -> {
+            timer(metric, tags).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if(error != null) {
+                failed(tags, error);
+            }
+        });
+    }
+
+    private void failed(final Tags tags, final Throwable error) {
+
+        final Throwable cause = cause(error);
+        if(cause instanceof VersionMismatchException || cause instanceof ObjectExistsException) {
+            registry.counter(METRIC_PREFIX + ".conflicts", tags).increment();
+        } else {
+            registry.counter(METRIC_PREFIX + ".errors", tags.and("exception", cause.getClass().getSimpleName())).increment();
+        }
+    }
+
+    private static Throwable cause(final Throwable error) {
+
+        Throwable cause = error;
+        while((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static String schemaTag(final Set<Name> schemas) {
+
+        return schemas.size() == 1 ? schemas.iterator().next().toString() : MULTIPLE;
+    }
+
+    @Override
+    public ReadTransaction read(final Consistency consistency) {
+
+        final Set<Name> schemas = new HashSet<>();
+        return new ReadTransaction() {
+
+            // Gets may return a different transaction (e.g. for interface schemas), so always continue from the result
+
+            private ReadTransaction delegate = storage.read(consistency);
+
+            private int size;
+
+            @Override
+            public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                delegate = delegate.get(schema, id, expand);
+                schemas.add(schema.getQualifiedName());
+                ++size;
+                return this;
+            }
+
+            @Override
+            public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                delegate = delegate.getVersion(schema, id, version, expand);
+                schemas.add(schema.getQualifiedName());
+                ++size;
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> read() {
+
+                final Tags tags = tags("read", schemaTag(schemas), consistency);
+                summary("batch.size", tags).record(size);
+                final long start = System.nanoTime();
+                return timed("latency", tags, delegate.read(), start);
+            }
+        };
+    }
+
+    @Override
+    public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+        final WriteTransaction delegate = storage.write(consistency, versioning);
+        final Set<Name> schemas = new HashSet<>();
+        return new WriteTransaction() {
+
+            private int size;
+
+            private WriteTransaction add(final LinkableSchema schema) {
+
+                schemas.add(schema.getQualifiedName());
+                ++size;
+                return this;
+            }
+
+            @Override
+            @Deprecated
+            public WriteTransaction write(final LinkableSchema schema, final Map<String, Object> after) {
+
+                delegate.write(schema, after);
+                return add(schema);
+            }
+
+            @Override
+            public WriteTransaction createObject(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                delegate.createObject(schema, id, after);
+                return add(schema);
+            }
+
+            @Override
+            public WriteTransaction updateObject(final ObjectSchema schema, final String id, final Map<String, Object> before, final Map<String, Object> after) {
+
+                delegate.updateObject(schema, id, before, after);
+                return add(schema);
+            }
+
+            @Override
+            public WriteTransaction deleteObject(final ObjectSchema schema, final String id, final Map<String, Object> before) {
+
+                delegate.deleteObject(schema, id, before);
+                return add(schema);
+            }
+
+            @Override
+            public WriteTransaction writeHistory(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                delegate.writeHistory(schema, id, after);
+                return add(schema);
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> write() {
+
+                final Tags tags = tags("write", schemaTag(schemas), consistency);
+                summary("batch.size", tags).record(size);
+                final long start = System.nanoTime();
+                return timed("latency", tags, delegate.write(), start);
+            }
+        };
+    }
+
+    @Override
+    public Pager<Map<String, Object>> query(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+        final Pager<Map<String, Object>> pager = storage.query(consistency, schema, query, sort, expand);
+        final Tags tags = tags("query", schema.getQualifiedName().toString(), consistency);
+        return (stats, token, count) -> {
+            final long start = System.nanoTime();
+            return timed("latency", tags, pager.page(stats, token, count), start)
+                    .thenApply(page -> {
+                        summary("page.size", tags).record(page.size());
+                        return page;
+                    });
+        };
+    }
+
+    @Override
+    public Scan scan(final ReferableSchema schema, final Expression query, final int segments) {
+
+        final Scan scan = storage.scan(schema, query, segments);
+        final Tags tags = tags("scan", schema.getQualifiedName().toString(), null);
+        return new Scan() {
+
+            @Override
+            public int getSegments() {
+
+                return scan.getSegments();
+            }
+
+            @Override
+            public Segment segment(final int segment) {
+
+                final Segment delegate = scan.segment(segment);
+                final long start = System.nanoTime();
+                return new Segment() {
+
+                    private long rows;
+
+                    @Override
+                    public boolean hasNext() {
+
+                        return delegate.hasNext();
+                    }
+
+                    @Override
+                    public Map<String, Object> next() {
+
+                        final Map<String, Object> next = delegate.next();
+                        ++rows;
+                        return next;
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+
+                        delegate.close();
+                        timer("latency", tags).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                        registry.counter(METRIC_PREFIX + ".scan.rows", tags).increment(rows);
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterCreate(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+        final long start = System.nanoTime();
+        final Tags tags = tags("afterCreate", schema.getQualifiedName().toString(), null);
+        return timed("latency", tags, storage.afterCreate(schema, id, after), start);
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterUpdate(final ObjectSchema schema, final String id, final long version, final Map<String, Object> before, final Map<String, Object> after) {
+
+        final long start = System.nanoTime();
+        final Tags tags = tags("afterUpdate", schema.getQualifiedName().toString(), null);
+        return timed("latency", tags, storage.afterUpdate(schema, id, version, before, after), start);
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterDelete(final ObjectSchema schema, final String id, final long version, final Map<String, Object> before) {
+
+        final long start = System.nanoTime();
+        final Tags tags = tags("afterDelete", schema.getQualifiedName().toString(), null);
+        return timed("latency", tags, storage.afterDelete(schema, id, version, before), start);
+    }
+}
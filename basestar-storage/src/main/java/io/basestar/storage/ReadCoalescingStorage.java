@@ -0,0 +1,276 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Consistency;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.ReferableSchema;
+import io.basestar.util.CompletableFutures;
+import io.basestar.util.Name;
+import io.basestar.util.Nullsafe;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges concurrent reads (from any number of callers) into a single backend read transaction.
+ *
+ * Reads are collected for up to the configured window (or until the batch size is reached), identical requests
+ * (same ref and expand) are read once and the result is fanned out to every waiter.
+ */
+
+@Builder(builderClassName = "Builder", setterPrefix = "set")
+public class ReadCoalescingStorage implements DelegatingStorage {
+
+    public static final Duration DEFAULT_WINDOW = Duration.ofMillis(1);
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+
+    private static final String METRIC_PREFIX = "storage.read-coalescing";
+
+    private final Storage storage;
+
+    private final Duration window;
+
+    private final int maxBatchSize;
+
+    private final ScheduledExecutorService executor;
+
+    private final Map<Consistency, Batch> batches = new EnumMap<>(Consistency.class);
+
+    private final Object lock = new Object();
+
+    private final DistributionSummary batchSize = Metrics.summary(METRIC_PREFIX + ".batch.size");
+
+    private final Counter deduplicated = Metrics.counter(METRIC_PREFIX + ".deduplicated");
+
+    public static class Builder {
+
+        public ReadCoalescingStorage build() {
+
+            return new ReadCoalescingStorage(Nullsafe.require(storage),
+                    Nullsafe.orDefault(window, DEFAULT_WINDOW),
+                    maxBatchSize > 0 ? maxBatchSize : DEFAULT_MAX_BATCH_SIZE,
+                    Nullsafe.orDefault(executor, ReadCoalescingStorage::defaultExecutor));
+        }
+    }
+
+    private static ScheduledExecutorService defaultExecutor() {
+
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "read-coalescing");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Storage storage(final LinkableSchema schema) {
+
+        return storage;
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> get(final Consistency consistency, final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+        return enqueue(consistency, schema, BatchResponse.RefKey.latest(schema.getQualifiedName(), id), expand);
+    }
+
+    @Override
+    public CompletableFuture<Map<String, Object>> getVersion(final Consistency consistency, final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+        return enqueue(consistency, schema, BatchResponse.RefKey.version(schema.getQualifiedName(), id, version), expand);
+    }
+
+    @Override
+    public ReadTransaction read(final Consistency consistency) {
+
+        return new ReadTransaction() {
+
+            private final BatchCapture capture = new BatchCapture();
+
+            @Override
+            public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                capture.captureLatest(schema, id, expand);
+                return this;
+            }
+
+            @Override
+            public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                capture.captureVersion(schema, id, version, expand);
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> read() {
+
+                final Map<BatchResponse.RefKey, CompletableFuture<Map<String, Object>>> futures = new HashMap<>();
+                capture.forEachRef((schema, key, args) -> futures.put(key, enqueue(consistency, schema, key, args.getExpand())));
+                return CompletableFutures.allOf(futures).thenApply(results -> {
+                    // Keep the response keyed under the requested schema (polymorphic reads)
+                    final Map<BatchResponse.RefKey, Map<String, Object>> refs = new HashMap<>();
+                    results.forEach((key, result) -> {
+                        if (result != null) {
+                            refs.put(BatchResponse.RefKey.from(key.getSchema(), result), result);
+                        }
+                    });
+                    return BatchResponse.fromRefs(refs);
+                });
+            }
+        };
+    }
+
+    private CompletableFuture<Map<String, Object>> enqueue(final Consistency consistency, final ReferableSchema schema, final BatchResponse.RefKey key, final Set<Name> expand) {
+
+        final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+        final List<Batch> flush = new ArrayList<>();
+        synchronized (lock) {
+            Batch batch = batches.get(consistency);
+            if(batch != null && !batch.accepts(key, expand)) {
+                batches.remove(consistency);
+                flush.add(batch);
+                batch = null;
+            }
+            if(batch == null) {
+                final Batch created = new Batch(consistency);
+                batches.put(consistency, created);
+                executor.schedule(() -> flushIfPending(created), window.toNanos(), TimeUnit.NANOSECONDS);
+                batch = created;
+            }
+            if(batch.add(schema, key, expand, future)) {
+                deduplicated.increment();
+            }
+            if(batch.size() >= maxBatchSize) {
+                batches.remove(consistency);
+                flush.add(batch);
+            }
+        }
+        flush.forEach(this::execute);
+        return future;
+    }
+
+    private void flushIfPending(final Batch batch) {
+
+        synchronized (lock) {
+            if(batches.get(batch.getConsistency()) != batch) {
+                // Already flushed by size or expand mismatch
+                return;
+            }
+            batches.remove(batch.getConsistency());
+        }
+        execute(batch);
+    }
+
+    private void execute(final Batch batch) {
+
+        final Map<BatchResponse.RefKey, Request> requests = batch.getRequests();
+        batchSize.record(requests.size());
+        final CompletableFuture<BatchResponse> future;
+        try {
+            ReadTransaction read = storage.read(batch.getConsistency());
+            for(final Map.Entry<BatchResponse.RefKey, Request> entry : requests.entrySet()) {
+                final BatchResponse.RefKey key = entry.getKey();
+                final Request request = entry.getValue();
+                if(key.hasVersion()) {
+                    read = read.getVersion(request.getSchema(), key.getId(), key.getVersion(), request.getExpand());
+                } else {
+                    read = read.get(request.getSchema(), key.getId(), request.getExpand());
+                }
+            }
+            future = read.read();
+        } catch (final Exception e) {
+            requests.values().forEach(request -> request.getFutures().forEach(f -> f.completeExceptionally(e)));
+            return;
+        }
+        future.whenComplete((response, error) -> requests.forEach((key, request) -> {
+            if(error != null) {
+                request.getFutures().forEach(f -> f.completeExceptionally(error));
+            } else {
+                final Name schemaName = request.getSchema().getQualifiedName();
+                final Map<String, Object> result = key.hasVersion()
+                        ? response.getVersion(schemaName, key.getId(), key.getVersion())
+                        : response.get(schemaName, key.getId());
+                request.getFutures().forEach(f -> f.complete(result));
+            }
+        }));
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class Request {
+
+        private final ReferableSchema schema;
+
+        private final Set<Name> expand;
+
+        private final List<CompletableFuture<Map<String, Object>>> futures = new ArrayList<>();
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static class Batch {
+
+        private final Consistency consistency;
+
+        private final Map<BatchResponse.RefKey, Request> requests = new HashMap<>();
+
+        // A backend transaction merges expand for the same ref, so differing expands must go in separate batches
+
+        public boolean accepts(final BatchResponse.RefKey key, final Set<Name> expand) {
+
+            final Request existing = requests.get(key);
+            return existing == null || existing.getExpand().equals(Nullsafe.orDefault(expand, Collections.<Name>emptySet()));
+        }
+
+        // Returns true if the request was deduplicated
+
+        public boolean add(final ReferableSchema schema, final BatchResponse.RefKey key, final Set<Name> expand, final CompletableFuture<Map<String, Object>> future) {
+
+            final Request existing = requests.get(key);
+            if(existing != null) {
+                existing.getFutures().add(future);
+                return true;
+            } else {
+                final Request created = new Request(schema, Nullsafe.orDefault(expand, Collections.<Name>emptySet()));
+                created.getFutures().add(future);
+                requests.put(key, created);
+                return false;
+            }
+        }
+
+        public int size() {
+
+            return requests.size();
+        }
+    }
+}
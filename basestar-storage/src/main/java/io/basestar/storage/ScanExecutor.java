@@ -0,0 +1,282 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.util.Nullsafe;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the segments of a scan in parallel and publishes the combined rows.
+ *
+ * At most the configured number of segments are read at once, each into its own bounded prefetch buffer, segment
+ * readers block (off the subscriber's thread) when their buffer is full so reading proceeds only as fast as the
+ * subscriber requests rows. Rows from different segments are interleaved in no particular order.
+ *
+ * Cancelling the subscription (or a segment failing) stops all readers and closes their segments.
+ */
+
+@Slf4j
+@Builder(builderClassName = "Builder", setterPrefix = "set")
+public class ScanExecutor {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    public static final int DEFAULT_PREFETCH = 100;
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final Executor executor;
+
+    private final int parallelism;
+
+    private final int prefetch;
+
+    public static class Builder {
+
+        public ScanExecutor build() {
+
+            return new ScanExecutor(Nullsafe.orDefault(executor, ScanExecutor::defaultExecutor),
+                    parallelism > 0 ? parallelism : DEFAULT_PARALLELISM,
+                    prefetch > 0 ? prefetch : DEFAULT_PREFETCH);
+        }
+    }
+
+    private static Executor defaultExecutor() {
+
+        return Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "scan-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Publisher<Map<String, Object>> publish(final Scan scan) {
+
+        return subscriber -> {
+            final Run run = new Run(scan, subscriber);
+            subscriber.onSubscribe(run);
+            run.start();
+        };
+    }
+
+    private class Run implements Subscription {
+
+        private final Scan scan;
+
+        private final Subscriber<? super Map<String, Object>> subscriber;
+
+        private final int segments;
+
+        private final BlockingQueue<Map<String, Object>>[] buffers;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        private final AtomicInteger finished = new AtomicInteger();
+
+        private final AtomicLong requested = new AtomicLong();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        private volatile boolean cancelled;
+
+        private boolean done;
+
+        // Only accessed from drain
+
+        private int cursor;
+
+        @SuppressWarnings("unchecked")
+        public Run(final Scan scan, final Subscriber<? super Map<String, Object>> subscriber) {
+
+            this.scan = scan;
+            this.subscriber = subscriber;
+            this.segments = scan.getSegments();
+            this.buffers = new BlockingQueue[segments];
+        }
+
+        public void start() {
+
+            final int workers = Math.min(parallelism, segments);
+            if(workers == 0) {
+                drain();
+                return;
+            }
+            for(int i = 0; i != workers; ++i) {
+                try {
+                    executor.execute(this::work);
+                } catch (final RejectedExecutionException e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void request(final long n) {
+
+            if(n <= 0) {
+                fail(new IllegalArgumentException("Request must be positive (was " + n + ")"));
+                return;
+            }
+            requested.getAndUpdate(current -> {
+                final long sum = current + n;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+
+            cancelled = true;
+        }
+
+        private void fail(final Throwable e) {
+
+            if(error.compareAndSet(null, e)) {
+                cancelled = true;
+            }
+            drain();
+        }
+
+        private void work() {
+
+            int segment;
+            while(!cancelled && (segment = next.getAndIncrement()) < segments) {
+                final BlockingQueue<Map<String, Object>> buffer = new ArrayBlockingQueue<>(prefetch);
+                buffers[segment] = buffer;
+                try(final Scan.Segment source = scan.segment(segment)) {
+                    while(!cancelled && source.hasNext()) {
+                        final Map<String, Object> item = source.next();
+                        while(!buffer.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                            if(cancelled) {
+                                return;
+                            }
+                        }
+                        drain();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    fail(e);
+                    return;
+                } catch (final Exception e) {
+                    fail(e);
+                    return;
+                }
+                finished.incrementAndGet();
+                drain();
+            }
+        }
+
+        private Map<String, Object> poll() {
+
+            for(int i = 0; i != segments; ++i) {
+                final int index = (cursor + i) % segments;
+                final BlockingQueue<Map<String, Object>> buffer = buffers[index];
+                if(buffer != null) {
+                    final Map<String, Object> item = buffer.poll();
+                    if(item != null) {
+                        cursor = (index + 1) % segments;
+                        return item;
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean isEmpty() {
+
+            for(final BlockingQueue<Map<String, Object>> buffer : buffers) {
+                if(buffer != null && !buffer.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Serialized signalling (only one thread emits at a time, others just flag that there is more work)
+
+        private void drain() {
+
+            if(wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if(done) {
+                    return;
+                }
+                final long limit = requested.get();
+                long emitted = 0;
+                while(emitted != limit) {
+                    if(terminated()) {
+                        return;
+                    }
+                    final Map<String, Object> item = poll();
+                    if(item == null) {
+                        break;
+                    }
+                    subscriber.onNext(item);
+                    ++emitted;
+                }
+                if(terminated()) {
+                    return;
+                }
+                // Check finished before the buffers, readers fill their buffer before counting themselves finished
+                if(finished.get() == segments && isEmpty()) {
+                    done = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                if(emitted != 0 && limit != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                missed = wip.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private boolean terminated() {
+
+            final Throwable e = error.get();
+            if(e != null) {
+                done = true;
+                subscriber.onError(e);
+                return true;
+            } else if(cancelled) {
+                done = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
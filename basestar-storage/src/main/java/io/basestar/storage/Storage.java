@@ -26,9 +26,11 @@ import io.basestar.schema.Consistency;
 import io.basestar.schema.LinkableSchema;
 import io.basestar.schema.ObjectSchema;
 import io.basestar.schema.ReferableSchema;
+import io.basestar.storage.util.PagerPublisher;
 import io.basestar.util.Name;
 import io.basestar.util.Pager;
 import io.basestar.util.Sort;
+import org.reactivestreams.Publisher;
 
 import java.util.List;
 import java.util.Map;
@@ -81,6 +83,18 @@ public interface Storage {
 
     Pager<Map<String, Object>> query(Consistency consistency, LinkableSchema schema, Expression query, List<Sort> sort, Set<Name> expand);
 
+    /**
+     * All results of a query, for consumers that read every match rather than pages. Storage that can hold a cursor
+     * open (iterators, result sets, paginators) should override this, by default the query pager is read page by page.
+     *
+     * Provided for callers outside the storage layer (e.g. exports), nothing in this module reads queries this way.
+     */
+
+    default Publisher<Map<String, Object>> queryStream(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+        return new PagerPublisher<>(query(consistency, schema, query, sort, expand));
+    }
+
     CompletableFuture<Set<Event>> afterCreate(ObjectSchema schema, String id, Map<String, Object> after);
 
     CompletableFuture<Set<Event>> afterUpdate(ObjectSchema schema, String id, long version, Map<String, Object> before, Map<String, Object> after);
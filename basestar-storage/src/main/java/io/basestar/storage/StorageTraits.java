@@ -40,6 +40,25 @@ public interface StorageTraits {
         return true;
     }
 
+    /**
+     * True if a query of the form path IN [values] is served by one index read, false where (as in DefaultIndexStorage)
+     * it is split into a read per value.
+     */
+
+    default boolean supportsInQuery() {
+
+        return false;
+    }
+
+    /**
+     * Maximum number of items (objects, index records and history records) in one atomic write transaction.
+     */
+
+    default int getMaxTransactionSize() {
+
+        return Integer.MAX_VALUE;
+    }
+
     Concurrency getObjectConcurrency();
 
     default Consistency getIndexConsistency(final boolean multi) {
@@ -0,0 +1,814 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Sets;
+import io.basestar.event.Event;
+import io.basestar.expression.Expression;
+import io.basestar.expression.constant.Constant;
+import io.basestar.schema.*;
+import io.basestar.storage.exception.ObjectExistsException;
+import io.basestar.storage.util.PagerPublisher;
+import io.basestar.util.CompletableFutures;
+import io.basestar.util.Immutable;
+import io.basestar.util.Name;
+import io.basestar.util.Nullsafe;
+import io.basestar.util.Pager;
+import io.basestar.util.Sort;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps recently accessed objects in a fast (hot) storage and everything else in a cheaper (cold) storage.
+ *
+ * Each object is written to one tier, reads try the hot tier first and objects found in the cold tier are promoted
+ * (created in the hot tier, then removed from the cold tier, the hot copy is removed again if the cold object changed
+ * in between). Writes go to the tier that holds the object, an update to a cold object promotes it, and versions are
+ * carried across tiers unchanged so version checks behave as for a single storage. Writes that span both tiers are not
+ * atomic: the hot write is applied first and is undone if the cold write fails. A write that fails because an object
+ * moved tier while it was being applied is located again and retried.
+ *
+ * A background sweep demotes objects that have not been read or written for the idle time. Access times are held in
+ * memory for at most the tracked limit of objects, past that the least recently accessed are demoted on the next
+ * sweep. If a namespace is provided the first sweep seeds access times from the hot tier using the updated timestamp.
+ *
+ * Schemas are validated against both tiers, and traits and supported expansion are those both tiers provide. Creates
+ * and updates always land in the hot tier so their hooks go to the hot tier, deletes may apply to either tier so the
+ * delete hook goes to both.
+ */
+
+@Slf4j
+public class TieredStorage implements DelegatingStorage {
+
+    public static final Duration DEFAULT_IDLE_TIME = Duration.ofDays(3);
+
+    public static final Duration DEFAULT_SWEEP_INTERVAL = Duration.ofMinutes(5);
+
+    public static final int DEFAULT_SWEEP_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_MAX_TRACKED = 1000000;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final String METRIC_PREFIX = "storage.tiered";
+
+    private final Storage hot;
+
+    private final Storage cold;
+
+    private final Duration idleTime;
+
+    // Zero disables the background sweep, sweep() can still be called directly
+
+    private final Duration sweepInterval;
+
+    private final int sweepBatchSize;
+
+    private final ScheduledExecutorService executor;
+
+    @Nullable
+    private final Namespace namespace;
+
+    private final Map<BatchResponse.RefKey, Access> access;
+
+    // Evicted from the access times because of the tracked limit, demoted by the next sweep
+
+    private final Map<BatchResponse.RefKey, Access> overflow = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean seeded = new AtomicBoolean();
+
+    private final Counter promoted = Metrics.counter(METRIC_PREFIX + ".promoted");
+
+    private final Counter demoted = Metrics.counter(METRIC_PREFIX + ".demoted");
+
+    @lombok.Builder(builderClassName = "Builder", setterPrefix = "set")
+    TieredStorage(final Storage hot, final Storage cold, final Duration idleTime, final Duration sweepInterval,
+                  final int sweepBatchSize, final ScheduledExecutorService executor, @Nullable final Namespace namespace,
+                  final int maxTracked) {
+
+        this.hot = hot;
+        this.cold = cold;
+        this.idleTime = idleTime;
+        this.sweepInterval = sweepInterval;
+        this.sweepBatchSize = sweepBatchSize;
+        this.executor = executor;
+        this.namespace = namespace;
+        this.access = CacheBuilder.newBuilder()
+                .maximumSize(maxTracked)
+                .removalListener((RemovalNotification<BatchResponse.RefKey, Access> notification) -> {
+                    if(notification.wasEvicted()) {
+                        overflow.put(notification.getKey(), notification.getValue());
+                    }
+                })
+                .<BatchResponse.RefKey, Access>build().asMap();
+    }
+
+    public static class Builder {
+
+        public TieredStorage build() {
+
+            final Duration sweepInterval = Nullsafe.orDefault(this.sweepInterval, DEFAULT_SWEEP_INTERVAL);
+            final TieredStorage storage = new TieredStorage(Nullsafe.require(hot), Nullsafe.require(cold),
+                    Nullsafe.orDefault(idleTime, DEFAULT_IDLE_TIME), sweepInterval,
+                    sweepBatchSize > 0 ? sweepBatchSize : DEFAULT_SWEEP_BATCH_SIZE,
+                    Nullsafe.orDefault(executor, TieredStorage::defaultExecutor), namespace,
+                    maxTracked > 0 ? maxTracked : DEFAULT_MAX_TRACKED);
+            if(!sweepInterval.isZero()) {
+                storage.executor.scheduleWithFixedDelay(storage::sweepQuietly, sweepInterval.toNanos(), sweepInterval.toNanos(), TimeUnit.NANOSECONDS);
+            }
+            return storage;
+        }
+    }
+
+    private static ScheduledExecutorService defaultExecutor() {
+
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "tiered-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Data
+    private static class Access {
+
+        private final ObjectSchema schema;
+
+        private final long time;
+    }
+
+    @Override
+    public Storage storage(final LinkableSchema schema) {
+
+        return hot;
+    }
+
+    @Override
+    public void validate(final ObjectSchema schema) {
+
+        hot.validate(schema);
+        cold.validate(schema);
+    }
+
+    @Override
+    public StorageTraits storageTraits(final ReferableSchema schema) {
+
+        return new TieredTraits(hot.storageTraits(schema), cold.storageTraits(schema));
+    }
+
+    @Override
+    public Set<Name> supportedExpand(final LinkableSchema schema, final Set<Name> expand) {
+
+        return Sets.intersection(hot.supportedExpand(schema, expand), cold.supportedExpand(schema, expand));
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterCreate(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+        return hot.afterCreate(schema, id, after);
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterUpdate(final ObjectSchema schema, final String id, final long version, final Map<String, Object> before, final Map<String, Object> after) {
+
+        return hot.afterUpdate(schema, id, version, before, after);
+    }
+
+    @Override
+    public CompletableFuture<Set<Event>> afterDelete(final ObjectSchema schema, final String id, final long version, final Map<String, Object> before) {
+
+        return hot.afterDelete(schema, id, version, before)
+                .thenCombine(cold.afterDelete(schema, id, version, before), Immutable::addAll);
+    }
+
+    private static BatchResponse.RefKey key(final ReferableSchema schema, final String id) {
+
+        return BatchResponse.RefKey.latest(schema.getQualifiedName(), id);
+    }
+
+    private void touch(final ObjectSchema schema, final String id) {
+
+        access.put(key(schema, id), new Access(schema, System.currentTimeMillis()));
+    }
+
+    private static Map<String, Object> lookup(final BatchResponse response, final BatchResponse.RefKey key) {
+
+        return key.hasVersion() ? response.getVersion(key.getSchema(), key.getId(), key.getVersion()) : response.get(key.getSchema(), key.getId());
+    }
+
+    private static Storage.ReadTransaction capture(final Storage.ReadTransaction read, final ReferableSchema schema, final BatchResponse.RefKey key, final Set<Name> expand) {
+
+        if(key.hasVersion()) {
+            return read.getVersion(schema, key.getId(), key.getVersion(), expand);
+        } else {
+            return read.get(schema, key.getId(), expand);
+        }
+    }
+
+    @Override
+    public ReadTransaction read(final Consistency consistency) {
+
+        return new ReadTransaction() {
+
+            private final BatchCapture capture = new BatchCapture();
+
+            @Override
+            public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                capture.captureLatest(schema, id, expand);
+                return this;
+            }
+
+            @Override
+            public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                capture.captureVersion(schema, id, version, expand);
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> read() {
+
+                ReadTransaction hotRead = hot.read(consistency);
+                for(final Map.Entry<ReferableSchema, Map<BatchResponse.RefKey, BatchCapture.RefArgs>> entry : capture.getRefs().entrySet()) {
+                    for(final Map.Entry<BatchResponse.RefKey, BatchCapture.RefArgs> ref : entry.getValue().entrySet()) {
+                        hotRead = capture(hotRead, entry.getKey(), ref.getKey(), ref.getValue().getExpand());
+                    }
+                }
+                return hotRead.read().thenCompose(hotResponse -> {
+                    final BatchCapture misses = new BatchCapture();
+                    capture.forEachRef((schema, key, args) -> {
+                        if(lookup(hotResponse, key) == null) {
+                            misses.getRefs().computeIfAbsent(schema, ignored -> new HashMap<>()).put(key, args);
+                        } else if(schema instanceof ObjectSchema) {
+                            touch((ObjectSchema)schema, key.getId());
+                        }
+                    });
+                    if(misses.getRefs().isEmpty()) {
+                        return CompletableFuture.completedFuture(hotResponse);
+                    }
+                    ReadTransaction coldRead = cold.read(consistency);
+                    for(final Map.Entry<ReferableSchema, Map<BatchResponse.RefKey, BatchCapture.RefArgs>> entry : misses.getRefs().entrySet()) {
+                        for(final Map.Entry<BatchResponse.RefKey, BatchCapture.RefArgs> ref : entry.getValue().entrySet()) {
+                            coldRead = capture(coldRead, entry.getKey(), ref.getKey(), ref.getValue().getExpand());
+                        }
+                    }
+                    return coldRead.read().thenApply(coldResponse -> {
+                        misses.forEachRef((schema, key, args) -> {
+                            final Map<String, Object> object = lookup(coldResponse, key);
+                            if(object != null && !key.hasVersion() && schema instanceof ObjectSchema) {
+                                promote((ObjectSchema)schema, key.getId(), args.getExpand().isEmpty() ? object : null);
+                            }
+                        });
+                        return BatchResponse.merge(Stream.of(hotResponse, coldResponse));
+                    });
+                });
+            }
+        };
+    }
+
+    // Best effort, if promotion fails the object stays cold and will be promoted on a later read. If the cold object
+    // changed after it was read the cold delete fails, and the hot copy (now stale) is removed again.
+
+    private void promote(final ObjectSchema schema, final String id, @Nullable final Map<String, Object> unexpanded) {
+
+        // Expanded reads are not stored as-is, the object is read again without expansion
+        final CompletableFuture<Map<String, Object>> read = unexpanded != null ? CompletableFuture.completedFuture(unexpanded)
+                : cold.get(Consistency.ATOMIC, schema, id, Collections.emptySet());
+        read.thenCompose(object -> {
+            if(object == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return hot.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, id, object).write()
+                    .thenCompose(ignored -> {
+                        touch(schema, id);
+                        return cold.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, id, object).write()
+                                .handle((result, error) -> {
+                                    if(error == null) {
+                                        return CompletableFuture.completedFuture(result);
+                                    }
+                                    return removeHot(schema, id, object).<BatchResponse>thenApply(removed -> {
+                                        throw error instanceof CompletionException ? (CompletionException)error : new CompletionException(error);
+                                    });
+                                }).thenCompose(future -> future);
+                    });
+        }).whenComplete((ignored, error) -> {
+            if(error == null) {
+                promoted.increment();
+            } else {
+                log.debug("Promotion of {} {} did not complete ({})", schema.getQualifiedName(), id, error.getMessage());
+            }
+        });
+    }
+
+    private CompletableFuture<?> removeHot(final ObjectSchema schema, final String id, final Map<String, Object> copy) {
+
+        access.remove(key(schema, id));
+        return hot.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, id, copy).write()
+                .exceptionally(error -> {
+                    // Only fails if the hot copy was written since, in which case it is current
+                    log.warn("Failed to remove promoted copy of {} {} ({})", schema.getQualifiedName(), id, error.getMessage());
+                    return null;
+                });
+    }
+
+    private enum Action {
+
+        CREATE,
+        UPDATE,
+        DELETE,
+        HISTORY
+    }
+
+    @Data
+    private static class Op {
+
+        private final Action action;
+
+        private final ObjectSchema schema;
+
+        private final String id;
+
+        private final Map<String, Object> before;
+
+        private final Map<String, Object> after;
+    }
+
+    @Override
+    public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+        final List<Op> ops = new ArrayList<>();
+        // Deprecated raw writes are not tracked per object and always go to the hot tier
+        final List<UnaryOperator<WriteTransaction>> hotOnly = new ArrayList<>();
+        return new WriteTransaction() {
+
+            @Override
+            @Deprecated
+            public WriteTransaction write(final LinkableSchema schema, final Map<String, Object> after) {
+
+                hotOnly.add(write -> write.write(schema, after));
+                return this;
+            }
+
+            @Override
+            public WriteTransaction createObject(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                ops.add(new Op(Action.CREATE, schema, id, null, after));
+                return this;
+            }
+
+            @Override
+            public WriteTransaction updateObject(final ObjectSchema schema, final String id, final Map<String, Object> before, final Map<String, Object> after) {
+
+                ops.add(new Op(Action.UPDATE, schema, id, before, after));
+                return this;
+            }
+
+            @Override
+            public WriteTransaction deleteObject(final ObjectSchema schema, final String id, final Map<String, Object> before) {
+
+                ops.add(new Op(Action.DELETE, schema, id, before, null));
+                return this;
+            }
+
+            @Override
+            public WriteTransaction writeHistory(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                ops.add(new Op(Action.HISTORY, schema, id, null, after));
+                return this;
+            }
+
+            @Override
+            public CompletableFuture<BatchResponse> write() {
+
+                return attempt(consistency, versioning, ops, hotOnly, MAX_ATTEMPTS);
+            }
+        };
+    }
+
+    // If the write fails and an object has since moved tier (promoted or demoted concurrently), retry in the new tier
+
+    private CompletableFuture<BatchResponse> attempt(final Consistency consistency, final Versioning versioning, final List<Op> ops,
+                                                     final List<UnaryOperator<WriteTransaction>> hotOnly, final int attempts) {
+
+        return locate(ops).thenCompose(located -> apply(consistency, versioning, ops, hotOnly, located)
+                .handle((result, error) -> {
+                    if(error == null) {
+                        return CompletableFuture.completedFuture(result);
+                    } else if(attempts <= 1) {
+                        return CompletableFutures.<BatchResponse>completedExceptionally(error);
+                    }
+                    return locate(ops).thenCompose(relocated -> {
+                        if(relocated.equals(located)) {
+                            return CompletableFutures.<BatchResponse>completedExceptionally(error);
+                        }
+                        log.debug("Retrying tiered write after objects moved tier ({})", error.getMessage());
+                        return attempt(consistency, versioning, ops, hotOnly, attempts - 1);
+                    });
+                }).thenCompose(future -> future));
+    }
+
+    // Finds the tier currently holding each object written
+
+    private CompletableFuture<Map<BatchResponse.RefKey, Storage>> locate(final List<Op> ops) {
+
+        final Map<BatchResponse.RefKey, ObjectSchema> keys = new LinkedHashMap<>();
+        ops.stream().filter(op -> op.getAction() != Action.HISTORY)
+                .forEach(op -> keys.put(key(op.getSchema(), op.getId()), op.getSchema()));
+        final Map<BatchResponse.RefKey, Storage> located = new HashMap<>();
+        if(keys.isEmpty()) {
+            return CompletableFuture.completedFuture(located);
+        }
+        return read(hot, keys).thenCompose(hotResponse -> {
+            final Map<BatchResponse.RefKey, ObjectSchema> missing = new LinkedHashMap<>();
+            keys.forEach((key, schema) -> {
+                if(hotResponse.get(key.getSchema(), key.getId()) != null) {
+                    located.put(key, hot);
+                } else {
+                    missing.put(key, schema);
+                }
+            });
+            if(missing.isEmpty()) {
+                return CompletableFuture.completedFuture(located);
+            }
+            return read(cold, missing).thenApply(coldResponse -> {
+                missing.keySet().forEach(key -> {
+                    if(coldResponse.get(key.getSchema(), key.getId()) != null) {
+                        located.put(key, cold);
+                    }
+                });
+                return located;
+            });
+        });
+    }
+
+    private static CompletableFuture<BatchResponse> read(final Storage storage, final Map<BatchResponse.RefKey, ObjectSchema> keys) {
+
+        ReadTransaction read = storage.read(Consistency.ATOMIC);
+        for(final Map.Entry<BatchResponse.RefKey, ObjectSchema> entry : keys.entrySet()) {
+            read = read.get(entry.getValue(), entry.getKey().getId(), Collections.emptySet());
+        }
+        return read.read();
+    }
+
+    private CompletableFuture<BatchResponse> apply(final Consistency consistency, final Versioning versioning, final List<Op> ops,
+                                                   final List<UnaryOperator<WriteTransaction>> hotOnly, final Map<BatchResponse.RefKey, Storage> located) {
+
+        WriteTransaction hotWrite = hot.write(consistency, versioning);
+        WriteTransaction coldWrite = cold.write(consistency, versioning);
+        final List<Op> promotions = new ArrayList<>();
+        boolean hasHot = false;
+        boolean hasCold = false;
+        for(final UnaryOperator<WriteTransaction> write : hotOnly) {
+            hotWrite = write.apply(hotWrite);
+            hasHot = true;
+        }
+        for(final Op op : ops) {
+            final ObjectSchema schema = op.getSchema();
+            final String id = op.getId();
+            final boolean isCold = located.get(key(schema, id)) == cold;
+            switch(op.getAction()) {
+                case CREATE:
+                    if(isCold) {
+                        throw new ObjectExistsException(schema.getQualifiedName(), id);
+                    }
+                    hotWrite = hotWrite.createObject(schema, id, op.getAfter());
+                    hasHot = true;
+                    break;
+                case UPDATE:
+                    if(isCold) {
+                        // Promote on write, the cold delete checks the before version
+                        hotWrite = hotWrite.createObject(schema, id, op.getAfter());
+                        coldWrite = coldWrite.deleteObject(schema, id, op.getBefore());
+                        promotions.add(op);
+                        hasCold = true;
+                    } else {
+                        hotWrite = hotWrite.updateObject(schema, id, op.getBefore(), op.getAfter());
+                    }
+                    hasHot = true;
+                    break;
+                case DELETE:
+                    if(isCold) {
+                        coldWrite = coldWrite.deleteObject(schema, id, op.getBefore());
+                        hasCold = true;
+                    } else {
+                        hotWrite = hotWrite.deleteObject(schema, id, op.getBefore());
+                        hasHot = true;
+                    }
+                    break;
+                case HISTORY:
+                    hotWrite = hotWrite.writeHistory(schema, id, op.getAfter());
+                    hasHot = true;
+                    break;
+            }
+        }
+        final CompletableFuture<BatchResponse> hotFuture = hasHot ? hotWrite.write() : CompletableFuture.completedFuture(BatchResponse.empty());
+        final WriteTransaction coldTransaction = coldWrite;
+        final boolean writeCold = hasCold;
+        return hotFuture.thenCompose(hotResponse -> {
+            ops.forEach(op -> {
+                if(op.getAction() == Action.DELETE) {
+                    access.remove(key(op.getSchema(), op.getId()));
+                } else if(op.getAction() != Action.HISTORY && (located.get(key(op.getSchema(), op.getId())) != cold || promotions.contains(op))) {
+                    touch(op.getSchema(), op.getId());
+                }
+            });
+            if(!writeCold) {
+                return CompletableFuture.completedFuture(hotResponse);
+            }
+            return coldTransaction.write().handle((coldResponse, error) -> {
+                if(error == null) {
+                    return CompletableFuture.completedFuture(BatchResponse.merge(Stream.of(hotResponse, coldResponse)));
+                }
+                return undo(promotions).<BatchResponse>thenApply(ignored -> {
+                    throw error instanceof CompletionException ? (CompletionException)error : new CompletionException(error);
+                });
+            }).thenCompose(future -> future);
+        });
+    }
+
+    private CompletableFuture<BatchResponse> undo(final List<Op> promotions) {
+
+        if(promotions.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        WriteTransaction write = hot.write(Consistency.ATOMIC, Versioning.CHECKED);
+        for(final Op op : promotions) {
+            write = write.deleteObject(op.getSchema(), op.getId(), op.getAfter());
+            access.remove(key(op.getSchema(), op.getId()));
+        }
+        return write.write().exceptionally(error -> {
+            log.warn("Failed to undo promotion of {} objects ({})", promotions.size(), error.getMessage());
+            return null;
+        });
+    }
+
+    @Override
+    public Pager<Map<String, Object>> query(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+        final Pager<Map<String, Object>> hotPager = hot.query(consistency, schema, query, sort, expand);
+        final Pager<Map<String, Object>> coldPager = cold.query(consistency, schema, query, sort, expand);
+        // Objects part way through promotion may briefly be in both tiers, the hot copy is the current one
+        final Pager<Map<String, Object>> filtered = (stats, token, count) -> coldPager.page(stats, token, count)
+                .thenApply(page -> page.filter(object -> !isHot(object)));
+        final Map<String, Pager<Map<String, Object>>> pagers = new LinkedHashMap<>();
+        pagers.put("hot", hotPager);
+        pagers.put("cold", filtered);
+        return Pager.merge(Instance.comparator(sort), pagers);
+    }
+
+    private boolean isHot(final Map<String, Object> object) {
+
+        final Name schema = Instance.getSchema(object);
+        final String id = Instance.getId(object);
+        return schema != null && id != null && access.containsKey(BatchResponse.RefKey.latest(schema, id));
+    }
+
+    @Override
+    public Publisher<Map<String, Object>> queryStream(final Consistency consistency, final LinkableSchema schema, final Expression query, final List<Sort> sort, final Set<Name> expand) {
+
+        return new PagerPublisher<>(query(consistency, schema, query, sort, expand));
+    }
+
+    @Override
+    public Scan scan(final ReferableSchema schema, final Expression query, final int segments) {
+
+        final Scan hotScan = hot.scan(schema, query, segments);
+        final Scan coldScan = cold.scan(schema, query, segments);
+        return new Scan() {
+
+            @Override
+            public int getSegments() {
+
+                return hotScan.getSegments() + coldScan.getSegments();
+            }
+
+            @Override
+            public Segment segment(final int segment) {
+
+                final int hotSegments = hotScan.getSegments();
+                return segment < hotSegments ? hotScan.segment(segment) : coldScan.segment(segment - hotSegments);
+            }
+        };
+    }
+
+    private void sweepQuietly() {
+
+        try {
+            sweep();
+        } catch (final RuntimeException e) {
+            log.warn("Tiered storage sweep failed", e);
+        }
+    }
+
+    /**
+     * Demote every hot object that has been idle for longer than the idle time, returns the number demoted.
+     */
+
+    public int sweep() {
+
+        if(namespace != null && seeded.compareAndSet(false, true)) {
+            seed(namespace);
+        }
+        final long cutoff = System.currentTimeMillis() - idleTime.toMillis();
+        final Map<ObjectSchema, Set<String>> idle = new HashMap<>();
+        access.forEach((key, value) -> {
+            if(value.getTime() < cutoff) {
+                idle.computeIfAbsent(value.getSchema(), ignored -> new LinkedHashSet<>()).add(key.getId());
+            }
+        });
+        overflow.forEach((key, value) -> {
+            if(overflow.remove(key, value)) {
+                idle.computeIfAbsent(value.getSchema(), ignored -> new LinkedHashSet<>()).add(key.getId());
+            }
+        });
+        int count = 0;
+        for(final Map.Entry<ObjectSchema, Set<String>> entry : idle.entrySet()) {
+            final List<String> ids = new ArrayList<>(entry.getValue());
+            for(int offset = 0; offset < ids.size(); offset += sweepBatchSize) {
+                count += demote(entry.getKey(), ids.subList(offset, Math.min(ids.size(), offset + sweepBatchSize))).join();
+            }
+        }
+        return count;
+    }
+
+    private void seed(final Namespace namespace) {
+
+        namespace.forEachObjectSchema((name, schema) -> {
+            try {
+                final Scan scan = hot.scan(schema, Constant.TRUE, 1);
+                for(int segment = 0; segment != scan.getSegments(); ++segment) {
+                    try(final Scan.Segment objects = scan.segment(segment)) {
+                        objects.forEachRemaining(object -> {
+                            final Instant updated = Instance.getUpdated(object);
+                            final long time = updated == null ? System.currentTimeMillis() : updated.toEpochMilli();
+                            access.putIfAbsent(key(schema, Instance.getId(object)), new Access(schema, time));
+                        });
+                    }
+                }
+            } catch (final UnsupportedOperationException | IOException e) {
+                log.warn("Cannot seed access times for {} ({})", name, e.getMessage());
+            }
+        });
+    }
+
+    // Copy to the cold tier, then remove from the hot tier only if unchanged since it was read, if the object changed
+    // the cold copy is removed again (only if it is still the copy written here)
+
+    private CompletableFuture<Integer> demote(final ObjectSchema schema, final List<String> ids) {
+
+        final Map<BatchResponse.RefKey, ObjectSchema> keys = new LinkedHashMap<>();
+        ids.forEach(id -> keys.put(key(schema, id), schema));
+        return read(hot, keys).thenCombine(read(cold, keys), (hotResponse, coldResponse) -> {
+            final Map<String, Map<String, Object>> objects = new LinkedHashMap<>();
+            WriteTransaction coldWrite = cold.write(Consistency.ATOMIC, Versioning.UNCHECKED);
+            for(final String id : ids) {
+                final Map<String, Object> object = hotResponse.get(schema, id);
+                if(object == null) {
+                    access.remove(key(schema, id));
+                    continue;
+                }
+                final Map<String, Object> existing = coldResponse.get(schema, id);
+                coldWrite = existing == null ? coldWrite.createObject(schema, id, object) : coldWrite.updateObject(schema, id, existing, object);
+                objects.put(id, object);
+            }
+            if(objects.isEmpty()) {
+                return CompletableFuture.completedFuture(0);
+            }
+            return coldWrite.write().thenCompose(ignored -> {
+                final List<CompletableFuture<Boolean>> deletes = objects.entrySet().stream().map(entry -> {
+                    final String id = entry.getKey();
+                    final BatchResponse.RefKey key = key(schema, id);
+                    final Access before = access.get(key);
+                    return hot.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, id, entry.getValue()).write()
+                            .handle((result, error) -> {
+                                if(error != null) {
+                                    // Written since it was read, it stays hot
+                                    return removeCold(schema, id, entry.getValue()).thenApply(removed -> false);
+                                }
+                                if(before != null) {
+                                    access.remove(key, before);
+                                }
+                                demoted.increment();
+                                return CompletableFuture.completedFuture(true);
+                            }).thenCompose(future -> future);
+                }).collect(Collectors.toList());
+                return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0]))
+                        .thenApply(v -> (int)deletes.stream().filter(CompletableFuture::join).count());
+            });
+        }).thenCompose(future -> future);
+    }
+
+    private CompletableFuture<?> removeCold(final ObjectSchema schema, final String id, final Map<String, Object> copy) {
+
+        return cold.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, id, copy).write()
+                .exceptionally(error -> {
+                    // Reads and queries prefer the hot copy, the stale cold copy is replaced on the next demotion
+                    log.warn("Failed to remove cold copy of {} {} ({})", schema.getQualifiedName(), id, error.getMessage());
+                    return null;
+                });
+    }
+
+    // Traits that hold for both tiers
+
+    @Data
+    private static class TieredTraits implements StorageTraits {
+
+        private final StorageTraits hot;
+
+        private final StorageTraits cold;
+
+        private static Consistency weaker(final Consistency a, final Consistency b) {
+
+            return a.isWeaker(b) ? a : b;
+        }
+
+        @Override
+        public Consistency getHistoryConsistency() {
+
+            return weaker(hot.getHistoryConsistency(), cold.getHistoryConsistency());
+        }
+
+        @Override
+        public Consistency getSingleValueIndexConsistency() {
+
+            return weaker(hot.getSingleValueIndexConsistency(), cold.getSingleValueIndexConsistency());
+        }
+
+        @Override
+        public Consistency getMultiValueIndexConsistency() {
+
+            return weaker(hot.getMultiValueIndexConsistency(), cold.getMultiValueIndexConsistency());
+        }
+
+        @Override
+        public boolean supportsPolymorphism() {
+
+            return hot.supportsPolymorphism() && cold.supportsPolymorphism();
+        }
+
+        @Override
+        public boolean supportsMultiObject() {
+
+            return hot.supportsMultiObject() && cold.supportsMultiObject();
+        }
+
+        @Override
+        public boolean supportsHistory() {
+
+            return hot.supportsHistory() && cold.supportsHistory();
+        }
+
+        @Override
+        public boolean supportsInQuery() {
+
+            return hot.supportsInQuery() && cold.supportsInQuery();
+        }
+
+        @Override
+        public int getMaxTransactionSize() {
+
+            return Math.min(hot.getMaxTransactionSize(), cold.getMaxTransactionSize());
+        }
+
+        @Override
+        public Concurrency getObjectConcurrency() {
+
+            return hot.getObjectConcurrency().isEnabled() && cold.getObjectConcurrency().isEnabled() ? Concurrency.OPTIMISTIC : Concurrency.NONE;
+        }
+    }
+}
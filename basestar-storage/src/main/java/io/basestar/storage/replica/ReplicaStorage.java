@@ -11,20 +11,45 @@ import io.basestar.storage.DelegatingStorage;
 import io.basestar.storage.Storage;
 import io.basestar.storage.Versioning;
 import io.basestar.storage.replica.event.ReplicaSyncEvent;
+import io.basestar.storage.util.DecayingHistogram;
 import io.basestar.util.Name;
 import io.basestar.util.Nullsafe;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
 import lombok.Builder;
+import lombok.Data;
 
 import javax.annotation.Nullable;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
+/**
+ * Writes to a primary storage and (synchronously, or through sync events) to a replica.
+ *
+ * When hedged reads are enabled, eventual reads go first to whichever side has the lower recent median latency. If
+ * that has not answered within its recent p95 latency the other side is also read, and the first answer is used.
+ *
+ * When a replication batch size is set, sync events are applied through a {@link ReplicationPipeline}.
+ */
+
 @Builder(builderClassName = "Builder", setterPrefix = "set")
 public class ReplicaStorage implements DelegatingStorage, Handler<Event> {
 
+    public static final Duration DEFAULT_HEDGE_DELAY = Duration.ofMillis(50);
+
+    // Fraction of hedged reads sent to the slower side first, so that its latency estimate stays current
+
+    private static final double PROBE_RATE = 0.05;
+
+    private static final String METRIC_PREFIX = "storage.replica";
+
     private static final Handlers<ReplicaStorage> HANDLERS = Handlers.<ReplicaStorage>builder()
             .on(ReplicaSyncEvent.class, ReplicaStorage::onSync)
             .build();
@@ -37,6 +62,32 @@ public class ReplicaStorage implements DelegatingStorage, Handler<Event> {
 
     public static class Builder {
 
+        private int replicationBatchSize;
+
+        private Duration replicationWindow;
+
+        private int catchUpThreshold;
+
+        // Sync events are applied in batches of up to this many objects, zero applies each event as it arrives
+
+        public Builder setReplicationBatchSize(final int replicationBatchSize) {
+
+            this.replicationBatchSize = replicationBatchSize;
+            return this;
+        }
+
+        public Builder setReplicationWindow(final Duration replicationWindow) {
+
+            this.replicationWindow = replicationWindow;
+            return this;
+        }
+
+        public Builder setCatchUpThreshold(final int catchUpThreshold) {
+
+            this.catchUpThreshold = catchUpThreshold;
+            return this;
+        }
+
         public Builder setSimplePrimary(final Storage primary) {
 
             return setPrimary(schema -> primary);
@@ -79,16 +130,43 @@ public class ReplicaStorage implements DelegatingStorage, Handler<Event> {
 
         public ReplicaStorage build() {
 
-            return new ReplicaStorage(namespace, emitter, Nullsafe.require(primary), Nullsafe.require(replica),
+            final Function<LinkableSchema, Storage> primary = Nullsafe.require(this.primary);
+            final ScheduledExecutorService scheduler = hedgeReads || replicationBatchSize > 0
+                    ? Nullsafe.orDefault(this.scheduler, ReplicaStorage::defaultScheduler) : this.scheduler;
+            final ReplicationPipeline pipeline = replicationBatchSize > 0 ? new ReplicationPipeline(primary,
+                    Nullsafe.orDefault(replicationWindow, ReplicationPipeline.DEFAULT_WINDOW), replicationBatchSize,
+                    catchUpThreshold > 0 ? catchUpThreshold : ReplicationPipeline.DEFAULT_CATCH_UP_THRESHOLD,
+                    scheduler, defaultExecutor("replica-catch-up")) : this.pipeline;
+            return new ReplicaStorage(namespace, emitter, primary, Nullsafe.require(replica),
                     Nullsafe.orDefault(readConsistency, (consistency) -> consistency),
                     Nullsafe.orDefault(writeConsistency, (consistency) -> consistency),
                     Nullsafe.orDefault(primaryConsistency, (schema, consistency) -> consistency),
                     Nullsafe.orDefault(primaryVersioning, (schema, versioning) -> versioning),
                     Nullsafe.orDefault(replicaConsistency, (schema, consistency) -> consistency),
-                    Nullsafe.orDefault(replicaVersioning, (schema, versioning) -> versioning));
+                    Nullsafe.orDefault(replicaVersioning, (schema, versioning) -> versioning),
+                    hedgeReads, Nullsafe.orDefault(hedgeDelay, DEFAULT_HEDGE_DELAY),
+                    scheduler, pipeline);
         }
     }
 
+    private static ScheduledExecutorService defaultScheduler() {
+
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "replica-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService defaultExecutor(final String name) {
+
+        return Executors.newSingleThreadExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     @Nullable
     private final Namespace namespace;
 
@@ -111,6 +189,25 @@ public class ReplicaStorage implements DelegatingStorage, Handler<Event> {
 
     private final BiFunction<LinkableSchema, Versioning, Versioning> replicaVersioning;
 
+    private final boolean hedgeReads;
+
+    // Used until latency has been observed
+
+    private final Duration hedgeDelay;
+
+    private final ScheduledExecutorService scheduler;
+
+    // Batches sync events when set
+
+    @Nullable
+    private final ReplicationPipeline pipeline;
+
+    private final Map<Storage, DecayingHistogram> latencies = new ConcurrentHashMap<>();
+
+    private final Counter hedgesStarted = Metrics.counter(METRIC_PREFIX + ".hedge.started");
+
+    private final Counter hedgesWon = Metrics.counter(METRIC_PREFIX + ".hedge.won");
+
     @Override
     public Storage storage(final LinkableSchema schema) {
 
@@ -167,12 +264,157 @@ public class ReplicaStorage implements DelegatingStorage, Handler<Event> {
                 }
             };
 
+        } else if(hedgeReads && consistency == Consistency.EVENTUAL) {
+
+            return new HedgedRead(consistency);
+
         } else {
 
             return DelegatingStorage.super.read(consistency);
         }
     }
 
+    @Data
+    private static class ReadOp {
+
+        private final ReferableSchema schema;
+
+        private final UnaryOperator<ReadTransaction> apply;
+    }
+
+    private class HedgedRead implements ReadTransaction {
+
+        private final Consistency consistency;
+
+        private final List<ReadOp> ops = new ArrayList<>();
+
+        public HedgedRead(final Consistency consistency) {
+
+            this.consistency = consistency;
+        }
+
+        @Override
+        public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+            ops.add(new ReadOp(schema, v -> v.get(schema, id, expand)));
+            return this;
+        }
+
+        @Override
+        public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+            ops.add(new ReadOp(schema, v -> v.getVersion(schema, id, version, expand)));
+            return this;
+        }
+
+        @Override
+        public CompletableFuture<BatchResponse> read() {
+
+            final Function<LinkableSchema, Storage> primarySide = ReplicaStorage.this::storage;
+            if(ops.stream().anyMatch(op -> !replica.apply(op.getSchema()).isPresent())) {
+                return readFrom(primarySide);
+            }
+            final Function<LinkableSchema, Storage> replicaSide = schema -> replica.apply(schema).orElseThrow(IllegalStateException::new);
+
+            final long primaryMedian = estimate(primarySide, 0.5).orElse(0);
+            final long replicaMedian = estimate(replicaSide, 0.5).orElse(0);
+            final boolean replicaFirst = (replicaMedian <= primaryMedian) != (ThreadLocalRandom.current().nextDouble() < PROBE_RATE);
+
+            final Function<LinkableSchema, Storage> first = replicaFirst ? replicaSide : primarySide;
+            final Function<LinkableSchema, Storage> second = replicaFirst ? primarySide : replicaSide;
+            final long delay = estimate(first, 0.95).orElse(hedgeDelay.toNanos());
+            return hedge(() -> readFrom(first), () -> readFrom(second), delay);
+        }
+
+        private OptionalLong estimate(final Function<LinkableSchema, Storage> side, final double quantile) {
+
+            long max = 0;
+            for(final Storage storage : storages(side)) {
+                final DecayingHistogram histogram = latencies.get(storage);
+                final OptionalLong estimate = histogram == null ? OptionalLong.empty() : histogram.quantile(quantile);
+                if(!estimate.isPresent()) {
+                    return OptionalLong.empty();
+                }
+                max = Math.max(max, estimate.getAsLong());
+            }
+            return OptionalLong.of(max);
+        }
+
+        private Set<Storage> storages(final Function<LinkableSchema, Storage> side) {
+
+            final Set<Storage> storages = Collections.newSetFromMap(new IdentityHashMap<>());
+            ops.forEach(op -> storages.add(side.apply(op.getSchema())));
+            return storages;
+        }
+
+        private CompletableFuture<BatchResponse> readFrom(final Function<LinkableSchema, Storage> side) {
+
+            final IdentityHashMap<Storage, ReadTransaction> transactions = new IdentityHashMap<>();
+            for(final ReadOp op : ops) {
+                final Storage storage = side.apply(op.getSchema());
+                final ReadTransaction transaction = transactions.computeIfAbsent(storage, v -> v.read(consistency));
+                transactions.put(storage, op.getApply().apply(transaction));
+            }
+            return BatchResponse.mergeFutures(transactions.entrySet().stream().map(entry -> {
+                final DecayingHistogram histogram = latencies.computeIfAbsent(entry.getKey(), ignored -> new DecayingHistogram());
+                final long start = System.nanoTime();
+                return entry.getValue().read().whenComplete((result, error) -> {
+                    if(error == null) {
+                        histogram.record(System.nanoTime() - start);
+                    }
+                });
+            }));
+        }
+    }
+
+    private CompletableFuture<BatchResponse> hedge(final Supplier<CompletableFuture<BatchResponse>> first,
+                                                   final Supplier<CompletableFuture<BatchResponse>> second,
+                                                   final long delayNanos) {
+
+        final CompletableFuture<BatchResponse> result = new CompletableFuture<>();
+        final AtomicBoolean hedged = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+        final Runnable startSecond = () -> {
+            if(!result.isDone() && hedged.compareAndSet(false, true)) {
+                hedgesStarted.increment();
+                start(second).whenComplete((response, error) -> {
+                    if(error == null) {
+                        if(result.complete(response)) {
+                            hedgesWon.increment();
+                        }
+                    } else if(failures.incrementAndGet() == 2) {
+                        result.completeExceptionally(error);
+                    }
+                });
+            }
+        };
+        start(first).whenComplete((response, error) -> {
+            if(error == null) {
+                result.complete(response);
+            } else if(failures.incrementAndGet() == 2) {
+                result.completeExceptionally(error);
+            } else {
+                startSecond.run();
+            }
+        });
+        if(!result.isDone()) {
+            final ScheduledFuture<?> timer = scheduler.schedule(startSecond, delayNanos, TimeUnit.NANOSECONDS);
+            result.whenComplete((response, error) -> timer.cancel(false));
+        }
+        return result;
+    }
+
+    private static CompletableFuture<BatchResponse> start(final Supplier<CompletableFuture<BatchResponse>> read) {
+
+        try {
+            return read.get();
+        } catch (final RuntimeException e) {
+            final CompletableFuture<BatchResponse> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
     private CompletableFuture<BatchResponse> mergeFutures(final CompletableFuture<BatchResponse> primaryFuture, final CompletableFuture<BatchResponse> replicaFuture) {
 
         return primaryFuture.thenCombine(replicaFuture, (primaryResponse, replicaResponse) -> {
@@ -355,6 +597,10 @@ public class ReplicaStorage implements DelegatingStorage, Handler<Event> {
             final Consistency resolvedConsistency = replicaConsistency.apply(schema, event.getConsistency());
             final Versioning resolvedVersioning = replicaVersioning.apply(schema, event.getVersioning());
 
+            if(pipeline != null) {
+                return pipeline.enqueue(replica, resolvedConsistency, resolvedVersioning, schema, event);
+            }
+
             final WriteTransaction write = replica.write(resolvedConsistency, resolvedVersioning);
 
             switch (event.getAction()) {
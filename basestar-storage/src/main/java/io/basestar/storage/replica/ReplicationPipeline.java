@@ -0,0 +1,579 @@
+package io.basestar.storage.replica;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.expression.constant.Constant;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.storage.BatchResponse;
+import io.basestar.storage.Scan;
+import io.basestar.storage.ScanExecutor;
+import io.basestar.storage.Storage;
+import io.basestar.storage.Versioning;
+import io.basestar.storage.replica.event.ReplicaSyncEvent;
+import io.basestar.util.Name;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Applies replica sync events to replica storage in batches.
+ *
+ * Events are buffered per replica (and write consistency/versioning) until the batch is full or the window expires,
+ * within a batch only the latest state of each object is kept, and batches for a replica are applied one at a time in
+ * arrival order. A batch reads the current replica state first and only writes objects that the replica is behind on,
+ * so events that are redelivered or overtaken are harmless. If a batch fails, each object is retried on its own so
+ * that only the events for a failing object see the error.
+ *
+ * Deletes are only applied while the replica still holds the version the primary deleted, so a delete that arrives
+ * after the object was recreated does not remove the newer object.
+ *
+ * When more than the catch-up threshold of events for one schema are waiting, the queued events for that schema are
+ * dropped and the schema is copied from a scan of the primary instead. Scan segments are read in parallel (see
+ * ScanExecutor) and written to the replica one batch at a time. Schemas whose primary cannot scan are left to normal
+ * batching.
+ */
+
+@Slf4j
+public class ReplicationPipeline {
+
+    public static final Duration DEFAULT_WINDOW = Duration.ofMillis(10);
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_CATCH_UP_THRESHOLD = 10000;
+
+    // Segments requested from the primary for a catch-up scan (storage may return fewer)
+
+    public static final int CATCH_UP_SEGMENTS = ScanExecutor.DEFAULT_PARALLELISM;
+
+    private static final String METRIC_PREFIX = "storage.replica.pipeline";
+
+    private final Function<LinkableSchema, Storage> primary;
+
+    private final Duration window;
+
+    private final int batchSize;
+
+    private final int catchUpThreshold;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Executor catchUpExecutor;
+
+    // Uses its own threads, the catch-up executor may be busy running the catch-up itself
+
+    private final ScanExecutor scanExecutor = ScanExecutor.builder().build();
+
+    private final Map<QueueKey, ReplicaQueue> queues = new HashMap<>();
+
+    // Schemas whose primary does not support scan, these are never caught up
+
+    private final Set<Name> unscannable = ConcurrentHashMap.newKeySet();
+
+    private final Object lock = new Object();
+
+    private final DistributionSummary batchSizes = Metrics.summary(METRIC_PREFIX + ".batch.size");
+
+    public ReplicationPipeline(final Function<LinkableSchema, Storage> primary, final Duration window, final int batchSize,
+                               final int catchUpThreshold, final ScheduledExecutorService scheduler, final Executor catchUpExecutor) {
+
+        this.primary = primary;
+        this.window = window;
+        this.batchSize = batchSize;
+        this.catchUpThreshold = catchUpThreshold;
+        this.scheduler = scheduler;
+        this.catchUpExecutor = catchUpExecutor;
+        Metrics.gauge(METRIC_PREFIX + ".lag.events", this, ReplicationPipeline::getLagEvents);
+        Metrics.gauge(METRIC_PREFIX + ".lag.seconds", this, ReplicationPipeline::getLagSeconds);
+    }
+
+    /**
+     * Queue an event for the replica, the result completes when the replica reflects the event (or a later state).
+     */
+
+    public CompletableFuture<?> enqueue(final Storage replica, final Consistency consistency, final Versioning versioning,
+                                        final LinkableSchema schema, final ReplicaSyncEvent event) {
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final ReplicaQueue queue;
+        synchronized (lock) {
+            queue = queues.computeIfAbsent(new QueueKey(replica, consistency, versioning), ReplicaQueue::new);
+            queue.add(schema, event, future);
+        }
+        queue.schedule();
+        return future;
+    }
+
+    public long getLagEvents() {
+
+        synchronized (lock) {
+            return queues.values().stream().mapToLong(queue -> queue.pending).sum();
+        }
+    }
+
+    public double getLagSeconds() {
+
+        synchronized (lock) {
+            final Instant now = Instant.now();
+            return queues.values().stream().map(ReplicaQueue::oldest).filter(Objects::nonNull)
+                    .mapToDouble(oldest -> Math.max(0, Duration.between(oldest, now).toMillis() / 1000.0))
+                    .max().orElse(0);
+        }
+    }
+
+    @Data
+    private static class QueueKey {
+
+        private final Storage replica;
+
+        private final Consistency consistency;
+
+        private final Versioning versioning;
+    }
+
+    @Data
+    private static class ObjectKey {
+
+        private final Name schema;
+
+        private final String id;
+    }
+
+    // Latest state of one object (deleted if after is null) and the events waiting on it, for a delete beforeVersion is
+    // the version the primary deleted (null if unknown, then the delete is not guarded)
+
+    private static class Entry {
+
+        private final LinkableSchema schema;
+
+        private final String id;
+
+        private Map<String, Object> after;
+
+        private Long beforeVersion;
+
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        private int events;
+
+        public Entry(final LinkableSchema schema, final String id, final Map<String, Object> after, final Long beforeVersion) {
+
+            this.schema = schema;
+            this.id = id;
+            this.after = after;
+            this.beforeVersion = beforeVersion;
+        }
+
+        private void complete(final Throwable error) {
+
+            futures.forEach(future -> {
+                if(error == null) {
+                    future.complete(null);
+                } else {
+                    future.completeExceptionally(error);
+                }
+            });
+        }
+    }
+
+    private static class Batch {
+
+        private final Map<Object, Entry> entries = new LinkedHashMap<>();
+
+        private Instant oldest;
+
+        private int events;
+
+        private boolean sealed;
+    }
+
+    private class ReplicaQueue {
+
+        private final QueueKey key;
+
+        private final Deque<Batch> batches = new ArrayDeque<>();
+
+        private final Map<Name, Integer> schemaEvents = new HashMap<>();
+
+        private int pending;
+
+        private boolean busy;
+
+        private ScheduledFuture<?> timer;
+
+        public ReplicaQueue(final QueueKey key) {
+
+            this.key = key;
+        }
+
+        // Called holding lock
+
+        private void add(final LinkableSchema schema, final ReplicaSyncEvent event, final CompletableFuture<Void> future) {
+
+            final boolean delete = event.getAction() == ReplicaSyncEvent.Action.DELETE;
+            final Map<String, Object> after = delete ? null : ReplicaMetadata.unwrapReplica(event.getAfter());
+            final Map<String, Object> before = ReplicaMetadata.unwrapReplica(event.getBefore());
+            final Long beforeVersion = before == null ? null : Instance.getVersion(before);
+            // Writes without an id cannot be collapsed
+            final Object objectKey = event.getId() == null ? new Object() : new ObjectKey(schema.getQualifiedName(), event.getId());
+
+            Batch batch = batches.peekLast();
+            if(batch == null || batch.sealed) {
+                batch = new Batch();
+                batches.addLast(batch);
+            }
+            Entry entry = batch.entries.get(objectKey);
+            if(entry != null && entry.after == null && !delete) {
+                // Recreated after delete, so the delete must be applied first
+                batch.sealed = true;
+                batch = new Batch();
+                batches.addLast(batch);
+                entry = null;
+            }
+            if(entry == null) {
+                entry = new Entry(schema, event.getId(), after, beforeVersion);
+                batch.entries.put(objectKey, entry);
+            } else {
+                entry.after = after;
+                entry.beforeVersion = beforeVersion;
+            }
+            entry.futures.add(future);
+            entry.events += 1;
+            batch.events += 1;
+            final Instant time = eventTime(event);
+            if(batch.oldest == null || time.isBefore(batch.oldest)) {
+                batch.oldest = time;
+            }
+            if(batch.entries.size() >= batchSize) {
+                batch.sealed = true;
+            }
+            pending += 1;
+            // Only events that a catch-up can replace count towards the threshold
+            if(entry.id != null) {
+                schemaEvents.merge(schema.getQualifiedName(), 1, Integer::sum);
+            }
+        }
+
+        // Called holding lock
+
+        private void remove(final Entry entry) {
+
+            pending -= entry.events;
+            if(entry.id != null) {
+                schemaEvents.computeIfPresent(entry.schema.getQualifiedName(), (k, v) -> v == entry.events ? null : v - entry.events);
+            }
+        }
+
+        // Called holding lock
+
+        private Instant oldest() {
+
+            return batches.stream().map(batch -> batch.oldest).filter(Objects::nonNull)
+                    .min(Comparator.naturalOrder()).orElse(null);
+        }
+
+        private void schedule() {
+
+            final Batch next;
+            final Set<Name> catchUp = new HashSet<>();
+            synchronized (lock) {
+                if(busy || batches.isEmpty()) {
+                    return;
+                }
+                schemaEvents.forEach((schema, count) -> {
+                    if(count > catchUpThreshold && !unscannable.contains(schema)) {
+                        catchUp.add(schema);
+                    }
+                });
+                if(catchUp.isEmpty()) {
+                    final Batch first = batches.getFirst();
+                    if(!first.sealed) {
+                        if(timer == null) {
+                            timer = scheduler.schedule(this::seal, window.toMillis(), TimeUnit.MILLISECONDS);
+                        }
+                        return;
+                    }
+                    next = batches.removeFirst();
+                    next.entries.values().forEach(this::remove);
+                } else {
+                    next = null;
+                }
+                busy = true;
+            }
+            final CompletableFuture<?> future;
+            if(next != null) {
+                batchSizes.record(next.events);
+                future = apply(next.entries.values());
+            } else {
+                future = catchUp(catchUp);
+            }
+            future.whenComplete((ignored, error) -> {
+                synchronized (lock) {
+                    busy = false;
+                }
+                schedule();
+            });
+        }
+
+        private void seal() {
+
+            synchronized (lock) {
+                timer = null;
+                final Batch first = batches.peekFirst();
+                if(first != null) {
+                    first.sealed = true;
+                }
+            }
+            schedule();
+        }
+
+        private CompletableFuture<?> apply(final Collection<Entry> entries) {
+
+            return write(entries).handle((ignored, error) -> {
+                if(error == null || entries.size() == 1) {
+                    entries.forEach(entry -> entry.complete(error));
+                    return CompletableFuture.completedFuture(null);
+                } else {
+                    log.warn("Replica batch of {} failed, applying individually ({})", entries.size(), error.getMessage());
+                    return CompletableFuture.allOf(entries.stream()
+                            .map(entry -> apply(Collections.singletonList(entry)))
+                            .toArray(CompletableFuture<?>[]::new));
+                }
+            }).thenCompose(future -> future);
+        }
+
+        // Write the objects that the replica is behind on, using one read and one write transaction
+
+        private CompletableFuture<?> write(final Collection<Entry> entries) {
+
+            final Storage replica = key.getReplica();
+            Storage.ReadTransaction read = replica.read(Consistency.ATOMIC);
+            for(final Entry entry : entries) {
+                if(entry.id != null) {
+                    read = read.get((ObjectSchema)entry.schema, entry.id, Collections.emptySet());
+                }
+            }
+            return read.read().thenCompose(current -> {
+                Storage.WriteTransaction write = replica.write(key.getConsistency(), key.getVersioning());
+                boolean changed = false;
+                for(final Entry entry : entries) {
+                    final Storage.WriteTransaction next = write(write, current, entry);
+                    changed |= next != null;
+                    write = next == null ? write : next;
+                }
+                return changed ? write.write() : CompletableFuture.completedFuture(null);
+            });
+        }
+
+        // Returns null if the replica is already up to date
+
+        private Storage.WriteTransaction write(final Storage.WriteTransaction write, final BatchResponse current, final Entry entry) {
+
+            if(entry.id == null) {
+                return write.write(entry.schema, entry.after);
+            }
+            final ObjectSchema schema = (ObjectSchema)entry.schema;
+            final Map<String, Object> before = current.get(schema.getQualifiedName(), entry.id);
+            if(entry.after == null) {
+                if(before == null) {
+                    return null;
+                }
+                final Long replicaVersion = Instance.getVersion(before);
+                if(entry.beforeVersion != null && replicaVersion != null && !entry.beforeVersion.equals(replicaVersion)) {
+                    // Replica holds a different (e.g. recreated) object than the one deleted
+                    return null;
+                }
+                return write.deleteObject(schema, entry.id, before);
+            } else if(before == null) {
+                return write.createObject(schema, entry.id, entry.after);
+            } else {
+                final Long beforeVersion = Instance.getVersion(before);
+                final Long afterVersion = Instance.getVersion(entry.after);
+                if(beforeVersion != null && afterVersion != null && beforeVersion >= afterVersion) {
+                    return null;
+                }
+                return write.updateObject(schema, entry.id, before, entry.after);
+            }
+        }
+
+        private CompletableFuture<?> catchUp(final Set<Name> schemas) {
+
+            final List<Entry> covered = new ArrayList<>();
+            final CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+                final Map<Name, LinkableSchema> resolved = new HashMap<>();
+                synchronized (lock) {
+                    batches.forEach(batch -> batch.entries.values().forEach(entry -> {
+                        if(entry.id != null && schemas.contains(entry.schema.getQualifiedName())) {
+                            resolved.put(entry.schema.getQualifiedName(), entry.schema);
+                        }
+                    }));
+                }
+                // Open the scans before dropping anything, so a primary that cannot scan keeps its events
+                final Map<Name, Scan> scans = new HashMap<>();
+                resolved.values().forEach(schema -> {
+                    try {
+                        scans.put(schema.getQualifiedName(), primary.apply(schema).scan((ObjectSchema)schema, Constant.TRUE, CATCH_UP_SEGMENTS));
+                    } catch (final UnsupportedOperationException e) {
+                        log.warn("Replica lag exceeded {} events for {}, but primary cannot scan, applying events in batches",
+                                catchUpThreshold, schema.getQualifiedName());
+                        unscannable.add(schema.getQualifiedName());
+                    }
+                });
+                if(scans.isEmpty()) {
+                    return;
+                }
+                synchronized (lock) {
+                    for(final Batch batch : batches) {
+                        batch.entries.values().removeIf(entry -> {
+                            if(entry.id != null && scans.containsKey(entry.schema.getQualifiedName())) {
+                                covered.add(entry);
+                                batch.events -= entry.events;
+                                remove(entry);
+                                return true;
+                            }
+                            return false;
+                        });
+                    }
+                    batches.removeIf(batch -> batch.entries.isEmpty());
+                }
+                log.info("Replica lag exceeded {} events for {}, copying from primary", catchUpThreshold, scans.keySet());
+                scans.forEach((name, scan) -> copy(resolved.get(name), scan));
+                // A scan cannot show deletes, so delete whatever is still missing from the primary
+                deletes(covered).forEach((schema, entries) -> deleteMissing(schema, entries).join());
+            }, catchUpExecutor);
+            return future.whenComplete((ignored, error) -> covered.forEach(entry -> entry.complete(error)));
+        }
+
+        // Reading runs ahead of the replica writes by at most one batch (plus the scan executor's prefetch)
+
+        private void copy(final LinkableSchema schema, final Scan scan) {
+
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            scanExecutor.publish(scan).subscribe(new Subscriber<Map<String, Object>>() {
+
+                private final List<Entry> entries = new ArrayList<>();
+
+                private Subscription subscription;
+
+                private CompletableFuture<?> pending = CompletableFuture.completedFuture(null);
+
+                @Override
+                public void onSubscribe(final Subscription subscription) {
+
+                    this.subscription = subscription;
+                    subscription.request(batchSize);
+                }
+
+                @Override
+                public void onNext(final Map<String, Object> object) {
+
+                    entries.add(new Entry(schema, Instance.getId(object), object, null));
+                    if(entries.size() == batchSize) {
+                        pending = flush();
+                        pending.whenComplete((ignored, error) -> {
+                            if(error != null) {
+                                subscription.cancel();
+                                done.completeExceptionally(error);
+                            } else {
+                                subscription.request(batchSize);
+                            }
+                        });
+                    }
+                }
+
+                @Override
+                public void onError(final Throwable error) {
+
+                    done.completeExceptionally(error);
+                }
+
+                @Override
+                public void onComplete() {
+
+                    pending.thenCompose(ignored -> flush()).whenComplete((ignored, error) -> {
+                        if(error != null) {
+                            done.completeExceptionally(error);
+                        } else {
+                            done.complete(null);
+                        }
+                    });
+                }
+
+                private CompletableFuture<?> flush() {
+
+                    if(entries.isEmpty()) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    final List<Entry> batch = new ArrayList<>(entries);
+                    entries.clear();
+                    return write(batch);
+                }
+            });
+            done.join();
+        }
+
+        private Map<LinkableSchema, List<Entry>> deletes(final List<Entry> entries) {
+
+            final Map<LinkableSchema, List<Entry>> deletes = new HashMap<>();
+            entries.stream().filter(entry -> entry.after == null)
+                    .forEach(entry -> deletes.computeIfAbsent(entry.schema, ignored -> new ArrayList<>()).add(entry));
+            return deletes;
+        }
+
+        private CompletableFuture<?> deleteMissing(final LinkableSchema schema, final List<Entry> entries) {
+
+            Storage.ReadTransaction read = primary.apply(schema).read(Consistency.ATOMIC);
+            for(final Entry entry : entries) {
+                read = read.get((ObjectSchema)schema, entry.id, Collections.emptySet());
+            }
+            return read.read().thenCompose(current -> {
+                final List<Entry> missing = new ArrayList<>();
+                entries.forEach(entry -> {
+                    if(current.get(schema.getQualifiedName(), entry.id) == null) {
+                        // Missing from the primary, so whatever the replica holds is stale
+                        missing.add(new Entry(schema, entry.id, null, null));
+                    }
+                });
+                return missing.isEmpty() ? CompletableFuture.completedFuture(null) : write(missing);
+            });
+        }
+    }
+
+    // Time the primary was written, where the event carries it
+
+    private static Instant eventTime(final ReplicaSyncEvent event) {
+
+        final Instant updated = event.getAfter() == null ? null : Instance.getUpdated(event.getAfter());
+        return updated != null ? updated : Instant.now();
+    }
+}
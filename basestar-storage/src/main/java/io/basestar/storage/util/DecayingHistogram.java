@@ -0,0 +1,113 @@
+package io.basestar.storage.util;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.time.Duration;
+import java.util.OptionalLong;
+
+/**
+ * Latency histogram with exponentially decaying weights, so quantiles track recent behaviour.
+ *
+ * Buckets grow by a factor of sqrt(2) from 100us, so quantiles are accurate to within about 40%, which is enough to
+ * compare backends and choose timeouts.
+ */
+
+public class DecayingHistogram {
+
+    public static final Duration DEFAULT_HALF_LIFE = Duration.ofSeconds(30);
+
+    private static final long MIN_NANOS = 100_000;
+
+    private static final int BUCKETS = 48;
+
+    private static final double GROWTH = Math.sqrt(2);
+
+    private final double halfLifeNanos;
+
+    private final double[] weights = new double[BUCKETS];
+
+    private double total;
+
+    private long last;
+
+    public DecayingHistogram() {
+
+        this(DEFAULT_HALF_LIFE);
+    }
+
+    public DecayingHistogram(final Duration halfLife) {
+
+        this.halfLifeNanos = halfLife.toNanos();
+    }
+
+    public void record(final long nanos) {
+
+        record(nanos, System.nanoTime());
+    }
+
+    synchronized void record(final long nanos, final long now) {
+
+        if(total > 0) {
+            final double factor = Math.pow(0.5, Math.max(0, now - last) / halfLifeNanos);
+            for(int i = 0; i != BUCKETS; ++i) {
+                weights[i] *= factor;
+            }
+            total *= factor;
+        }
+        last = now;
+        weights[bucket(nanos)] += 1;
+        total += 1;
+    }
+
+    /**
+     * Upper bound of the bucket containing the quantile, or empty if nothing has been recorded.
+     */
+
+    public synchronized OptionalLong quantile(final double q) {
+
+        if(total <= 0) {
+            return OptionalLong.empty();
+        }
+        final double target = total * q;
+        double sum = 0;
+        for(int i = 0; i != BUCKETS; ++i) {
+            sum += weights[i];
+            if(sum >= target) {
+                return OptionalLong.of(upper(i));
+            }
+        }
+        return OptionalLong.of(upper(BUCKETS - 1));
+    }
+
+    private static int bucket(final long nanos) {
+
+        if(nanos <= MIN_NANOS) {
+            return 0;
+        }
+        final int bucket = 1 + (int)(Math.log((double)nanos / MIN_NANOS) / Math.log(GROWTH));
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    private static long upper(final int bucket) {
+
+        return (long)(MIN_NANOS * Math.pow(GROWTH, bucket));
+    }
+}
@@ -0,0 +1,187 @@
+package io.basestar.storage.util;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.util.Page;
+import io.basestar.util.Pager;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes every result of a pager, reading the next page only once the previous page has been delivered and more
+ * rows have been requested. The continuation token is kept in memory between pages.
+ */
+
+public class PagerPublisher<T> implements Publisher<T> {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final Pager<T> pager;
+
+    private final int pageSize;
+
+    public PagerPublisher(final Pager<T> pager) {
+
+        this(pager, DEFAULT_PAGE_SIZE);
+    }
+
+    public PagerPublisher(final Pager<T> pager, final int pageSize) {
+
+        this.pager = pager;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public void subscribe(final Subscriber<? super T> subscriber) {
+
+        final Run run = new Run(subscriber);
+        subscriber.onSubscribe(run);
+    }
+
+    private class Run implements Subscription {
+
+        private final Subscriber<? super T> subscriber;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        private volatile Page<T> arrived;
+
+        private volatile Throwable error;
+
+        // Only accessed from drain
+
+        private final Deque<T> buffer = new ArrayDeque<>();
+
+        private Page.Token token;
+
+        private boolean fetching;
+
+        private boolean exhausted;
+
+        private boolean done;
+
+        public Run(final Subscriber<? super T> subscriber) {
+
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+
+            if(n <= 0) {
+                error = new IllegalArgumentException("Request must be positive (was " + n + ")");
+            } else {
+                requested.getAndUpdate(current -> {
+                    final long sum = current + n;
+                    return sum < 0 ? Long.MAX_VALUE : sum;
+                });
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+
+            cancelled = true;
+        }
+
+        // Serialized signalling, a page completing synchronously is picked up by the loop rather than by recursion
+
+        private void drain() {
+
+            if(wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if(done) {
+                    return;
+                }
+                final Page<T> page = arrived;
+                if(page != null) {
+                    arrived = null;
+                    buffer.addAll(page.getItems());
+                    token = page.getPaging();
+                    exhausted = token == null;
+                    fetching = false;
+                }
+                final long limit = requested.get();
+                long emitted = 0;
+                while(emitted != limit && !buffer.isEmpty()) {
+                    if(terminated()) {
+                        return;
+                    }
+                    subscriber.onNext(buffer.poll());
+                    ++emitted;
+                }
+                if(terminated()) {
+                    return;
+                }
+                if(emitted != 0 && limit != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if(buffer.isEmpty()) {
+                    if(exhausted) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    } else if(!fetching && requested.get() > 0) {
+                        fetching = true;
+                        pager.page(token, pageSize).whenComplete((result, e) -> {
+                            if(e != null) {
+                                error = e;
+                            } else {
+                                arrived = result;
+                            }
+                            drain();
+                        });
+                        continue;
+                    }
+                }
+                missed = wip.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private boolean terminated() {
+
+            final Throwable e = error;
+            if(e != null) {
+                done = true;
+                subscriber.onError(e);
+                return true;
+            } else if(cancelled) {
+                done = true;
+                return true;
+            }
+            return false;
+        }
+    }
+}
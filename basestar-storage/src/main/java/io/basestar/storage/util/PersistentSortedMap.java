@@ -0,0 +1,359 @@
+package io.basestar.storage.util;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable sorted map (AVL tree) with structural sharing, put/remove cost O(log n) and return a new map,
+ * existing instances are never modified so they can be read without locking.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+
+public final class PersistentSortedMap<K, V> {
+
+    private final Comparator<? super K> comparator;
+
+    private final Node<K, V> root;
+
+    private PersistentSortedMap(final Comparator<? super K> comparator, final Node<K, V> root) {
+
+        this.comparator = comparator;
+        this.root = root;
+    }
+
+    public static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty() {
+
+        return new PersistentSortedMap<>(Comparator.naturalOrder(), null);
+    }
+
+    public static <K, V> PersistentSortedMap<K, V> empty(final Comparator<? super K> comparator) {
+
+        return new PersistentSortedMap<>(comparator, null);
+    }
+
+    public int size() {
+
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+
+        return root == null;
+    }
+
+    public V get(final K key) {
+
+        Node<K, V> node = root;
+        while (node != null) {
+            final int cmp = comparator.compare(key, node.key);
+            if (cmp < 0) {
+                node = node.left;
+            } else if (cmp > 0) {
+                node = node.right;
+            } else {
+                return node.value;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(final K key) {
+
+        Node<K, V> node = root;
+        while (node != null) {
+            final int cmp = comparator.compare(key, node.key);
+            if (cmp < 0) {
+                node = node.left;
+            } else if (cmp > 0) {
+                node = node.right;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public PersistentSortedMap<K, V> put(final K key, final V value) {
+
+        final Node<K, V> result = put(root, key, value);
+        return result == root ? this : new PersistentSortedMap<>(comparator, result);
+    }
+
+    public PersistentSortedMap<K, V> remove(final K key) {
+
+        final Node<K, V> result = remove(root, key);
+        return result == root ? this : new PersistentSortedMap<>(comparator, result);
+    }
+
+    public void forEach(final BiConsumer<? super K, ? super V> consumer) {
+
+        iterator(null, true, null, true, false)
+                .forEachRemaining(e -> consumer.accept(e.getKey(), e.getValue()));
+    }
+
+    public Iterator<Map.Entry<K, V>> iterator() {
+
+        return iterator(null, true, null, true, false);
+    }
+
+    /**
+     * Lazily iterate over a key range, null bounds are unbounded, iteration cost is O(log n) to start and O(1)
+     * amortized per entry.
+     */
+
+    public Iterator<Map.Entry<K, V>> iterator(final K lo, final boolean loInclusive, final K hi, final boolean hiInclusive, final boolean reversed) {
+
+        return new RangeIterator<>(comparator, root, lo, loInclusive, hi, hiInclusive, reversed);
+    }
+
+    /**
+     * Count the keys in a range in O(log n), null bounds are unbounded.
+     */
+
+    public int count(final K lo, final boolean loInclusive, final K hi, final boolean hiInclusive) {
+
+        final int upper = hi == null ? size() : countBelow(hi, hiInclusive);
+        final int lower = lo == null ? 0 : countBelow(lo, !loInclusive);
+        return Math.max(0, upper - lower);
+    }
+
+    private int countBelow(final K key, final boolean inclusive) {
+
+        int result = 0;
+        Node<K, V> node = root;
+        while (node != null) {
+            final int cmp = comparator.compare(key, node.key);
+            if (cmp < 0 || (cmp == 0 && !inclusive)) {
+                node = node.left;
+            } else {
+                result += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return result;
+    }
+
+    private Node<K, V> put(final Node<K, V> node, final K key, final V value) {
+
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        final int cmp = comparator.compare(key, node.key);
+        if (cmp < 0) {
+            final Node<K, V> left = put(node.left, key, value);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        } else if (cmp > 0) {
+            final Node<K, V> right = put(node.right, key, value);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        } else if (node.value == value) {
+            return node;
+        } else {
+            return new Node<>(key, value, node.left, node.right);
+        }
+    }
+
+    private Node<K, V> remove(final Node<K, V> node, final K key) {
+
+        if (node == null) {
+            return null;
+        }
+        final int cmp = comparator.compare(key, node.key);
+        if (cmp < 0) {
+            final Node<K, V> left = remove(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        } else if (cmp > 0) {
+            final Node<K, V> right = remove(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        } else if (node.left == null) {
+            return node.right;
+        } else if (node.right == null) {
+            return node.left;
+        } else {
+            Node<K, V> min = node.right;
+            while (min.left != null) {
+                min = min.left;
+            }
+            return balance(min.key, min.value, node.left, removeMin(node.right));
+        }
+    }
+
+    private static <K, V> Node<K, V> removeMin(final Node<K, V> node) {
+
+        if (node.left == null) {
+            return node.right;
+        } else {
+            return balance(node.key, node.value, removeMin(node.left), node.right);
+        }
+    }
+
+    private static <K, V> Node<K, V> balance(final K key, final V value, final Node<K, V> left, final Node<K, V> right) {
+
+        final int hl = height(left);
+        final int hr = height(right);
+        if (hl > hr + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+            } else {
+                final Node<K, V> lr = left.right;
+                return new Node<>(lr.key, lr.value,
+                        new Node<>(left.key, left.value, left.left, lr.left),
+                        new Node<>(key, value, lr.right, right));
+            }
+        } else if (hr > hl + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+            } else {
+                final Node<K, V> rl = right.left;
+                return new Node<>(rl.key, rl.value,
+                        new Node<>(key, value, left, rl.left),
+                        new Node<>(right.key, right.value, rl.right, right.right));
+            }
+        } else {
+            return new Node<>(key, value, left, right);
+        }
+    }
+
+    private static int height(final Node<?, ?> node) {
+
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(final Node<?, ?> node) {
+
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node<K, V> implements Map.Entry<K, V> {
+
+        private final K key;
+
+        private final V value;
+
+        private final Node<K, V> left;
+
+        private final Node<K, V> right;
+
+        private final int height;
+
+        private final int size;
+
+        private Node(final K key, final V value, final Node<K, V> left, final Node<K, V> right) {
+
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+
+        @Override
+        public K getKey() {
+
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+
+            return value;
+        }
+
+        @Override
+        public V setValue(final V value) {
+
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class RangeIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        private final Comparator<? super K> comparator;
+
+        private final Deque<Node<K, V>> stack = new ArrayDeque<>();
+
+        private final K end;
+
+        private final boolean endInclusive;
+
+        private final boolean reversed;
+
+        private RangeIterator(final Comparator<? super K> comparator, final Node<K, V> root,
+                              final K lo, final boolean loInclusive, final K hi, final boolean hiInclusive, final boolean reversed) {
+
+            this.comparator = comparator;
+            this.reversed = reversed;
+            this.end = reversed ? lo : hi;
+            this.endInclusive = reversed ? loInclusive : hiInclusive;
+            final K start = reversed ? hi : lo;
+            final boolean startInclusive = reversed ? hiInclusive : loInclusive;
+            Node<K, V> node = root;
+            while (node != null) {
+                if (start == null || afterStart(node.key, start, startInclusive)) {
+                    stack.push(node);
+                    node = reversed ? node.right : node.left;
+                } else {
+                    node = reversed ? node.left : node.right;
+                }
+            }
+        }
+
+        private boolean afterStart(final K key, final K start, final boolean inclusive) {
+
+            final int cmp = reversed ? comparator.compare(start, key) : comparator.compare(key, start);
+            return cmp > 0 || (inclusive && cmp == 0);
+        }
+
+        private boolean beforeEnd(final K key) {
+
+            if (end == null) {
+                return true;
+            }
+            final int cmp = reversed ? comparator.compare(end, key) : comparator.compare(key, end);
+            return cmp < 0 || (endInclusive && cmp == 0);
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return !stack.isEmpty() && beforeEnd(stack.peek().key);
+        }
+
+        @Override
+        public Map.Entry<K, V> next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Node<K, V> result = stack.pop();
+            Node<K, V> node = reversed ? result.left : result.right;
+            while (node != null) {
+                stack.push(node);
+                node = reversed ? node.right : node.left;
+            }
+            return result;
+        }
+    }
+}
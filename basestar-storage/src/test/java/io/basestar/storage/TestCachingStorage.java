@@ -0,0 +1,233 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.Namespace;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.schema.ReferableSchema;
+import io.basestar.util.Name;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestCachingStorage extends TestStorage {
+
+    @Override
+    protected Storage storage(final Namespace namespace) {
+
+        return CachingStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .build();
+    }
+
+    @Test
+    void testCachedReadsAndInvalidation() {
+
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final AtomicInteger reads = new AtomicInteger();
+        final Storage counting = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                reads.incrementAndGet();
+                return memory.read(consistency);
+            }
+        };
+
+        final Storage storage = CachingStorage.builder()
+                .setStorage(counting)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final String id = UUID.randomUUID().toString();
+        final Map<String, Object> v1 = instance(schema, id, 1L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, id, v1)
+                .writeHistory(schema, id, v1)
+                .write().join();
+
+        // Eventual latest reads and history reads are served from cache after the first read
+
+        assertNotNull(storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet()).join());
+        assertNotNull(storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet()).join());
+        assertNotNull(storage.getVersion(Consistency.ATOMIC, schema, id, 1L, Collections.emptySet()).join());
+        assertNotNull(storage.getVersion(Consistency.ATOMIC, schema, id, 1L, Collections.emptySet()).join());
+        assertEquals(2, reads.get());
+
+        // Strong latest reads always go to the backend
+
+        assertNotNull(storage.get(Consistency.ATOMIC, schema, id, Collections.emptySet()).join());
+        assertEquals(3, reads.get());
+
+        // Writes through the cache invalidate the latest entry
+
+        final Map<String, Object> v2 = instance(schema, id, 2L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .updateObject(schema, id, v1, v2)
+                .write().join();
+        assertEquals(2L, Instance.getVersion(storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet()).join()));
+        assertEquals(4, reads.get());
+
+        // Writes that bypass the cache are picked up from the object event hooks
+
+        final Map<String, Object> v3 = instance(schema, id, 3L);
+        memory.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .updateObject(schema, id, v2, v3)
+                .write().join();
+        assertEquals(2L, Instance.getVersion(storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet()).join()));
+        storage.afterUpdate(schema, id, 3L, v2, v3).join();
+        assertEquals(3L, Instance.getVersion(storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet()).join()));
+    }
+
+    @Test
+    void testReadRacingWriteNotCached() {
+
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final CompletableFuture<?> gate = new CompletableFuture<>();
+        final Storage delayed = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                final ReadTransaction delegate = memory.read(consistency);
+                return new ReadTransaction() {
+
+                    @Override
+                    public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                        delegate.get(schema, id, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                        delegate.getVersion(schema, id, version, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> read() {
+
+                        // Results are read before the read returns, so before the write below, but are returned only when the gate opens
+                        final BatchResponse response = delegate.read().join();
+                        return gate.thenApply(ignored -> response);
+                    }
+                };
+            }
+        };
+
+        final Storage storage = CachingStorage.builder()
+                .setStorage(delayed)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final String id = UUID.randomUUID().toString();
+        final Map<String, Object> v1 = instance(schema, id, 1L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, id, v1)
+                .write().join();
+
+        final CompletableFuture<Map<String, Object>> stale = storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet());
+
+        final Map<String, Object> v2 = instance(schema, id, 2L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .updateObject(schema, id, v1, v2)
+                .write().join();
+
+        gate.complete(null);
+        assertEquals(1L, Instance.getVersion(stale.join()));
+        assertEquals(2L, Instance.getVersion(storage.get(Consistency.EVENTUAL, schema, id, Collections.emptySet()).join()));
+    }
+
+    @Test
+    void testExpandedHistoryNotCached() {
+
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final AtomicInteger reads = new AtomicInteger();
+        final Storage counting = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                reads.incrementAndGet();
+                return memory.read(consistency);
+            }
+        };
+
+        final Storage storage = CachingStorage.builder()
+                .setStorage(counting)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final String id = UUID.randomUUID().toString();
+        final Map<String, Object> v1 = instance(schema, id, 1L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, id, v1)
+                .writeHistory(schema, id, v1)
+                .write().join();
+
+        // Referenced objects may change, so expanded history is read every time
+        final Set<Name> expand = Collections.singleton(Name.of("ref"));
+        assertNotNull(storage.getVersion(Consistency.ATOMIC, schema, id, 1L, expand).join());
+        assertNotNull(storage.getVersion(Consistency.ATOMIC, schema, id, 1L, expand).join());
+        assertEquals(2, reads.get());
+    }
+
+    private static Map<String, Object> instance(final ObjectSchema schema, final String id, final long version) {
+
+        final Map<String, Object> instance = new HashMap<>();
+        Instance.setId(instance, id);
+        Instance.setVersion(instance, version);
+        Instance.setSchema(instance, schema.getQualifiedName());
+        return schema.create(instance, schema.getExpand(), false);
+    }
+}
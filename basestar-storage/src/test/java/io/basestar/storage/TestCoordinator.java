@@ -0,0 +1,91 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.storage.exception.LockTimeoutException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestCoordinator {
+
+    @Test
+    void testLocalTimeout() throws Exception {
+
+        final Coordinator coordinator = new Coordinator.Local(16, Duration.ofMillis(50));
+        final CountDownLatch held = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final CompletableFuture<?> holder = CompletableFuture.runAsync(() -> {
+            try(final CloseableLock ignored = coordinator.lock("a")) {
+                held.countDown();
+                done.await();
+            } catch (final InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        held.await();
+
+        final CompletableFuture<?> waiter = CompletableFuture.runAsync(() -> {
+            try(final CloseableLock ignored = coordinator.lock("a", "b")) {
+                fail("lock should not be acquired");
+            }
+        });
+        final Exception e = assertThrows(Exception.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof LockTimeoutException);
+
+        // The partially acquired stripe was released
+        done.countDown();
+        holder.get(5, TimeUnit.SECONDS);
+        try(final CloseableLock ignored = coordinator.lock("a", "b")) {
+            assertNotNull(ignored);
+        }
+    }
+
+    @Test
+    void testLocalSharedStripes() throws Exception {
+
+        // One stripe, every name shares it and overlapping lock sets are serialized without deadlock
+        final Coordinator coordinator = new Coordinator.Local(1, null);
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[8];
+        for(int i = 0; i != futures.length; ++i) {
+            final String a = "key" + i;
+            final String b = "key" + (i + 1) % futures.length;
+            futures[i] = CompletableFuture.runAsync(() -> {
+                for(int j = 0; j != 100; ++j) {
+                    try(final CloseableLock ignored = coordinator.lock(a, b)) {
+                        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                        active.decrementAndGet();
+                    }
+                }
+            });
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+        assertEquals(1, maxActive.get());
+    }
+}
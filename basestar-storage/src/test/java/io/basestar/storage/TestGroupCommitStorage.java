@@ -0,0 +1,226 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Concurrency;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.Namespace;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.schema.ReferableSchema;
+import io.basestar.storage.exception.ObjectExistsException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestGroupCommitStorage extends TestStorage {
+
+    @Override
+    protected Storage storage(final Namespace namespace) {
+
+        return GroupCommitStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .build();
+    }
+
+    @Test
+    void testErrorIsolation() {
+
+        final Storage storage = GroupCommitStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .setWindow(Duration.ofMillis(50))
+                .setMaxBatchSize(100)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+
+        final String existing = UUID.randomUUID().toString();
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, existing, instance(schema, existing, 1L))
+                .write().join();
+
+        final List<String> ids = new ArrayList<>();
+        final List<CompletableFuture<BatchResponse>> futures = new ArrayList<>();
+        for(int i = 0; i != 10; ++i) {
+            final String id = UUID.randomUUID().toString();
+            ids.add(id);
+            futures.add(storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                    .createObject(schema, id, instance(schema, id, 1L))
+                    .write());
+        }
+        final CompletableFuture<BatchResponse> conflict = storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, existing, instance(schema, existing, 1L))
+                .write();
+
+        for(int i = 0; i != ids.size(); ++i) {
+            final BatchResponse response = futures.get(i).join();
+            assertEquals(1, response.getRefs().size());
+            assertNotNull(response.get(schema, ids.get(i)));
+            assertNotNull(storage.get(Consistency.ATOMIC, schema, ids.get(i), Collections.emptySet()).join());
+        }
+        final CompletionException e = assertThrows(CompletionException.class, conflict::join);
+        assertTrue(e.getCause() instanceof ObjectExistsException);
+    }
+
+    @Test
+    void testOnlyAtomicWritesMerged() {
+
+        final CountingStorage counting = new CountingStorage(Integer.MAX_VALUE);
+        final Storage storage = GroupCommitStorage.builder()
+                .setStorage(counting)
+                .setWindow(Duration.ofSeconds(10))
+                .setMaxBatchSize(5)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+
+        // Non-atomic backends may apply part of a failed batch, so checked writes are passed through
+        writeAll(storage, schema, Consistency.EVENTUAL, 5);
+        assertEquals(5, counting.writes.get());
+
+        counting.writes.set(0);
+        writeAll(storage, schema, Consistency.ATOMIC, 5);
+        assertEquals(1, counting.writes.get());
+    }
+
+    @Test
+    void testGroupsCappedAtTransactionSize() {
+
+        final CountingStorage counting = new CountingStorage(2);
+        final Storage storage = GroupCommitStorage.builder()
+                .setStorage(counting)
+                .setWindow(Duration.ofMillis(50))
+                .setMaxBatchSize(100)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+
+        writeAll(storage, schema, Consistency.ATOMIC, 4);
+        assertEquals(2, counting.writes.get());
+    }
+
+    private static void writeAll(final Storage storage, final ObjectSchema schema, final Consistency consistency, final int count) {
+
+        final List<CompletableFuture<BatchResponse>> futures = new ArrayList<>();
+        for(int i = 0; i != count; ++i) {
+            final String id = UUID.randomUUID().toString();
+            futures.add(storage.write(consistency, Versioning.CHECKED)
+                    .createObject(schema, id, instance(schema, id, 1L))
+                    .write());
+        }
+        futures.forEach(CompletableFuture::join);
+    }
+
+    // Counts backend write transactions, and reports the provided transaction size limit
+
+    private static class CountingStorage implements DelegatingStorage {
+
+        private final Storage storage = MemoryStorage.builder().build();
+
+        private final int maxTransactionSize;
+
+        private final AtomicInteger writes = new AtomicInteger();
+
+        CountingStorage(final int maxTransactionSize) {
+
+            this.maxTransactionSize = maxTransactionSize;
+        }
+
+        @Override
+        public Storage storage(final LinkableSchema schema) {
+
+            return storage;
+        }
+
+        @Override
+        public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+            writes.incrementAndGet();
+            return storage.write(consistency, versioning);
+        }
+
+        @Override
+        public StorageTraits storageTraits(final ReferableSchema schema) {
+
+            final StorageTraits traits = storage.storageTraits(schema);
+            return new StorageTraits() {
+
+                @Override
+                public Consistency getHistoryConsistency() {
+
+                    return traits.getHistoryConsistency();
+                }
+
+                @Override
+                public Consistency getSingleValueIndexConsistency() {
+
+                    return traits.getSingleValueIndexConsistency();
+                }
+
+                @Override
+                public Consistency getMultiValueIndexConsistency() {
+
+                    return traits.getMultiValueIndexConsistency();
+                }
+
+                @Override
+                public boolean supportsPolymorphism() {
+
+                    return traits.supportsPolymorphism();
+                }
+
+                @Override
+                public boolean supportsMultiObject() {
+
+                    return traits.supportsMultiObject();
+                }
+
+                @Override
+                public int getMaxTransactionSize() {
+
+                    return maxTransactionSize;
+                }
+
+                @Override
+                public Concurrency getObjectConcurrency() {
+
+                    return traits.getObjectConcurrency();
+                }
+            };
+        }
+    }
+
+    private static Map<String, Object> instance(final ObjectSchema schema, final String id, final long version) {
+
+        final Map<String, Object> instance = new HashMap<>();
+        Instance.setId(instance, id);
+        Instance.setVersion(instance, version);
+        Instance.setSchema(instance, schema.getQualifiedName());
+        return schema.create(instance, schema.getExpand(), false);
+    }
+}
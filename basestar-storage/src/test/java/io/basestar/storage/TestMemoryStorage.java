@@ -20,7 +20,32 @@ package io.basestar.storage;
  * #L%
  */
 
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+import io.basestar.expression.Expression;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Index;
+import io.basestar.schema.Instance;
 import io.basestar.schema.Namespace;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.storage.exception.UnsupportedQueryException;
+import io.basestar.storage.query.Range;
+import io.basestar.storage.query.RangeVisitor;
+import io.basestar.util.ISO8601;
+import io.basestar.util.Name;
+import io.basestar.util.Page;
+import io.basestar.util.Pager;
+import io.basestar.util.Sort;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 class TestMemoryStorage extends TestStorage {
 
@@ -29,4 +54,312 @@ class TestMemoryStorage extends TestStorage {
 
         return MemoryStorage.builder().build();
     }
+
+    @Test
+    void testReversedKeysetPaging() {
+
+        final Instant now = ISO8601.now();
+        final String country = UUID.randomUUID().toString();
+        final Multimap<String, Map<String, Object>> init = HashMultimap.create();
+        final List<String> expected = new ArrayList<>();
+        for(int i = 0; i != 25; ++i) {
+            final String id = String.format("%02d", i);
+            final Map<String, Object> data = new HashMap<>();
+            data.put("country", country);
+            data.put("city", "city" + id);
+            data.put("zip", "zip" + id);
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            Instance.setCreated(data, now);
+            Instance.setUpdated(data, now);
+            init.put(ADDRESS, data);
+            expected.add(0, id);
+        }
+
+        final Storage storage = storage(namespace);
+        bulkLoad(storage, init);
+
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final List<Sort> sort = ImmutableList.of(Sort.desc(Name.of("city")), Sort.desc(Name.of("zip")));
+        final Pager<Map<String, Object>> pager = storage.query(Consistency.ATOMIC, schema, Expression.parse("country == '" + country + "'"), sort, Collections.emptySet());
+
+        final List<String> actual = new ArrayList<>();
+        Page.Token token = null;
+        int pages = 0;
+        do {
+            final Page<Map<String, Object>> page = pager.page(EnumSet.of(Page.Stat.TOTAL), token, 10).join();
+            if(token == null) {
+                assertEquals(25, page.getStats().getTotal());
+            }
+            page.forEach(v -> actual.add(Instance.getId(v)));
+            token = page.getPaging();
+            ++pages;
+        } while(token != null);
+
+        assertEquals(expected, actual);
+        assertEquals(3, pages);
+        assertNull(token);
+    }
+
+    @Test
+    void testCostBasedIndexSelection() {
+
+        final Instant now = ISO8601.now();
+        final String country = UUID.randomUUID().toString();
+        final String state = UUID.randomUUID().toString();
+        final Multimap<String, Map<String, Object>> init = HashMultimap.create();
+        for(int i = 0; i != 20; ++i) {
+            final String id = UUID.randomUUID().toString();
+            final Map<String, Object> data = new HashMap<>();
+            data.put("country", country);
+            data.put("state", i < 2 ? state : UUID.randomUUID().toString());
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            Instance.setCreated(data, now);
+            Instance.setUpdated(data, now);
+            init.put(ADDRESS, data);
+        }
+
+        final MemoryStorage storage = MemoryStorage.builder().build();
+        bulkLoad(storage, init);
+
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final Expression expression = Expression.parse("country == '" + country + "' && state == '" + state + "'");
+        final Map<Name, Range<Object>> ranges = expression.visit(new RangeVisitor());
+
+        // Both indexes match one partition component, only statistics can tell them apart
+
+        assertEquals("Country", DefaultIndexStorage.satisfy(schema.getIndexes().values(), ranges, ImmutableList.of())
+                .get().getIndex().getName());
+        assertEquals("State", DefaultIndexStorage.satisfy(schema.getQualifiedName(), schema.getIndexes().values(), ranges, ImmutableList.of(), storage.indexStatistics())
+                .get().getIndex().getName());
+        assertEquals(20, storage.indexStatistics().getTotal(schema.getQualifiedName(), schema.requireIndex("Country", true)));
+
+        final List<Sort> sort = ImmutableList.of(Sort.asc(Name.of(ObjectSchema.ID)));
+        final Page<Map<String, Object>> planned = storage.queryObject(Consistency.ATOMIC, schema, expression, sort, Collections.emptySet()).page(50).join();
+        assertEquals(2, planned.size());
+        assertTrue(planned.stream().allMatch(v -> state.equals(v.get("state"))));
+
+        // Forcing the index scans the whole country partition (residual filtering happens above storage)
+
+        final Page<Map<String, Object>> forced = storage.queryObject(Consistency.ATOMIC, schema, expression, sort, Collections.emptySet(), "Country").page(50).join();
+        assertEquals(20, forced.size());
+    }
+
+    @Test
+    void testUntrackedPartitionEstimate() {
+
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final Index index = schema.requireIndex("Country", true);
+        final IndexStatistics statistics = new IndexStatistics(2);
+        for(int i = 0; i != 10; ++i) {
+            statistics.record(schema.getQualifiedName(), index, Index.Key.of(ImmutableList.of(i < 6 ? "a" : "b"), ImmutableList.of()), 1);
+        }
+        assertEquals(OptionalLong.of(0), statistics.estimate(schema.getQualifiedName(), index, ImmutableList.of("c")));
+        for(int i = 0; i != 90; ++i) {
+            statistics.record(schema.getQualifiedName(), index, Index.Key.of(ImmutableList.of("c" + i), ImmutableList.of()), 1);
+        }
+
+        // Untracked partitions are estimated from the two tracked partitions, not spread over the partition limit
+
+        assertEquals(2, statistics.getPartitions(schema.getQualifiedName(), index));
+        assertEquals(100, statistics.getTotal(schema.getQualifiedName(), index));
+        assertEquals(OptionalLong.of(6), statistics.estimate(schema.getQualifiedName(), index, ImmutableList.of("a")));
+        assertEquals(OptionalLong.of(5), statistics.estimate(schema.getQualifiedName(), index, ImmutableList.of("c0")));
+    }
+
+    @Test
+    void testBatchedIdQuery() {
+
+        final Instant now = ISO8601.now();
+        final Multimap<String, Map<String, Object>> init = HashMultimap.create();
+        final List<String> ids = new ArrayList<>();
+        for(int i = 0; i != 30; ++i) {
+            final String id = UUID.randomUUID().toString();
+            final Map<String, Object> data = new HashMap<>();
+            data.put("country", "GB");
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            Instance.setCreated(data, now);
+            Instance.setUpdated(data, now);
+            init.put(ADDRESS, data);
+            ids.add(id);
+        }
+
+        final Storage storage = storage(namespace);
+        bulkLoad(storage, init);
+
+        // Half by IN, half by OR, plus ids that don't exist
+        final StringBuilder expr = new StringBuilder("id IN [");
+        for(int i = 0; i != 15; ++i) {
+            expr.append(i == 0 ? "" : ", ").append("'").append(ids.get(i)).append("'");
+        }
+        expr.append(", 'missing1']");
+        for(int i = 15; i != 30; ++i) {
+            expr.append(" || id == '").append(ids.get(i)).append("'");
+        }
+        expr.append(" || id == 'missing2'");
+
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final List<Sort> sort = ImmutableList.of(Sort.desc(ObjectSchema.ID_NAME));
+        final Pager<Map<String, Object>> pager = storage.query(Consistency.ATOMIC, schema, Expression.parse(expr.toString()), sort, Collections.emptySet());
+
+        final List<String> actual = new ArrayList<>();
+        Page.Token token = null;
+        do {
+            final Page<Map<String, Object>> page = pager.page(token, 7).join();
+            page.forEach(v -> actual.add(Instance.getId(v)));
+            token = page.getPaging();
+        } while(token != null);
+
+        final List<String> expected = new ArrayList<>(ids);
+        expected.sort(Comparator.reverseOrder());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void testIndexBackfill() {
+
+        final Instant now = ISO8601.now();
+        final String state = UUID.randomUUID().toString();
+        final Multimap<String, Map<String, Object>> init = HashMultimap.create();
+        for(int i = 0; i != 30; ++i) {
+            final String id = UUID.randomUUID().toString();
+            final Map<String, Object> data = new HashMap<>();
+            data.put("state", state);
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            Instance.setCreated(data, now);
+            Instance.setUpdated(data, now);
+            init.put(ADDRESS, data);
+        }
+
+        final MemoryStorage storage = MemoryStorage.builder().build();
+        bulkLoad(storage, init);
+
+        // Remove the index records, as if the index had just been added
+
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final Index index = schema.requireIndex("State", true);
+        final DefaultIndexStorage.WriteTransaction wipe = storage.write(Consistency.ATOMIC, Versioning.UNCHECKED);
+        init.get(ADDRESS).forEach(data -> wipe.deleteIndexes(schema, ImmutableList.of(index), Instance.getId(data), data));
+        wipe.write().join();
+
+        final Expression expression = Expression.parse("state == '" + state + "'");
+        final List<Sort> sort = ImmutableList.of(Sort.asc(ObjectSchema.ID_NAME));
+        assertEquals(0, storage.query(Consistency.ATOMIC, schema, expression, sort, Collections.emptySet()).page(50).join().size());
+
+        // First attempt fails after one batch, the index stays unqueryable
+
+        final IndexBackfill.Checkpoints checkpoints = IndexBackfill.Checkpoints.memory();
+        final CompletableFuture<IndexBackfill.Progress> failed = IndexBackfill.builder()
+                .setStorage(storage).setSchema(schema).setIndexes(ImmutableList.of(index))
+                .setBatchSize(10).setCheckpoints(checkpoints)
+                .setListener(progress -> {
+                    throw new IllegalStateException();
+                })
+                .build().run();
+        assertThrows(CompletionException.class, failed::join);
+        assertEquals(new IndexBackfill.Checkpoint(10, false), checkpoints.load(0));
+        assertTrue(storage.indexBuilds().isBuilding(schema.getQualifiedName(), index));
+        assertThrows(UnsupportedQueryException.class, () -> storage.query(Consistency.ATOMIC, schema, expression, sort, Collections.emptySet()));
+
+        // Resuming processes the remaining rows only
+
+        final List<IndexBackfill.Progress> reported = new ArrayList<>();
+        final IndexBackfill.Progress progress = IndexBackfill.builder()
+                .setStorage(storage).setSchema(schema).setIndexes(ImmutableList.of(index))
+                .setBatchSize(10).setCheckpoints(checkpoints).setRate(1000)
+                .setListener(reported::add)
+                .build().run().join();
+        assertTrue(progress.isComplete());
+        assertEquals(20, progress.getScanned());
+        assertEquals(20, progress.getWritten());
+        assertEquals(3, reported.size());
+        assertTrue(checkpoints.load(0).isComplete());
+
+        assertFalse(storage.indexBuilds().isBuilding(schema.getQualifiedName(), index));
+        assertEquals(30, storage.query(Consistency.ATOMIC, schema, expression, sort, Collections.emptySet()).page(50).join().size());
+    }
+
+    @Test
+    void testFailedWriteNotCounted() {
+
+        final MemoryStorage storage = MemoryStorage.builder().build();
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final Index index = schema.requireIndex("State", true);
+
+        final Instant now = ISO8601.now();
+        final String id = UUID.randomUUID().toString();
+        final Map<String, Object> data = new HashMap<>();
+        data.put("country", UUID.randomUUID().toString());
+        data.put("state", UUID.randomUUID().toString());
+        Instance.setId(data, id);
+        Instance.setVersion(data, 1L);
+        Instance.setCreated(data, now);
+        Instance.setUpdated(data, now);
+        final Map<String, Object> instance = schema.create(data);
+
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, id, instance).write().join();
+        assertEquals(1, storage.indexStatistics().getTotal(schema.getQualifiedName(), index));
+
+        assertThrows(CompletionException.class, () -> storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, id, instance).write().join());
+        assertEquals(1, storage.indexStatistics().getTotal(schema.getQualifiedName(), index));
+    }
+
+    @Test
+    void testIndexBackfillStatistics() {
+
+        final Instant now = ISO8601.now();
+        final String state = UUID.randomUUID().toString();
+        final Multimap<String, Map<String, Object>> init = HashMultimap.create();
+        for(int i = 0; i != 30; ++i) {
+            final String id = UUID.randomUUID().toString();
+            final Map<String, Object> data = new HashMap<>();
+            data.put("state", state);
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            Instance.setCreated(data, now);
+            Instance.setUpdated(data, now);
+            init.put(ADDRESS, data);
+        }
+
+        final MemoryStorage storage = MemoryStorage.builder().build();
+        bulkLoad(storage, init);
+
+        final ObjectSchema schema = namespace.requireObjectSchema(ADDRESS);
+        final Index index = schema.requireIndex("State", true);
+
+        // Records are overwritten by a second backfill, so statistics must not count them twice
+
+        for(int run = 0; run != 2; ++run) {
+            IndexBackfill.builder()
+                    .setStorage(storage).setSchema(schema).setIndexes(ImmutableList.of(index))
+                    .setBatchSize(10)
+                    .build().run().join();
+            assertEquals(30, storage.indexStatistics().getTotal(schema.getQualifiedName(), index));
+        }
+
+        // A row created after the scan opened is not counted by the backfill, but is kept from the concurrent write
+
+        final AtomicBoolean created = new AtomicBoolean();
+        IndexBackfill.builder()
+                .setStorage(storage).setSchema(schema).setIndexes(ImmutableList.of(index))
+                .setBatchSize(10)
+                .setListener(progress -> {
+                    if(created.compareAndSet(false, true)) {
+                        final String id = UUID.randomUUID().toString();
+                        final Map<String, Object> data = new HashMap<>();
+                        data.put("state", state);
+                        Instance.setId(data, id);
+                        Instance.setVersion(data, 1L);
+                        Instance.setCreated(data, now);
+                        Instance.setUpdated(data, now);
+                        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, id, schema.create(data)).write().join();
+                    }
+                })
+                .build().run().join();
+        assertEquals(31, storage.indexStatistics().getTotal(schema.getQualifiedName(), index));
+    }
 }
@@ -0,0 +1,143 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.expression.Expression;
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.schema.Namespace;
+import io.basestar.schema.ObjectSchema;
+import io.basestar.storage.exception.ObjectExistsException;
+import io.basestar.util.Page;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestMeteredStorage extends TestStorage {
+
+    @Override
+    protected Storage storage(final Namespace namespace) {
+
+        return MeteredStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .setRegistry(new SimpleMeterRegistry())
+                .build();
+    }
+
+    @Test
+    void testMetrics() {
+
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final Storage storage = MeteredStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .setName("memory")
+                .setRegistry(registry)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final String schemaName = schema.getQualifiedName().toString();
+        final Map<String, Object> data = new HashMap<>();
+        Instance.setId(data, "a");
+        Instance.setVersion(data, 1L);
+        final Map<String, Object> instance = schema.create(data);
+
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", instance).write().join();
+        final CompletionException conflict = assertThrows(CompletionException.class, () -> storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .createObject(schema, "a", instance).write().join());
+        assertTrue(conflict.getCause() instanceof ObjectExistsException);
+
+        assertNotNull(storage.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join());
+        final Page<Map<String, Object>> page = storage.query(Consistency.ATOMIC, schema, Expression.parse("id == 'a'"), Collections.emptyList(), Collections.emptySet())
+                .page(null, 10).join();
+        assertEquals(1, page.size());
+
+        assertEquals(2, registry.get("storage.latency").tags("storage", "memory", "operation", "write", "schema", schemaName).timer().count());
+        assertEquals(1, registry.get("storage.conflicts").tags("operation", "write").counter().count());
+        assertEquals(1, registry.get("storage.latency").tags("operation", "read", "consistency", "ATOMIC").timer().count());
+        assertEquals(1.0, registry.get("storage.batch.size").tags("operation", "read").summary().totalAmount());
+        assertEquals(1.0, registry.get("storage.page.size").tags("operation", "query", "schema", schemaName).summary().totalAmount());
+        assertTrue(registry.find("storage.errors").counters().isEmpty());
+    }
+
+    @Test
+    void testStreamMetrics() {
+
+        final MeterRegistry registry = new SimpleMeterRegistry();
+        final Storage storage = MeteredStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .setRegistry(registry)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final String schemaName = schema.getQualifiedName().toString();
+        final Map<String, Object> data = new HashMap<>();
+        Instance.setId(data, "a");
+        Instance.setVersion(data, 1L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", schema.create(data)).write().join();
+
+        final List<Map<String, Object>> results = new ArrayList<>();
+        final CompletableFuture<?> done = new CompletableFuture<>();
+        storage.queryStream(Consistency.ATOMIC, schema, Expression.parse("id == 'a'"), Collections.emptyList(), Collections.emptySet())
+                .subscribe(new Subscriber<Map<String, Object>>() {
+
+                    @Override
+                    public void onSubscribe(final Subscription subscription) {
+
+                        subscription.request(Long.MAX_VALUE);
+                    }
+
+                    @Override
+                    public void onNext(final Map<String, Object> object) {
+
+                        results.add(object);
+                    }
+
+                    @Override
+                    public void onError(final Throwable error) {
+
+                        done.completeExceptionally(error);
+                    }
+
+                    @Override
+                    public void onComplete() {
+
+                        done.complete(null);
+                    }
+                });
+        done.join();
+        assertEquals(1, results.size());
+
+        // Streams page through the metered query
+        assertEquals(1.0, registry.get("storage.page.size").tags("operation", "query", "schema", schemaName).summary().totalAmount());
+    }
+}
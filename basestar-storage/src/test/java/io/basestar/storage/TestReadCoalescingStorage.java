@@ -0,0 +1,100 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.schema.Consistency;
+import io.basestar.schema.Instance;
+import io.basestar.schema.LinkableSchema;
+import io.basestar.schema.Namespace;
+import io.basestar.schema.ObjectSchema;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestReadCoalescingStorage extends TestStorage {
+
+    @Override
+    protected Storage storage(final Namespace namespace) {
+
+        return ReadCoalescingStorage.builder()
+                .setStorage(MemoryStorage.builder().build())
+                .build();
+    }
+
+    @Test
+    void testCoalescedReads() {
+
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final AtomicInteger reads = new AtomicInteger();
+        final Storage counting = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                reads.incrementAndGet();
+                return memory.read(consistency);
+            }
+        };
+
+        final Storage storage = ReadCoalescingStorage.builder()
+                .setStorage(counting)
+                .setWindow(Duration.ofMillis(50))
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final List<String> ids = new ArrayList<>();
+        final Storage.WriteTransaction write = memory.write(Consistency.ATOMIC, Versioning.CHECKED);
+        for(int i = 0; i != 5; ++i) {
+            final String id = UUID.randomUUID().toString();
+            final Map<String, Object> data = new HashMap<>();
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            write.createObject(schema, id, schema.create(data));
+            ids.add(id);
+        }
+        write.write().join();
+
+        final List<CompletableFuture<Map<String, Object>>> futures = new ArrayList<>();
+        for(int i = 0; i != 4; ++i) {
+            for(final String id : ids) {
+                futures.add(storage.get(Consistency.ATOMIC, schema, id, Collections.emptySet()));
+            }
+        }
+        futures.add(storage.get(Consistency.ATOMIC, schema, "missing", Collections.emptySet()));
+
+        for(int i = 0; i != futures.size() - 1; ++i) {
+            assertEquals(ids.get(i % ids.size()), Instance.getId(futures.get(i).join()));
+        }
+        assertNull(futures.get(futures.size() - 1).join());
+        assertEquals(1, reads.get());
+    }
+}
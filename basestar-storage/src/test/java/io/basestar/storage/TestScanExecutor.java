@@ -0,0 +1,208 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestScanExecutor {
+
+    private static Scan scan(final int segments, final int rows, final AtomicInteger read, final AtomicInteger closed) {
+
+        return new Scan() {
+
+            @Override
+            public int getSegments() {
+
+                return segments;
+            }
+
+            @Override
+            public Segment segment(final int segment) {
+
+                final Iterator<Integer> iter = new Iterator<Integer>() {
+
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+
+                        return next < rows;
+                    }
+
+                    @Override
+                    public Integer next() {
+
+                        read.incrementAndGet();
+                        return segment * rows + next++;
+                    }
+                };
+                return new Segment() {
+
+                    @Override
+                    public void close() {
+
+                        closed.incrementAndGet();
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+
+                        return iter.hasNext();
+                    }
+
+                    @Override
+                    public Map<String, Object> next() {
+
+                        return ImmutableMap.of("value", iter.next());
+                    }
+                };
+            }
+        };
+    }
+
+    private static class TestSubscriber implements Subscriber<Map<String, Object>> {
+
+        private final List<Object> values = new CopyOnWriteArrayList<>();
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private volatile Subscription subscription;
+
+        @Override
+        public void onSubscribe(final Subscription subscription) {
+
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final Map<String, Object> item) {
+
+            values.add(item.get("value"));
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+
+            done.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+
+            done.complete(null);
+        }
+    }
+
+    @Test
+    void testPublishAllSegments() throws Exception {
+
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final ScanExecutor executor = ScanExecutor.builder().setParallelism(3).setPrefetch(10).build();
+
+        final TestSubscriber subscriber = new TestSubscriber();
+        executor.publish(scan(7, 50, read, closed)).subscribe(subscriber);
+        // Request in small steps, delivery never exceeds demand
+        for(int requested = 25; requested <= 350; requested += 25) {
+            subscriber.subscription.request(25);
+            final int expected = requested;
+            while(subscriber.values.size() < expected) {
+                Thread.sleep(1);
+            }
+            assertEquals(expected, subscriber.values.size());
+        }
+        subscriber.done.get(10, TimeUnit.SECONDS);
+
+        final Set<Object> values = new HashSet<>(subscriber.values);
+        assertEquals(350, values.size());
+        assertEquals(7, closed.get());
+    }
+
+    @Test
+    void testBackpressureAndCancel() throws Exception {
+
+        final AtomicInteger read = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        final ScanExecutor executor = ScanExecutor.builder().setParallelism(2).setPrefetch(5).build();
+
+        final TestSubscriber subscriber = new TestSubscriber();
+        executor.publish(scan(4, 1000, read, closed)).subscribe(subscriber);
+        subscriber.subscription.request(3);
+        Thread.sleep(200);
+
+        // Readers stop once their prefetch buffers are full (plus the row each is waiting to offer)
+        assertEquals(3, subscriber.values.size());
+        assertTrue(read.get() <= 3 + 2 * 6, "read " + read.get());
+
+        subscriber.subscription.cancel();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while(closed.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, closed.get());
+        assertFalse(subscriber.done.isDone());
+    }
+
+    @Test
+    void testSegmentFailure() {
+
+        final Scan scan = new Scan() {
+
+            @Override
+            public int getSegments() {
+
+                return 2;
+            }
+
+            @Override
+            public Segment segment(final int segment) {
+
+                throw new IllegalStateException("segment " + segment);
+            }
+        };
+
+        final TestSubscriber subscriber = new TestSubscriber();
+        ScanExecutor.builder().build().publish(scan).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        final Exception e = assertThrows(Exception.class, () -> subscriber.done.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void testEmptyScan() throws Exception {
+
+        final TestSubscriber subscriber = new TestSubscriber();
+        ScanExecutor.builder().build().publish(scan(0, 0, new AtomicInteger(), new AtomicInteger())).subscribe(subscriber);
+        subscriber.done.get(10, TimeUnit.SECONDS);
+        assertTrue(subscriber.values.isEmpty());
+    }
+}
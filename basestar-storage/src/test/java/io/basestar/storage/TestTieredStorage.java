@@ -0,0 +1,372 @@
+package io.basestar.storage;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.expression.Expression;
+import io.basestar.schema.*;
+import io.basestar.storage.exception.VersionMismatchException;
+import io.basestar.util.Name;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestTieredStorage extends TestStorage {
+
+    @Override
+    protected Storage storage(final Namespace namespace) {
+
+        return TieredStorage.builder()
+                .setHot(MemoryStorage.builder().build())
+                .setCold(MemoryStorage.builder().build())
+                .setSweepInterval(Duration.ZERO)
+                .build();
+    }
+
+    @Test
+    void testPromotionAndDemotion() throws InterruptedException {
+
+        final MemoryStorage hot = MemoryStorage.builder().build();
+        final MemoryStorage cold = MemoryStorage.builder().build();
+        final TieredStorage storage = TieredStorage.builder()
+                .setHot(hot)
+                .setCold(cold)
+                .setIdleTime(Duration.ZERO)
+                .setSweepInterval(Duration.ZERO)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final Map<String, Object> v1 = object(schema, 1L);
+        final Map<String, Object> v2 = object(schema, 2L);
+
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", v1).write().join();
+        assertNotNull(get(hot, schema));
+        assertNull(get(cold, schema));
+
+        Thread.sleep(10);
+        assertEquals(1, storage.sweep());
+        assertNull(get(hot, schema));
+        assertNotNull(get(cold, schema));
+
+        // Reads are transparent and promote the object
+        assertEquals(1L, (long)Instance.getVersion(get(storage, schema)));
+        for(int i = 0; i != 100 && get(cold, schema) != null; ++i) {
+            Thread.sleep(10);
+        }
+        assertNotNull(get(hot, schema));
+        assertNull(get(cold, schema));
+
+        // Updates to cold objects promote them and keep version checks
+        Thread.sleep(10);
+        assertEquals(1, storage.sweep());
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).updateObject(schema, "a", v1, v2).write().join();
+        assertEquals(2L, (long)Instance.getVersion(get(hot, schema)));
+        assertNull(get(cold, schema));
+
+        Thread.sleep(10);
+        assertEquals(1, storage.sweep());
+        final CompletionException stale = assertThrows(CompletionException.class, () -> storage.write(Consistency.ATOMIC, Versioning.CHECKED)
+                .updateObject(schema, "a", v1, v2).write().join());
+        assertTrue(stale.getCause() instanceof VersionMismatchException);
+        assertNotNull(get(cold, schema));
+        assertNull(get(hot, schema));
+
+        assertEquals(1, storage.query(Consistency.ATOMIC, schema, Expression.parse("id == 'a'"), Collections.emptyList(), Collections.emptySet())
+                .page(null, 10).join().size());
+
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, "a", v2).write().join();
+        assertNull(get(cold, schema));
+        assertNull(get(storage, schema));
+    }
+
+    @Test
+    void testDemotionRacingWrite() throws InterruptedException {
+
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final MemoryStorage cold = MemoryStorage.builder().build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final Map<String, Object> v1 = object(schema, 1L);
+        final Map<String, Object> v2 = object(schema, 2L);
+
+        // Updates the object just before the demotion removes it from the hot tier
+        final Storage hot = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+                final WriteTransaction delegate = memory.write(consistency, versioning);
+                return new WriteTransaction() {
+
+                    @Override
+                    @Deprecated
+                    public WriteTransaction write(final LinkableSchema schema, final Map<String, Object> after) {
+
+                        delegate.write(schema, after);
+                        return this;
+                    }
+
+                    @Override
+                    public WriteTransaction createObject(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                        delegate.createObject(schema, id, after);
+                        return this;
+                    }
+
+                    @Override
+                    public WriteTransaction updateObject(final ObjectSchema schema, final String id, final Map<String, Object> before, final Map<String, Object> after) {
+
+                        delegate.updateObject(schema, id, before, after);
+                        return this;
+                    }
+
+                    @Override
+                    public WriteTransaction deleteObject(final ObjectSchema schema, final String id, final Map<String, Object> before) {
+
+                        memory.write(Consistency.ATOMIC, Versioning.CHECKED).updateObject(schema, id, before, v2).write().join();
+                        delegate.deleteObject(schema, id, before);
+                        return this;
+                    }
+
+                    @Override
+                    public WriteTransaction writeHistory(final ObjectSchema schema, final String id, final Map<String, Object> after) {
+
+                        delegate.writeHistory(schema, id, after);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> write() {
+
+                        return delegate.write();
+                    }
+                };
+            }
+        };
+        final TieredStorage storage = TieredStorage.builder()
+                .setHot(hot)
+                .setCold(cold)
+                .setIdleTime(Duration.ZERO)
+                .setSweepInterval(Duration.ZERO)
+                .build();
+
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", v1).write().join();
+
+        // The object changed, so it stays hot and the copy written to the cold tier is removed
+        Thread.sleep(10);
+        assertEquals(0, storage.sweep());
+        assertEquals(2L, (long)Instance.getVersion(get(memory, schema)));
+        assertNull(get(cold, schema));
+    }
+
+    @Test
+    void testPromotionRacingColdUpdate() throws InterruptedException {
+
+        final MemoryStorage hot = MemoryStorage.builder().build();
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final Map<String, Object> v1 = object(schema, 1L);
+        final Map<String, Object> v2 = object(schema, 2L);
+        memory.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", v1).write().join();
+
+        // Updates the cold object just before the promotion removes it from the cold tier
+        final AtomicBoolean race = new AtomicBoolean(true);
+        final Storage cold = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+                final WriteTransaction delegate = memory.write(consistency, versioning);
+                return new WriteTransaction.Delegating() {
+
+                    @Override
+                    public WriteTransaction delegate(final LinkableSchema schema) {
+
+                        return delegate;
+                    }
+
+                    @Override
+                    public WriteTransaction deleteObject(final ObjectSchema schema, final String id, final Map<String, Object> before) {
+
+                        if(race.compareAndSet(true, false)) {
+                            memory.write(Consistency.ATOMIC, Versioning.CHECKED).updateObject(schema, id, before, v2).write().join();
+                        }
+                        delegate.deleteObject(schema, id, before);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> write() {
+
+                        return delegate.write();
+                    }
+                };
+            }
+        };
+        final TieredStorage storage = TieredStorage.builder()
+                .setHot(hot)
+                .setCold(cold)
+                .setSweepInterval(Duration.ZERO)
+                .build();
+
+        // The promoted copy is stale, so it is removed again and the update is kept
+        assertEquals(1L, (long)Instance.getVersion(get(storage, schema)));
+        for(int i = 0; i != 100 && (race.get() || get(hot, schema) != null); ++i) {
+            Thread.sleep(10);
+        }
+        assertFalse(race.get());
+        assertNull(get(hot, schema));
+        assertEquals(2L, (long)Instance.getVersion(get(memory, schema)));
+    }
+
+    @Test
+    void testUpdateRacingPromotion() {
+
+        final MemoryStorage hot = MemoryStorage.builder().build();
+        final MemoryStorage memory = MemoryStorage.builder().build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final Map<String, Object> v1 = object(schema, 1L);
+        final Map<String, Object> v2 = object(schema, 2L);
+        memory.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", v1).write().join();
+
+        // Moves the object to the hot tier once the write has found it in the cold tier
+        final AtomicBoolean race = new AtomicBoolean(false);
+        final Storage cold = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return memory;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                return new ReadTransaction() {
+
+                    private ReadTransaction delegate = memory.read(consistency);
+
+                    @Override
+                    public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                        delegate = delegate.get(schema, id, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                        delegate = delegate.getVersion(schema, id, version, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> read() {
+
+                        return delegate.read().thenApply(response -> {
+                            if(race.compareAndSet(true, false)) {
+                                hot.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", v1).write().join();
+                                memory.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, "a", v1).write().join();
+                            }
+                            return response;
+                        });
+                    }
+                };
+            }
+        };
+        final TieredStorage storage = TieredStorage.builder()
+                .setHot(hot)
+                .setCold(cold)
+                .setSweepInterval(Duration.ZERO)
+                .build();
+
+        race.set(true);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).updateObject(schema, "a", v1, v2).write().join();
+        assertFalse(race.get());
+        assertEquals(2L, (long)Instance.getVersion(get(hot, schema)));
+        assertNull(get(memory, schema));
+    }
+
+    @Test
+    void testTrackedLimit() {
+
+        final MemoryStorage hot = MemoryStorage.builder().build();
+        final MemoryStorage cold = MemoryStorage.builder().build();
+        final TieredStorage storage = TieredStorage.builder()
+                .setHot(hot)
+                .setCold(cold)
+                .setMaxTracked(2)
+                .setSweepInterval(Duration.ZERO)
+                .build();
+
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        for(final String id : new String[]{"a", "b", "c"}) {
+            final Map<String, Object> data = new HashMap<>();
+            Instance.setId(data, id);
+            Instance.setVersion(data, 1L);
+            storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, id, schema.create(data)).write().join();
+        }
+
+        // Nothing is idle, but access times beyond the limit are dropped and those objects demoted
+        final int demoted = storage.sweep();
+        assertTrue(demoted >= 1);
+        int inCold = 0;
+        for(final String id : new String[]{"a", "b", "c"}) {
+            final boolean isHot = hot.get(Consistency.ATOMIC, schema, id, Collections.emptySet()).join() != null;
+            final boolean isCold = cold.get(Consistency.ATOMIC, schema, id, Collections.emptySet()).join() != null;
+            assertNotEquals(isHot, isCold);
+            inCold += isCold ? 1 : 0;
+        }
+        assertEquals(demoted, inCold);
+    }
+
+    private static Map<String, Object> get(final Storage storage, final ObjectSchema schema) {
+
+        return storage.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join();
+    }
+
+    private static Map<String, Object> object(final ObjectSchema schema, final Long version) {
+
+        final Map<String, Object> data = new HashMap<>();
+        Instance.setId(data, "a");
+        Instance.setVersion(data, version);
+        return schema.create(data);
+    }
+}
@@ -1,13 +1,32 @@
 package io.basestar.storage.replica;
 
-import io.basestar.schema.Consistency;
-import io.basestar.schema.Namespace;
-import io.basestar.storage.MemoryStorage;
-import io.basestar.storage.Storage;
-import io.basestar.storage.TestStorage;
+import io.basestar.event.Emitter;
+import io.basestar.event.Event;
+import io.basestar.schema.*;
+import io.basestar.storage.*;
+import io.basestar.storage.replica.event.ReplicaSyncEvent;
+import io.basestar.util.Name;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 class TestReplicaStorage extends TestStorage {
 
+    private static final ScheduledExecutorService DELAY = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Override
     protected Storage storage(final Namespace namespace) {
 
@@ -21,4 +40,277 @@ class TestReplicaStorage extends TestStorage {
                 .setSimpleReplicaConsistency(Consistency.ATOMIC)
                 .build();
     }
+
+    @Test
+    void testHedgedReads() {
+
+        final MemoryStorage primary = MemoryStorage.builder().build();
+        final MemoryStorage replica = MemoryStorage.builder().build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+        final Map<String, Object> instance = new HashMap<>();
+        Instance.setId(instance, "a");
+        Instance.setVersion(instance, 1L);
+        Instance.setSchema(instance, schema.getQualifiedName());
+        final Map<String, Object> initial = schema.create(instance, schema.getExpand(), false);
+        for(final Storage storage : new Storage[]{primary, replica}) {
+            storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", initial).write().join();
+        }
+
+        // Replica is slow, the hedged read to the primary answers first
+        final ReplicaStorage slowReplica = ReplicaStorage.builder()
+                .setSimplePrimary(primary)
+                .setSimpleReplica(delayed(replica, 2000))
+                .setHedgeReads(true)
+                .setHedgeDelay(Duration.ofMillis(20))
+                .build();
+        final long start = System.nanoTime();
+        assertEquals("a", Instance.getId(slowReplica.get(Consistency.EVENTUAL, schema, "a", Collections.emptySet()).join()));
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+
+        // Primary is slow, once latencies are known eventual reads are routed to the replica without hedging
+        final ReplicaStorage slowPrimary = ReplicaStorage.builder()
+                .setSimplePrimary(delayed(primary, 200))
+                .setSimpleReplica(replica)
+                .setHedgeReads(true)
+                .setHedgeDelay(Duration.ofMillis(1000))
+                .build();
+        final long routedStart = System.nanoTime();
+        for(int i = 0; i != 20; ++i) {
+            assertEquals("a", Instance.getId(slowPrimary.get(Consistency.EVENTUAL, schema, "a", Collections.emptySet()).join()));
+        }
+        // Occasional probes of the primary take 200ms each, every other read should be immediate
+        assertTrue(System.nanoTime() - routedStart < TimeUnit.MILLISECONDS.toNanos(2000));
+    }
+
+    @Test
+    void testBatchedReplication() {
+
+        final MemoryStorage primary = MemoryStorage.builder().build();
+        final MemoryStorage replica = MemoryStorage.builder().build();
+        final AtomicInteger replicaWrites = new AtomicInteger();
+        final List<Event> events = new ArrayList<>();
+        final Emitter emitter = (emitted, meta) -> {
+            events.addAll(emitted);
+            return CompletableFuture.completedFuture(null);
+        };
+        final ReplicaStorage storage = ReplicaStorage.builder()
+                .setNamespace(namespace)
+                .setEmitter(emitter)
+                .setSimplePrimary(primary)
+                .setSimpleReplica(counting(replica, replicaWrites))
+                .setSimpleWriteConsistency(Consistency.EVENTUAL)
+                .setSimpleReplicaConsistency(Consistency.ATOMIC)
+                .setReplicationBatchSize(100)
+                .setReplicationWindow(Duration.ofMillis(100))
+                .setCatchUpThreshold(20)
+                .build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+
+        // Writes are replicated through sync events
+        final Map<String, Object> v1 = object(schema, "a", 1L);
+        final Map<String, Object> v2 = object(schema, "a", 2L);
+        final Map<String, Object> v3 = object(schema, "a", 3L);
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", v1).write().join();
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).updateObject(schema, "a", v1, v2).write().join();
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).updateObject(schema, "a", v2, v3).write().join();
+        assertEquals(3, events.size());
+        assertNull(replica.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join());
+
+        // Versions of the same object collapse to the latest, applied in one write
+        sync(storage, events);
+        assertEquals(3L, (long)Instance.getVersion(replica.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join()));
+        assertEquals(1, replicaWrites.get());
+
+        // Redelivered events do not move the replica backwards, nor write anything
+        sync(storage, events.subList(0, 2));
+        assertEquals(3L, (long)Instance.getVersion(replica.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join()));
+        assertEquals(1, replicaWrites.get());
+        events.clear();
+
+        // Lag above the threshold copies the schema from the primary
+        for(int i = 0; i != 50; ++i) {
+            final String id = "b" + i;
+            storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, id, object(schema, id, 1L)).write().join();
+        }
+        storage.write(Consistency.ATOMIC, Versioning.CHECKED).deleteObject(schema, "a", v3).write().join();
+        assertEquals(51, events.size());
+        replicaWrites.set(0);
+        sync(storage, events);
+        for(int i = 0; i != 50; ++i) {
+            assertNotNull(replica.get(Consistency.ATOMIC, schema, "b" + i, Collections.emptySet()).join());
+        }
+        assertNull(replica.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join());
+        // Copied in batches rather than one write per event
+        assertTrue(replicaWrites.get() < 10);
+    }
+
+    @Test
+    void testStaleDeleteSkipped() {
+
+        final MemoryStorage primary = MemoryStorage.builder().build();
+        final MemoryStorage replica = MemoryStorage.builder().build();
+        final ReplicaStorage storage = ReplicaStorage.builder()
+                .setNamespace(namespace)
+                .setSimplePrimary(primary)
+                .setSimpleReplica(replica)
+                .setSimpleReplicaConsistency(Consistency.ATOMIC)
+                .setReplicationBatchSize(100)
+                .setReplicationWindow(Duration.ofMillis(20))
+                .build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+
+        // Replica already holds the recreated object, the delete of the earlier object must not remove it
+        final Map<String, Object> recreated = object(schema, "a", 1L);
+        replica.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, "a", recreated).write().join();
+        final Map<String, Object> deleted = object(schema, "a", 2L);
+        sync(storage, Collections.singletonList(ReplicaSyncEvent.delete(schema.getQualifiedName(), "a", deleted, Consistency.ATOMIC, Versioning.CHECKED)));
+        assertEquals(1L, (long)Instance.getVersion(replica.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join()));
+
+        // A delete of the version the replica holds is applied
+        sync(storage, Collections.singletonList(ReplicaSyncEvent.delete(schema.getQualifiedName(), "a", recreated, Consistency.ATOMIC, Versioning.CHECKED)));
+        assertNull(replica.get(Consistency.ATOMIC, schema, "a", Collections.emptySet()).join());
+    }
+
+    @Test
+    void testCatchUpWithoutScan() {
+
+        final MemoryStorage primary = MemoryStorage.builder().build();
+        final MemoryStorage replica = MemoryStorage.builder().build();
+        final List<Event> events = new ArrayList<>();
+        final Emitter emitter = (emitted, meta) -> {
+            events.addAll(emitted);
+            return CompletableFuture.completedFuture(null);
+        };
+        // Delegating storage does not support scan
+        final Storage unscannable = new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return primary;
+            }
+        };
+        final AtomicInteger replicaWrites = new AtomicInteger();
+        final ReplicaStorage storage = ReplicaStorage.builder()
+                .setNamespace(namespace)
+                .setEmitter(emitter)
+                .setSimplePrimary(unscannable)
+                .setSimpleReplica(counting(replica, replicaWrites))
+                .setSimpleWriteConsistency(Consistency.EVENTUAL)
+                .setSimpleReplicaConsistency(Consistency.ATOMIC)
+                .setReplicationBatchSize(100)
+                .setReplicationWindow(Duration.ofMillis(20))
+                .setCatchUpThreshold(20)
+                .build();
+        final ObjectSchema schema = namespace.requireObjectSchema(SIMPLE);
+
+        for(int i = 0; i != 50; ++i) {
+            final String id = "c" + i;
+            storage.write(Consistency.ATOMIC, Versioning.CHECKED).createObject(schema, id, object(schema, id, 1L)).write().join();
+        }
+        assertEquals(50, events.size());
+        sync(storage, events);
+        for(int i = 0; i != 50; ++i) {
+            assertNotNull(replica.get(Consistency.ATOMIC, schema, "c" + i, Collections.emptySet()).join());
+        }
+        // Events were applied in batches, not dropped
+        assertTrue(replicaWrites.get() > 0 && replicaWrites.get() < 10);
+    }
+
+    private static void sync(final ReplicaStorage storage, final List<Event> events) {
+
+        CompletableFuture.allOf(events.stream().map(event -> storage.handle(event, Collections.emptyMap()))
+                .toArray(CompletableFuture<?>[]::new)).join();
+    }
+
+    private static Map<String, Object> object(final ObjectSchema schema, final String id, final Long version) {
+
+        final Map<String, Object> instance = new HashMap<>();
+        Instance.setId(instance, id);
+        Instance.setVersion(instance, version);
+        Instance.setSchema(instance, schema.getQualifiedName());
+        Instance.setUpdated(instance, Instant.now());
+        return schema.create(instance, schema.getExpand(), false);
+    }
+
+    private static Storage counting(final Storage storage, final AtomicInteger writes) {
+
+        return new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return storage;
+            }
+
+            @Override
+            public WriteTransaction write(final Consistency consistency, final Versioning versioning) {
+
+                final WriteTransaction delegate = storage.write(consistency, versioning);
+                return new WriteTransaction.Delegating() {
+
+                    @Override
+                    public WriteTransaction delegate(final LinkableSchema schema) {
+
+                        return delegate;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> write() {
+
+                        writes.incrementAndGet();
+                        return delegate.write();
+                    }
+                };
+            }
+        };
+    }
+
+    private static Storage delayed(final Storage storage, final long millis) {
+
+        return new DelegatingStorage() {
+
+            @Override
+            public Storage storage(final LinkableSchema schema) {
+
+                return storage;
+            }
+
+            @Override
+            public ReadTransaction read(final Consistency consistency) {
+
+                final ReadTransaction delegate = storage.read(consistency);
+                return new ReadTransaction() {
+
+                    @Override
+                    public ReadTransaction get(final ReferableSchema schema, final String id, final Set<Name> expand) {
+
+                        delegate.get(schema, id, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public ReadTransaction getVersion(final ReferableSchema schema, final String id, final long version, final Set<Name> expand) {
+
+                        delegate.getVersion(schema, id, version, expand);
+                        return this;
+                    }
+
+                    @Override
+                    public CompletableFuture<BatchResponse> read() {
+
+                        final CompletableFuture<BatchResponse> result = new CompletableFuture<>();
+                        delegate.read().whenComplete((response, error) -> DELAY.schedule(() -> {
+                            if(error != null) {
+                                result.completeExceptionally(error);
+                            } else {
+                                result.complete(response);
+                            }
+                        }, millis, TimeUnit.MILLISECONDS));
+                        return result;
+                    }
+                };
+            }
+        };
+    }
 }
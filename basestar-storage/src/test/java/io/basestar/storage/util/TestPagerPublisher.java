@@ -0,0 +1,139 @@
+package io.basestar.storage.util;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import io.basestar.util.Page;
+import io.basestar.util.Pager;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPagerPublisher {
+
+    private static Pager<Integer> pager(final int size, final AtomicInteger pages) {
+
+        return (stats, token, count) -> {
+            pages.incrementAndGet();
+            final int offset = token == null ? 0 : Integer.parseInt(token.getStringValue());
+            final List<Integer> items = new ArrayList<>();
+            for(int i = offset; i < Math.min(size, offset + count); ++i) {
+                items.add(i);
+            }
+            final int next = offset + items.size();
+            final Page.Token paging = next < size ? Page.Token.fromStringValue(Integer.toString(next)) : null;
+            return CompletableFuture.completedFuture(new Page<>(items, paging));
+        };
+    }
+
+    private static class TestSubscriber implements Subscriber<Integer> {
+
+        private final List<Integer> values = new ArrayList<>();
+
+        private Subscription subscription;
+
+        private boolean complete;
+
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(final Subscription subscription) {
+
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(final Integer item) {
+
+            values.add(item);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+
+            this.error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+
+            this.complete = true;
+        }
+    }
+
+    @Test
+    void testDemandDrivenPaging() {
+
+        final AtomicInteger pages = new AtomicInteger();
+        final TestSubscriber subscriber = new TestSubscriber();
+        new PagerPublisher<>(pager(25, pages), 10).subscribe(subscriber);
+        assertEquals(0, pages.get());
+
+        subscriber.subscription.request(3);
+        assertEquals(3, subscriber.values.size());
+        assertEquals(1, pages.get());
+
+        // Buffered rows are delivered before another page is read
+        subscriber.subscription.request(7);
+        assertEquals(10, subscriber.values.size());
+        assertEquals(1, pages.get());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(25, subscriber.values.size());
+        assertEquals(3, pages.get());
+        assertTrue(subscriber.complete);
+        for(int i = 0; i != 25; ++i) {
+            assertEquals(Integer.valueOf(i), subscriber.values.get(i));
+        }
+    }
+
+    @Test
+    void testCancel() {
+
+        final AtomicInteger pages = new AtomicInteger();
+        final TestSubscriber subscriber = new TestSubscriber();
+        new PagerPublisher<>(pager(25, pages), 10).subscribe(subscriber);
+        subscriber.subscription.request(5);
+        subscriber.subscription.cancel();
+        subscriber.subscription.request(10);
+        assertEquals(5, subscriber.values.size());
+        assertEquals(1, pages.get());
+        assertFalse(subscriber.complete);
+    }
+
+    @Test
+    void testError() {
+
+        final CompletableFuture<Page<Integer>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IllegalStateException());
+        final TestSubscriber subscriber = new TestSubscriber();
+        new PagerPublisher<Integer>((stats, token, count) -> failed).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertTrue(subscriber.error instanceof IllegalStateException);
+        assertFalse(subscriber.complete);
+    }
+}
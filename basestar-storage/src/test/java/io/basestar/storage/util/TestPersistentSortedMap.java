@@ -0,0 +1,90 @@
+package io.basestar.storage.util;
+
+/*-
+ * #%L
+ * basestar-storage
+ * %%
+ * Copyright (C) 2019 - 2020 Basestar.IO
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestPersistentSortedMap {
+
+    private static List<Integer> keys(final Iterator<Map.Entry<Integer, String>> iter) {
+
+        final List<Integer> result = new ArrayList<>();
+        iter.forEachRemaining(e -> result.add(e.getKey()));
+        return result;
+    }
+
+    @Test
+    void testPutRemoveMatchesTreeMap() {
+
+        final Random random = new Random(1);
+        final TreeMap<Integer, String> expected = new TreeMap<>();
+        PersistentSortedMap<Integer, String> actual = PersistentSortedMap.empty();
+        for(int i = 0; i != 10000; ++i) {
+            final int key = random.nextInt(1000);
+            if(random.nextBoolean()) {
+                expected.put(key, "v" + i);
+                actual = actual.put(key, "v" + i);
+            } else {
+                expected.remove(key);
+                actual = actual.remove(key);
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new ArrayList<>(expected.keySet()), keys(actual.iterator()));
+        for(final Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    void testStructuralSharing() {
+
+        final PersistentSortedMap<Integer, String> a = PersistentSortedMap.<Integer, String>empty().put(1, "a").put(2, "b");
+        final PersistentSortedMap<Integer, String> b = a.put(3, "c").remove(1);
+
+        assertEquals(2, a.size());
+        assertTrue(a.containsKey(1));
+        assertFalse(a.containsKey(3));
+        assertEquals(2, b.size());
+        assertFalse(b.containsKey(1));
+        assertEquals("c", b.get(3));
+        assertSame(a, a.remove(5));
+    }
+
+    @Test
+    void testRange() {
+
+        PersistentSortedMap<Integer, String> map = PersistentSortedMap.empty();
+        for(int i = 0; i != 10; ++i) {
+            map = map.put(i, "v" + i);
+        }
+        assertEquals(Arrays.asList(3, 4, 5, 6), keys(map.iterator(3, true, 7, false, false)));
+        assertEquals(Arrays.asList(4, 5, 6, 7), keys(map.iterator(3, false, 7, true, false)));
+        assertEquals(Arrays.asList(6, 5, 4, 3), keys(map.iterator(3, true, 7, false, true)));
+        assertEquals(Arrays.asList(9, 8), keys(map.iterator(8, true, null, false, true)));
+        assertEquals(Arrays.asList(0, 1), keys(map.iterator(null, false, 2, false, false)));
+        assertEquals(Collections.emptyList(), keys(map.iterator(20, true, null, false, false)));
+    }
+}